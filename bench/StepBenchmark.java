@@ -0,0 +1,381 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmarks the persistence and query paths of the plugin on a plain JVM, against journals holding
+ * 1 day to 5 years of hourly buckets:
+ * - count: a sensor value through StepAccounting (what saveSteps does per event)
+ * - flush: the day, hour and total with their summaries, one synced journal transaction
+ * - saveDailyBuffer: the shutdown path, day and hour buffers in one synced transaction
+ * - log: one entry into the persistent log ring (the file part of logToPrefs)
+ * - todaySteps: what get_today_step_count reads, a refresh of a reader's journal plus a lookup
+ * - history: get_history, the whole history rendered as JSON
+ * - historyRange: get_history_range, the last 7 days by day
+ * - open: a cold start of a reader, replaying the journal file
+ *
+ * Every benchmark reports throughput, latency percentiles and the bytes allocated per operation
+ * (where the JVM can measure it). Results can be written as TSV and compared with an earlier run:
+ *
+ *   bench/run.sh --out before.tsv
+ *   ... change ...
+ *   bench/run.sh --baseline before.tsv
+ *
+ * The wall clock is simulated and the files live in a temporary directory (pass --dir to use
+ * another file system).
+ */
+final class StepBenchmark {
+
+    //region Constants
+
+    private static final int[] HISTORY_DAYS = { 1, 30, 365, 5 * 365 };
+    private static final int MAX_SAMPLES = 1 << 20;
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    //endregion
+
+    //region Types
+
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    private static final class BenchmarkClock implements StepClock {
+        long timeMillis;
+
+        @Override
+        public long currentTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return timeMillis * 1000000L;
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final File directory;
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final String filter;
+    private final long[] samples = new long[MAX_SAMPLES];
+    private final StringBuilder results = new StringBuilder();
+    private final Map<String, double[]> baseline;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private Method allocatedBytes;
+
+    //Keeps the JIT from dropping the work
+    private long blackhole;
+
+    //endregion
+
+    private StepBenchmark(File directory, long warmupMillis, long measureMillis, String filter,
+                          Map<String, double[]> baseline) {
+        this.directory = directory;
+        this.warmupNanos = warmupMillis * 1000000L;
+        this.measureNanos = measureMillis * 1000000L;
+        this.filter = filter;
+        this.baseline = baseline;
+        try {
+            //com.sun.management.ThreadMXBean, not on every JVM
+            allocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                                  .getMethod("getThreadAllocatedBytes", long.class);
+        }
+        catch (Exception ex) {
+            allocatedBytes = null;
+        }
+    }
+
+    //region Main
+
+    /**
+     * Usage: StepBenchmark [--quick] [--filter name] [--dir directory] [--out results.tsv]
+     *                      [--baseline results.tsv]
+     */
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        String filter = null;
+        String out = null;
+        String baselineFile = null;
+        File directory = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--quick".equals(args[i]))
+                quick = true;
+            else if ("--filter".equals(args[i]) && i + 1 < args.length)
+                filter = args[++i];
+            else if ("--out".equals(args[i]) && i + 1 < args.length)
+                out = args[++i];
+            else if ("--baseline".equals(args[i]) && i + 1 < args.length)
+                baselineFile = args[++i];
+            else if ("--dir".equals(args[i]) && i + 1 < args.length)
+                directory = new File(args[++i]);
+            else {
+                System.err.println("Usage: StepBenchmark [--quick] [--filter name] [--dir directory] " +
+                                   "[--out results.tsv] [--baseline results.tsv]");
+                System.exit(2);
+                return;
+            }
+        }
+
+        if (directory == null) {
+            directory = File.createTempFile("stepbench", "");
+            if (!directory.delete() || !directory.mkdirs())
+                throw new IOException("Can't create " + directory);
+            directory.deleteOnExit();
+        }
+
+        StepBenchmark benchmark = new StepBenchmark(directory, quick ? 200 : 1000, quick ? 500 : 3000, filter,
+                                                    baselineFile != null ? readBaseline(new File(baselineFile)) : null);
+        benchmark.runAll();
+
+        if (out != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+                writer.print("benchmark\thistoryDays\topsPerSecond\tp50Us\tp90Us\tp99Us\tmaxUs\tbytesPerOp\n");
+                writer.print(benchmark.results);
+            }
+        }
+    }
+
+    //endregion
+
+    //region Methods
+
+    private void runAll() throws IOException {
+        System.out.println(String.format(Locale.US, "%-16s %8s %12s %10s %10s %10s %10s %12s%s", "benchmark", "days",
+                                         "ops/s", "p50 us", "p90 us", "p99 us", "max us", "bytes/op",
+                                         baseline != null ? "   vs baseline (ops/s, p50)" : ""));
+
+        for (int days : HISTORY_DAYS) {
+            File file = new File(directory, "bench-" + days + ".journal");
+            final BenchmarkClock clock = new BenchmarkClock();
+            final StepJournal journal = seed(file, days, clock);
+            final StepJournal reader = StepJournal.open(file, false);
+
+            //count: one value per second, the state is flushed (in memory) on every new hour
+            final StepState state = new StepState();
+            final StepAccounting accounting = new StepAccounting(state, clock);
+            final int[] sensor = { 1000 };
+            run("count", days, new Operation() {
+                @Override
+                public void run() {
+                    clock.timeMillis += 1000;
+                    accounting.moveTo(journal, clock.timeMillis);
+                    if (accounting.isNewPeriod())
+                        state.markFlushed(clock.timeMillis);
+                    blackhole += accounting.apply(journal, sensor[0] += 2);
+                }
+            });
+
+            final int dayKey = journal.lastKey(StepJournal.KIND_DAY);
+            final int hourKey = journal.lastKey(StepJournal.KIND_HOUR);
+            final int[] steps = { 0 };
+            run("flush", days, new Operation() {
+                @Override
+                public void run() throws IOException {
+                    steps[0] += 10;
+                    journal.stage(StepJournal.KIND_DAY, dayKey, steps[0], 0, 0);
+                    StepSummary.stageDelta(journal, dayKey, 10);
+                    journal.stage(StepJournal.KIND_HOUR, hourKey, steps[0], 0, 0);
+                    journal.stage(StepJournal.KIND_TOTAL, 0, steps[0], 0, 0);
+                    blackhole += journal.commit(true);
+                }
+            });
+
+            run("saveDailyBuffer", days, new Operation() {
+                @Override
+                public void run() throws IOException {
+                    StepJournal.Bucket day = journal.get(StepJournal.KIND_DAY, dayKey);
+                    StepJournal.Bucket hour = journal.get(StepJournal.KIND_HOUR, hourKey);
+                    journal.stage(StepJournal.KIND_DAY, dayKey, day.steps, 0, day.steps);
+                    journal.stage(StepJournal.KIND_HOUR, hourKey, hour.steps, 0, hour.steps);
+                    blackhole += journal.commit(true);
+                }
+            });
+
+            run("todaySteps", days, new Operation() {
+                @Override
+                public void run() throws IOException {
+                    reader.refresh();
+                    blackhole += reader.get(StepJournal.KIND_DAY, dayKey).steps;
+                }
+            });
+
+            reader.refresh();
+            run("history", days, new Operation() {
+                @Override
+                public void run() {
+                    blackhole += StepHistoryQuery.historyJson(reader).length();
+                }
+            });
+
+            final Calendar to = Calendar.getInstance();
+            to.setTimeInMillis(clock.timeMillis);
+            final Calendar from = (Calendar) to.clone();
+            from.add(Calendar.DATE, -7);
+            run("historyRange", days, new Operation() {
+                @Override
+                public void run() {
+                    blackhole += StepHistoryQuery.queryJson(reader, from, to, StepHistoryQuery.GRANULARITY_DAY).length();
+                }
+            });
+
+            final File journalFile = file;
+            run("open", days, new Operation() {
+                @Override
+                public void run() throws IOException {
+                    StepJournal opened = StepJournal.open(journalFile, false);
+                    blackhole += opened.size();
+                    opened.close();
+                }
+            });
+
+            reader.close();
+            journal.close();
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+
+        //The log ring has a fixed size, the history doesn't matter
+        File logFile = new File(directory, "bench.log");
+        final StepLogRing ring = StepLogRing.open(logFile, StepLogRing.DEFAULT_SLOTS);
+        final long[] logTime = { 0 };
+        run("log", 0, new Operation() {
+            @Override
+            public void run() throws IOException {
+                ring.append(++logTime[0], "INFO", "StepBenchmark", "onChanged: Sensor=12345.0 Daily=6789");
+            }
+        });
+        ring.close();
+        if (!logFile.delete())
+            logFile.deleteOnExit();
+
+        System.out.println("(blackhole " + (blackhole & 1) + ")");
+    }
+
+    /* Journal with an hour bucket per hour and a day bucket per day of history, ending now. */
+    private static StepJournal seed(File file, int days, BenchmarkClock clock) throws IOException {
+        if (file.exists() && !file.delete())
+            throw new IOException("Can't delete " + file);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2024, Calendar.JANUARY, 1, 0, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        StepJournal journal = StepJournal.open(file, true);
+        int offset = 0;
+        int daySteps = 0;
+        for (int hour = 0; hour < days * 24; hour++) {
+            int hourSteps = hour % 24 >= 7 && hour % 24 < 22 ? 500 + (hour * 37) % 400 : 0;
+            if (hour % 24 == 0)
+                daySteps = 0;
+            daySteps += hourSteps;
+            journal.stage(StepJournal.KIND_HOUR, StepAccounting.hourKey(calendar), hourSteps, offset, 0);
+            if (hour % 24 == 23 || hour == days * 24 - 1)
+                journal.stage(StepJournal.KIND_DAY, StepAccounting.dayKey(calendar), daySteps, offset, 0);
+            offset += hourSteps;
+            if (journal.getPendingCount() >= StepJournal.MAX_TRANSACTION_RECORDS - 2)
+                journal.commit(false);
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+        }
+        journal.stage(StepJournal.KIND_TOTAL, 0, offset, 0, 0);
+        journal.commit(true);
+        StepSummary.ensureBuilt(journal);
+
+        clock.timeMillis = calendar.getTimeInMillis() - HOUR_MS / 2;
+        return journal;
+    }
+
+    private void run(String name, int days, Operation operation) throws IOException {
+        if (filter != null && !name.contains(filter))
+            return;
+
+        //Warm up, then measure every operation
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end)
+            operation.run();
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = getAllocatedBytes(threadId);
+        int count = 0;
+        long start = System.nanoTime();
+        end = start + measureNanos;
+        long now = start;
+        while (now < end && count < MAX_SAMPLES) {
+            operation.run();
+            long after = System.nanoTime();
+            samples[count++] = after - now;
+            now = after;
+        }
+        long elapsed = now - start;
+        long allocated = getAllocatedBytes(threadId) - allocatedBefore;
+
+        Arrays.sort(samples, 0, count);
+        double opsPerSecond = count * 1e9 / elapsed;
+        double p50 = percentile(count, 0.50);
+        double p90 = percentile(count, 0.90);
+        double p99 = percentile(count, 0.99);
+        double max = samples[count - 1] / 1000d;
+        double bytesPerOp = allocatedBefore >= 0 ? allocated / (double) count : -1;
+
+        String comparison = "";
+        double[] before = baseline != null ? baseline.get(name + "\t" + days) : null;
+        if (before != null)
+            comparison = String.format(Locale.US, "   %+6.1f%% %+6.1f%%", (opsPerSecond / before[0] - 1) * 100,
+                                       (p50 / before[1] - 1) * 100);
+
+        System.out.println(String.format(Locale.US, "%-16s %8d %12.0f %10.1f %10.1f %10.1f %10.1f %12.1f%s", name,
+                                         days, opsPerSecond, p50, p90, p99, max, bytesPerOp, comparison));
+        results.append(String.format(Locale.US, "%s\t%d\t%.1f\t%.2f\t%.2f\t%.2f\t%.2f\t%.1f\n", name, days,
+                                     opsPerSecond, p50, p90, p99, max, bytesPerOp));
+    }
+
+    /* Percentile of the sorted samples, in microseconds. */
+    private double percentile(int count, double percentile) {
+        return samples[Math.min(count - 1, (int) (count * percentile))] / 1000d;
+    }
+
+    private long getAllocatedBytes(long threadId) {
+        if (allocatedBytes == null)
+            return -1;
+        try {
+            return (Long) allocatedBytes.invoke(threads, threadId);
+        }
+        catch (Exception ex) {
+            return -1;
+        }
+    }
+
+    /* Reads a TSV written with --out: ops/s and p50 by benchmark and history days. */
+    private static Map<String, double[]> readBaseline(File file) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length >= 4)
+                    baseline.put(fields[0] + "\t" + fields[1],
+                                 new double[] { Double.parseDouble(fields[2]), Double.parseDouble(fields[3]) });
+            }
+        }
+        return baseline;
+    }
+
+    //endregion
+}
@@ -0,0 +1,645 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Behaviour checks of the pure-Java engine: StepAccounting (rollovers, counter resets, time zone
+ * changes), StepTimeAttribution and StepValueQueue (steps of a batch counted into the hours they
+ * were taken in), StepRetention (rollups and the ISO week to month assignment) and StepJournal
+ * (recovery from a torn or corrupt tail, compaction, replacing it like the legacy migration does).
+ * Every check states the expected value, the run prints the ones that differ and exits with 1 if
+ * there are any:
+ *
+ *   bench/run.sh StepChecks [--dir directory]
+ */
+final class StepChecks {
+
+    //region Types
+
+    private static final class FixedClock implements StepClock {
+        long timeMillis;
+
+        @Override
+        public long currentTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return timeMillis * 1000000L;
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final File directory;
+    private final List<String> failures = new ArrayList<>();
+    private int checks;
+
+    //The accounting under check, see startAccounting()
+    private final FixedClock clock = new FixedClock();
+    private StepTraceReplay.MemoryStore store;
+    private StepState state;
+    private StepAccounting accounting;
+
+    //endregion
+
+    private StepChecks(File directory) {
+        this.directory = directory;
+    }
+
+    //region Main
+
+    public static void main(String[] args) throws IOException {
+        File directory = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--dir".equals(args[i])) {
+                directory = new File(args[i + 1]);
+            }
+            else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+                return;
+            }
+        }
+        if (directory == null) {
+            directory = File.createTempFile("stepchecks", "");
+            if (!directory.delete() || !directory.mkdirs())
+                throw new IOException("Can't create " + directory);
+        }
+
+        TimeZone defaultZone = TimeZone.getDefault();
+        StepChecks checks = new StepChecks(directory);
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+            checks.checkAccountingCounts();
+            checks.checkAccountingRollovers();
+            checks.checkAccountingResets();
+            checks.checkAccountingTimeZone();
+            checks.checkAccountingClockBack();
+            checks.checkTimeAttribution();
+            checks.checkTimeAttributionClamp();
+            checks.checkBatchAttribution();
+            checks.checkRetentionKeys();
+            checks.checkRetentionRollUp();
+            checks.checkHistoryQuery();
+            checks.checkJournalTornTail();
+            checks.checkJournalCompaction();
+            checks.checkJournalReplacement();
+        }
+        finally {
+            TimeZone.setDefault(defaultZone);
+        }
+
+        for (String failure : checks.failures)
+            System.out.println("FAILED: " + failure);
+        if (!checks.failures.isEmpty()) {
+            System.out.println(checks.failures.size() + " of " + checks.checks + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("OK: " + checks.checks + " checks");
+    }
+
+    //endregion
+
+    //region Accounting
+
+    private void checkAccountingCounts() {
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 10, 0, 1000);
+        expect("first value only sets the offset", state.day.steps, 0);
+        count(2024, Calendar.MARCH, 5, 10, 20, 1250);
+        expect("day steps", state.day.steps, 250);
+        expect("hour steps", state.hour.steps, 250);
+        expect("total", state.total, 250);
+
+        //A value from before the current hour is counted into the current hour, periods never go back
+        count(2024, Calendar.MARCH, 5, 9, 50, 1300);
+        expect("late value hour", accounting.getHourKey(), 2024030510);
+        expect("late value steps", state.hour.steps, 300);
+    }
+
+    private void checkAccountingRollovers() {
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 23, 0, 1000);
+        count(2024, Calendar.MARCH, 5, 23, 50, 1400);
+        count(2024, Calendar.MARCH, 6, 0, 10, 1500);
+        expect("new day continues from the previous one", state.day.steps, 100);
+        expect("new hour continues from the previous one", state.hour.steps, 100);
+        expect("previous day is flushed", store.get(StepJournal.KIND_DAY, 20240305).steps, 400);
+        expect("total over the rollover", state.total, 500);
+
+        //Daylight saving time: 02:00 doesn't exist on the last Sunday of March in Europe/Berlin
+        count(2024, Calendar.MARCH, 31, 1, 30, 2000);
+        count(2024, Calendar.MARCH, 31, 3, 30, 2100);
+        expect("hour after the DST gap", accounting.getHourKey(), 2024033103);
+        expect("day over the DST gap", state.day.steps, 100);
+    }
+
+    private void checkAccountingResets() {
+        //Reboot without a clean shutdown: the counter starts over within the period
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 10, 0, 5000);
+        count(2024, Calendar.MARCH, 5, 10, 10, 5300);
+        int result = count(2024, Calendar.MARCH, 5, 10, 20, 40);
+        expect("reset is flagged", result & StepAccounting.RESULT_NEGATIVE_DELTA, StepAccounting.RESULT_NEGATIVE_DELTA);
+        expect("steps since the reset are added", state.day.steps, 340);
+        count(2024, Calendar.MARCH, 5, 10, 30, 100);
+        expect("counting goes on after the reset", state.day.steps, 400);
+        expect("total after the reset", state.total, 400);
+
+        //Reboot overnight, before the first value of the new day
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 20, 0, 5000);
+        count(2024, Calendar.MARCH, 5, 21, 0, 5600);
+        result = count(2024, Calendar.MARCH, 6, 8, 0, 120);
+        expect("reset before a new day is not rejected", result & StepAccounting.RESULT_REJECTED, 0);
+        expect("reset before a new day is flagged", result & StepAccounting.RESULT_COUNTER_RESET,
+               StepAccounting.RESULT_COUNTER_RESET);
+        expect("new day after a reset counts all steps since", state.day.steps, 120);
+        expect("previous day keeps its steps", store.get(StepJournal.KIND_DAY, 20240305).steps, 600);
+
+        //Clean shutdown: saveDailyBuffer moved the day's steps into the buffer with offset 0
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 10, 0, 5000);
+        count(2024, Calendar.MARCH, 5, 10, 10, 5800);
+        store.flush(state);
+        store.put(StepJournal.KIND_DAY, 20240305, 800, 0, 800);
+        store.put(StepJournal.KIND_HOUR, 2024030510, 800, 0, 800);
+        state.invalidate();
+        result = count(2024, Calendar.MARCH, 5, 10, 30, 25);
+        expect("buffered reboot is no anomaly", result & StepAccounting.RESULT_NEGATIVE_DELTA, 0);
+        expect("buffered reboot keeps counting", state.day.steps, 825);
+    }
+
+    private void checkAccountingTimeZone() {
+        startAccounting();
+        //22:30 UTC is already tomorrow in Berlin, still today in New York
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.clear();
+        utc.set(2024, Calendar.JUNE, 10, 22, 30);
+        clock.timeMillis = utc.getTimeInMillis();
+        accounting.moveTo(store, clock.timeMillis);
+        accounting.apply(store, 100);
+        expect("hour in Berlin", accounting.getHourKey(), 2024061100);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+        try {
+            clock.timeMillis += 2 * 60 * 1000L;
+            accounting.moveTo(store, clock.timeMillis);
+            expect("today is read in the new time zone", accounting.getTodayKey(), 20240610);
+            expect("periods never go back", accounting.getHourKey(), 2024061100);
+
+            clock.timeMillis += 7 * 60 * 60 * 1000L;
+            accounting.moveTo(store, clock.timeMillis);
+            expect("hour in New York", accounting.getHourKey(), 2024061101);
+        }
+        finally {
+            TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        }
+    }
+
+    private void checkAccountingClockBack() {
+        //A wrong clock ran 5 hours ahead, then was corrected
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 10, 0, 1000);
+        count(2024, Calendar.MARCH, 5, 10, 30, 1100);
+        count(2024, Calendar.MARCH, 5, 15, 10, 1200);
+        int result = countAtClock(millis(2024, Calendar.MARCH, 5, 10, 40), 1300);
+        expect("clock going back is flagged", result & StepAccounting.RESULT_CLOCK_WENT_BACK,
+               StepAccounting.RESULT_CLOCK_WENT_BACK);
+        expect("counting follows the corrected clock", accounting.getHourKey(), 2024030510);
+        expect("hour continues from the last value", state.hour.steps, 200);
+        expect("day after the correction", state.day.steps, 300);
+        expect("total after the correction", state.total, 300);
+        result = countAtClock(millis(2024, Calendar.MARCH, 5, 10, 50), 1350);
+        expect("counting goes on normally", result & StepAccounting.RESULT_CLOCK_WENT_BACK, 0);
+        expect("hour after the correction", state.hour.steps, 250);
+
+        //Restart after the wrong clock stored a future hour: only trusted if it isn't far ahead
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 10, 0, 1000);
+        count(2024, Calendar.MARCH, 5, 10, 30, 1100);
+        count(2024, Calendar.MARCH, 5, 15, 10, 1200);
+        state = new StepState();
+        accounting = new StepAccounting(state, clock);
+        result = countAtClock(millis(2024, Calendar.MARCH, 5, 10, 50), 1250);
+        expect("stored future hour is left", result & StepAccounting.RESULT_CLOCK_WENT_BACK,
+               StepAccounting.RESULT_CLOCK_WENT_BACK);
+        expect("hour after the restart", accounting.getHourKey(), 2024030510);
+        expect("stored hour continues from the last value", state.hour.steps, 150);
+        expect("day after the restart", state.day.steps, 250);
+
+        //A stored hour slightly ahead (a time zone change) still pins the counting
+        startAccounting();
+        count(2024, Calendar.MARCH, 5, 12, 10, 1000);
+        state = new StepState();
+        accounting = new StepAccounting(state, clock);
+        countAtClock(millis(2024, Calendar.MARCH, 5, 10, 50), 1050);
+        expect("hour slightly ahead is kept", accounting.getHourKey(), 2024030512);
+        expect("steps in the kept hour", state.hour.steps, 50);
+    }
+
+    private void startAccounting() {
+        clock.timeMillis = 0;
+        store = new StepTraceReplay.MemoryStore();
+        state = new StepState();
+        accounting = new StepAccounting(state, clock);
+    }
+
+    /* Counts a value taken at the given local time like the service does, flushing after every value. */
+    private int count(int year, int month, int day, int hour, int minute, int value) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        clock.timeMillis = Math.max(clock.timeMillis, calendar.getTimeInMillis());
+
+        accounting.moveTo(store, calendar.getTimeInMillis());
+        if (state.isDirty() && accounting.isNewPeriod())
+            store.flush(state);
+        int result = accounting.apply(store, value);
+        store.flush(state);
+        return result;
+    }
+
+    /* Counts a value with the clock set to the given time, also if that is earlier than before. */
+    private int countAtClock(long timeMillis, int value) {
+        clock.timeMillis = timeMillis;
+        accounting.moveTo(store, timeMillis);
+        if (state.isDirty() && accounting.isNewPeriod())
+            store.flush(state);
+        int result = accounting.apply(store, value);
+        store.flush(state);
+        return result;
+    }
+
+    //endregion
+
+    //region Time Attribution
+
+    private void checkTimeAttribution() {
+        StepTimeAttribution attribution = new StepTimeAttribution();
+        float[] values = new float[StepTimeAttribution.MAX_POINTS];
+        long[] times = new long[StepTimeAttribution.MAX_POINTS];
+
+        expect("first value is applied as is", attribution.attribute(1000, millis(2024, Calendar.MARCH, 5, 10, 30),
+                                                                     values, times), 1);
+        int points = attribution.attribute(1600, millis(2024, Calendar.MARCH, 5, 11, 30), values, times);
+        expect("batch across an hour boundary", points, 2);
+        expect("steps up to the boundary", Math.round(values[0]), 1300);
+        expect("boundary point in the previous hour", times[0], millis(2024, Calendar.MARCH, 5, 11, 0) - 1);
+        expect("last point is the value", Math.round(values[1]), 1600);
+
+        attribution.reset(2000, millis(2024, Calendar.MARCH, 5, 23, 40));
+        points = attribution.attribute(2060, millis(2024, Calendar.MARCH, 6, 0, 20), values, times);
+        expect("batch across midnight", points, 2);
+        expect("steps of the previous day", Math.round(values[0]), 2030);
+        expect("midnight point on the previous day", times[0], millis(2024, Calendar.MARCH, 6, 0, 0) - 1);
+
+        //Idle: no steps, nothing to spread. Steps after the gap are spread over all its hours
+        attribution.reset(3000, millis(2024, Calendar.MARCH, 6, 6, 0));
+        expect("idle gap without steps", attribution.attribute(3000, millis(2024, Calendar.MARCH, 6, 10, 0),
+                                                               values, times), 1);
+        points = attribution.attribute(3400, millis(2024, Calendar.MARCH, 6, 14, 0), values, times);
+        expect("idle gap with steps", points, 5);
+        expect("first hour of the gap", Math.round(values[0]), 3100);
+        expect("third hour of the gap", Math.round(values[2]), 3300);
+
+        points = attribution.attribute(3500, millis(2024, Calendar.MARCH, 6, 13, 0), values, times);
+        expect("value from the past is counted now", points, 1);
+        expect("time never goes back", times[0], millis(2024, Calendar.MARCH, 6, 14, 0));
+    }
+
+    private void checkTimeAttributionClamp() {
+        StepTimeAttribution attribution = new StepTimeAttribution();
+        float[] values = new float[StepTimeAttribution.MAX_POINTS];
+        long[] times = new long[StepTimeAttribution.MAX_POINTS];
+
+        //Ten days without a value: only the last MAX_POINTS - 1 hours get a point
+        attribution.reset(0, millis(2024, Calendar.MARCH, 1, 0, 30));
+        long end = millis(2024, Calendar.MARCH, 11, 0, 30);
+        int points = attribution.attribute(24000, end, values, times);
+        expect("points are clamped", points, StepTimeAttribution.MAX_POINTS);
+        expect("oldest hours share the first point", times[0],
+               millis(2024, Calendar.MARCH, 11, 0, 0) - (StepTimeAttribution.MAX_POINTS - 2) * 3600000L - 1);
+        expect("last point is the value", Math.round(values[points - 1]), 24000);
+        expect("last point time", times[points - 1], end);
+        boolean increasing = true;
+        for (int i = 1; i < points; i++)
+            increasing &= values[i] >= values[i - 1] && times[i] > times[i - 1];
+        expect("clamped points increase", increasing ? 1 : 0, 1);
+    }
+
+    /*
+     * The last value at 23:30, then a batch walked 07:00-07:10 delivered at 07:10: the batch's steps
+     * belong to 07:00-08:00, not to the night.
+     */
+    private void checkBatchAttribution() {
+        startAccounting();
+        StepValueQueue queue = new StepValueQueue();
+        StepTimeAttribution attribution = new StepTimeAttribution();
+        clock.timeMillis = millis(2024, Calendar.MARCH, 5, 23, 30);
+        queue.add(1000, clock.timeMillis * 1000000L, clock.timeMillis, clock.elapsedRealtimeNanos());
+        expect("single value", countQueued(queue, attribution), 1);
+
+        long walkStart = millis(2024, Calendar.MARCH, 6, 7, 0);
+        clock.timeMillis = walkStart + 10 * 60 * 1000L;
+        int coalesced = 0;
+        for (int second = 1; second <= 600; second++) {
+            long eventMillis = walkStart + second * 1000L;
+            if (queue.add(1000 + second, eventMillis * 1000000L, clock.timeMillis, clock.elapsedRealtimeNanos()))
+                coalesced++;
+        }
+        expect("batch keeps the first value of the hour", queue.size(), 2);
+        expect("rest of the batch coalesced", coalesced, 598);
+        expect("values counted", countQueued(queue, attribution), 2);
+        expect("night gets no steps", store.get(StepJournal.KIND_DAY, 20240305).steps, 0);
+        expect("only the first event's step is spread over the night", state.day.steps - state.hour.steps, 1);
+        expect("walk hour", state.hour.steps, 599);
+        expect("walk hour key", accounting.getHourKey(), 2024030607);
+
+        //A batch across an hour boundary keeps one value per hour
+        clock.timeMillis = millis(2024, Calendar.MARCH, 6, 8, 10);
+        for (int minute = 50; minute < 70; minute++) {
+            long eventMillis = millis(2024, Calendar.MARCH, 6, 7, minute);
+            queue.add(1600 + minute, eventMillis * 1000000L, clock.timeMillis, clock.elapsedRealtimeNanos());
+        }
+        expect("batch across an hour", queue.size(), 3);
+        countQueued(queue, attribution);
+        expect("hour before the boundary", store.get(StepJournal.KIND_HOUR, 2024030607).steps, 599 + 60);
+        expect("hour after the boundary key", accounting.getHourKey(), 2024030608);
+        expect("hour after the boundary", state.hour.steps, 9);
+    }
+
+    /* Drains the queue and counts its values into the hours of their steps, like the service. */
+    private int countQueued(StepValueQueue queue, StepTimeAttribution attribution) {
+        float[] queued = new float[StepValueQueue.CAPACITY];
+        long[] timestamps = new long[StepValueQueue.CAPACITY];
+        float[] values = new float[StepTimeAttribution.MAX_POINTS];
+        long[] times = new long[StepTimeAttribution.MAX_POINTS];
+        int count = queue.drainTo(queued, timestamps);
+        for (int i = 0; i < count; i++) {
+            long timeMillis = StepTimeAttribution.toWallClock(timestamps[i], clock.timeMillis,
+                                                              clock.elapsedRealtimeNanos());
+            int points = attribution.attribute(queued[i], timeMillis, values, times);
+            for (int j = 0; j < points; j++) {
+                accounting.moveTo(store, times[j]);
+                if (state.isDirty() && accounting.isNewPeriod())
+                    store.flush(state);
+                accounting.apply(store, Math.round(values[j]));
+                store.flush(state);
+            }
+        }
+        return count;
+    }
+
+    //endregion
+
+    //region Retention
+
+    private void checkRetentionKeys() {
+        expect("week of a Monday", StepRetention.weekKey(20240101), 20240101);
+        expect("week of a Sunday", StepRetention.weekKey(20240107), 20240101);
+        expect("week across the year", StepRetention.weekKey(20250101), 20241230);
+        //A week belongs to the month of its Thursday
+        expect("week starting Dec 30 is January", StepRetention.monthKey(20241230), 202501);
+        expect("week starting Jan 29 is February", StepRetention.monthKey(20240129), 202402);
+        expect("week starting Feb 26 is February", StepRetention.monthKey(20240226), 202402);
+        expect("week starting Mar 25 is March", StepRetention.monthKey(20240325), 202403);
+
+        StringBuilder label = new StringBuilder();
+        StepRetention.appendWeekLabel(label, 20241230);
+        expect("ISO week label", label.toString(), "2025-W01");
+    }
+
+    private void checkRetentionRollUp() throws IOException {
+        File file = new File(directory, "retention.journal");
+        file.delete();
+        StepJournal journal = StepJournal.open(file, true);
+        try {
+            //Three years of a 100 step hour every day
+            Calendar day = StepRetention.calendarOf(20220101);
+            int days = 0;
+            while (StepAccounting.dayKey(day) < 20250101) {
+                journal.stage(StepJournal.KIND_HOUR, StepAccounting.dayKey(day) * 100 + 12, 100, 0, 0);
+                if (journal.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                    journal.commit(false);
+                day.add(Calendar.DATE, 1);
+                days++;
+            }
+            journal.commit(false);
+
+            Calendar now = StepRetention.calendarOf(20250101);
+            StepRetention.apply(journal, now, 31, 366, 104);
+            expect("steps survive the rollup", sum(journal), days * 100L);
+            expect("hours within the window", journal.size(StepJournal.KIND_HOUR), 31);
+            expect("nothing is rolled up twice", StepRetention.apply(journal, now, 31, 366, 104), 0);
+            expect("December 2022 holds the week of Dec 26 to Jan 1",
+                   journal.get(StepJournal.KIND_HISTORY_MONTH, 202212).steps, 35 * 100);
+        }
+        finally {
+            journal.close();
+            file.delete();
+        }
+    }
+
+    private void checkHistoryQuery() throws IOException {
+        File file = new File(directory, "query.journal");
+        file.delete();
+        StepJournal journal = StepJournal.open(file, true);
+        try {
+            //Jan 1 to Mar 31 2024, rolled up into months, weeks, days and hours
+            Calendar day = StepRetention.calendarOf(20240101);
+            while (StepAccounting.dayKey(day) < 20240401) {
+                if (journal.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                    journal.commit(false);
+                journal.stage(StepJournal.KIND_HOUR, StepAccounting.dayKey(day) * 100 + 12, 100, 0, 0);
+                day.add(Calendar.DATE, 1);
+            }
+            journal.commit(false);
+            StepRetention.apply(journal, StepRetention.calendarOf(20240401), 7, 30, 8);
+
+            String json = StepHistoryQuery.queryJson(journal, StepRetention.calendarOf(20240101),
+                                                     StepRetention.calendarOf(20240401),
+                                                     StepHistoryQuery.GRANULARITY_DAY);
+            Matcher steps = Pattern.compile("\"steps\":(\\d+)").matcher(json);
+            long total = 0;
+            while (steps.find())
+                total += Long.parseLong(steps.group(1));
+            expect("query per day returns the rolled up steps", total, 91 * 100);
+            //A month holds the weeks with their Thursday in it, the four starting in January here
+            expectContains("rolled up months are labelled", json,
+                           "\"2024-01\":{\"steps\":2800,\"granularity\":\"month\"}");
+            expectContains("rolled up weeks are labelled", json,
+                           "\"2024-W06\":{\"steps\":700,\"granularity\":\"week\"}");
+            expectContains("days are not labelled", json, "\"2024-03-30\":{\"steps\":100}");
+        }
+        finally {
+            journal.close();
+            file.delete();
+        }
+    }
+
+    private static long sum(StepJournal journal) {
+        long steps = 0;
+        int[] kinds = { StepJournal.KIND_HOUR, StepJournal.KIND_HISTORY_DAY, StepJournal.KIND_HISTORY_WEEK,
+                        StepJournal.KIND_HISTORY_MONTH };
+        for (int kind : kinds) {
+            for (StepJournal.Bucket bucket : journal.range(kind, 0, Integer.MAX_VALUE).values())
+                steps += bucket.steps;
+        }
+        return steps;
+    }
+
+    //endregion
+
+    //region Journal
+
+    private void checkJournalTornTail() throws IOException {
+        File file = new File(directory, "torn.journal");
+        file.delete();
+        StepJournal journal = StepJournal.open(file, true);
+        journal.put(StepJournal.KIND_DAY, 20240305, 100, 0, 0, true);
+        journal.stage(StepJournal.KIND_DAY, 20240305, 200, 0, 0);
+        journal.stage(StepJournal.KIND_TOTAL, 0, 200, 0, 0);
+        journal.commit(true);
+        long committed = file.length();
+        journal.close();
+
+        //A crash in the middle of the next transaction: a complete record without the commit flag (the
+        //day), a corrupt one (the total) and half of a third
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] day = new byte[StepJournal.RECORD_SIZE];
+            byte[] total = new byte[StepJournal.RECORD_SIZE];
+            raf.seek(committed - 2 * StepJournal.RECORD_SIZE);
+            raf.readFully(day);
+            raf.readFully(total);
+            total[8]++; // steps, the checksum no longer matches
+            raf.write(day);
+            raf.write(total);
+            raf.write(day, 0, StepJournal.RECORD_SIZE / 2);
+        }
+
+        StepJournal reader = StepJournal.open(file, false);
+        expect("reader ignores the torn tail", reader.get(StepJournal.KIND_DAY, 20240305).steps, 200);
+        reader.close();
+
+        journal = StepJournal.open(file, true);
+        expect("writer keeps the committed transactions", journal.get(StepJournal.KIND_DAY, 20240305).steps, 200);
+        expect("writer keeps the total", journal.get(StepJournal.KIND_TOTAL, 0).steps, 200);
+        expect("writer truncates the torn tail", file.length(), committed);
+        journal.put(StepJournal.KIND_DAY, 20240305, 300, 0, 0, true);
+        journal.close();
+
+        journal = StepJournal.open(file, true);
+        expect("appends after the recovery are replayed", journal.get(StepJournal.KIND_DAY, 20240305).steps, 300);
+        journal.close();
+        file.delete();
+    }
+
+    private void checkJournalCompaction() throws IOException {
+        File file = new File(directory, "compact.journal");
+        file.delete();
+        StepJournal journal = StepJournal.open(file, true);
+        for (int i = 0; i < 100; i++)
+            journal.put(StepJournal.KIND_HOUR, 2024030500 + i % 24, i, 0, 0, false);
+        journal.put(StepJournal.KIND_DAY, 20240305, 99, 0, 0, false);
+        journal.stageDelete(StepJournal.KIND_HOUR, 2024030500);
+        journal.commit(true);
+        long seq = journal.getSeq();
+        journal.compact();
+        journal.close();
+
+        journal = StepJournal.open(file, true);
+        expect("compaction keeps the live buckets", journal.size(), 24);
+        expect("compaction drops the removed buckets", journal.get(StepJournal.KIND_HOUR, 2024030500) == null ? 0 : 1,
+               0);
+        expect("compaction keeps the last value", journal.get(StepJournal.KIND_HOUR, 2024030523).steps, 95);
+        expect("compaction keeps the sequence", journal.getSeq(), seq);
+        journal.close();
+        file.delete();
+    }
+
+    private void checkJournalReplacement() throws IOException {
+        File file = new File(directory, "replaced.journal");
+        File replacement = new File(directory, "replaced.journal.new");
+        file.delete();
+
+        //A migration interrupted after some transactions: the journal doesn't exist yet
+        StepJournal journal = StepJournal.openReplacement(file);
+        stageDays(journal, 100);
+        journal.commit(false);
+        journal.close();
+        expect("interrupted replacement leaves no journal", file.exists() ? 1 : 0, 0);
+
+        //The next attempt starts over, in as few transactions as possible
+        long commits = StepMetrics.COMMITS.getCount();
+        journal = StepJournal.openReplacement(file);
+        expect("stale replacement is discarded", journal.size(), 0);
+        stageDays(journal, 1000);
+        journal.install(file);
+        expect("replacement transactions", StepMetrics.COMMITS.getCount() - commits,
+               (1000 + StepJournal.MAX_TRANSACTION_RECORDS - 1) / StepJournal.MAX_TRANSACTION_RECORDS);
+        expect("replacement is moved", replacement.exists() ? 1 : 0, 0);
+
+        journal = StepJournal.open(file, true);
+        expect("installed buckets", journal.size(StepJournal.KIND_HISTORY_DAY), 1000);
+        int lastDay = journal.lastKey(StepJournal.KIND_HISTORY_DAY);
+        expect("installed steps", journal.get(StepJournal.KIND_HISTORY_DAY, lastDay).steps, 999);
+        journal.close();
+        file.delete();
+    }
+
+    /* Stages one bucket per day like the legacy migration, committing whenever a transaction is full. */
+    private static void stageDays(StepJournal journal, int days) throws IOException {
+        Calendar day = StepRetention.calendarOf(20200101);
+        for (int i = 0; i < days; i++) {
+            if (journal.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                journal.commit(false);
+            journal.stage(StepJournal.KIND_HISTORY_DAY, StepAccounting.dayKey(day), i, 0, 0);
+            day.add(Calendar.DATE, 1);
+        }
+    }
+
+    //endregion
+
+    //region Helpers
+
+    private static long millis(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private void expect(String name, long actual, long expected) {
+        checks++;
+        if (actual != expected)
+            failures.add(String.format(Locale.US, "%s: %d, expected %d", name, actual, expected));
+    }
+
+    private void expectContains(String name, String actual, String expected) {
+        checks++;
+        if (!actual.contains(expected))
+            failures.add(String.format(Locale.US, "%s: %s doesn't contain %s", name, actual, expected));
+    }
+
+    private void expect(String name, String actual, String expected) {
+        checks++;
+        if (!expected.equals(actual))
+            failures.add(String.format(Locale.US, "%s: %s, expected %s", name, actual, expected));
+    }
+
+    //endregion
+}
@@ -0,0 +1,480 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Drives the storage layer through years of simulated use, the way the service does (StepAccounting
+ * per sensor value, flushes by step threshold and interval, retention every hour, the persistent log
+ * and the minute ring) and checks that it doesn't get slower or bigger over time.
+ *
+ * The simulated user walks a few bouts a day. Every month or so the phone reboots (the counter
+ * starts over), half of the time with a clean shutdown (saveDailyBuffer), otherwise the steps not
+ * flushed yet are lost with the process. Some days the service is dead, their steps are not counted
+ * (and not part of the lost steps).
+ * The clock runs in Europe/Berlin (DST) with a two week trip to New York every year. The app reads
+ * today's steps, the history, the last week and the week's summary every evening.
+ *
+ * A report row per quarter shows the bytes stored, the latency of sensor values (including the flushes
+ * they trigger), of flushes and of the queries. The run fails (exit code 1) if the worst quarter
+ * exceeds a budget or too many steps were lost:
+ *
+ *   bench/run.sh StepSoak [--years 5] [--seed 1] [--dir directory] [--max-journal-kb 1024]
+ *                         [--max-event-p99-us 5000] [--max-query-p99-ms 50] [--max-lost-percent 1]
+ */
+final class StepSoak {
+
+    //region Constants
+
+    //The service's defaults, see StepCounterConfig
+    private static final long FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final int FLUSH_STEP_THRESHOLD = 250;
+    private static final int HOURLY_RETENTION_DAYS = 31;
+    private static final int DAILY_RETENTION_DAYS = 366;
+    private static final int WEEKLY_RETENTION_WEEKS = 104;
+
+    private static final String HOME_ZONE = "Europe/Berlin";
+    private static final String TRAVEL_ZONE = "America/New_York";
+    private static final int REPORT_DAYS = 91;
+    private static final long MINUTE_MS = 60 * 1000L;
+    //The sensor delivers a value every few seconds while walking
+    private static final int EVENTS_PER_MINUTE = 6;
+    private static final int MAX_SAMPLES = 1 << 18;
+
+    //endregion
+
+    //region Types
+
+    private static final class SoakClock implements StepClock {
+        long timeMillis;
+
+        @Override
+        public long currentTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return timeMillis * 1000000L;
+        }
+    }
+
+    /* Latencies of one quarter, in nanoseconds. */
+    private static final class Samples {
+        final long[] values = new long[MAX_SAMPLES];
+        int count;
+
+        void add(long nanos) {
+            if (count < values.length)
+                values[count++] = nanos;
+        }
+
+        /* In microseconds, 0 without samples. Sorts the samples. */
+        double percentile(double percentile) {
+            if (count == 0)
+                return 0;
+            Arrays.sort(values, 0, count);
+            return values[Math.min(count - 1, (int) (count * percentile))] / 1000d;
+        }
+
+        void clear() {
+            count = 0;
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final File directory;
+    private final Random random;
+    private final SoakClock clock = new SoakClock();
+    private final Calendar calendar = Calendar.getInstance();
+
+    private File journalFile;
+    private File logFile;
+    private File minutesFile;
+    private StepJournal journal;
+    private StepJournal reader;
+    private StepLogRing log;
+    private StepMinuteRing minutes;
+    private StepState state;
+    private StepAccounting accounting;
+
+    //The device: counter value since boot and the steps really walked
+    private int sensorValue;
+    private long walkedSteps;
+    //Steps of the days the service was dead, they can't be attributed to any day and are not counted
+    private long deadSteps;
+    private long flushDueMillis = -1;
+    private long lastEventMillis = -1;
+
+    private final Samples eventSamples = new Samples();
+    private final Samples flushSamples = new Samples();
+    private final Samples todaySamples = new Samples();
+    private final Samples historySamples = new Samples();
+    private final Samples rangeSamples = new Samples();
+    private int events;
+    private int reboots;
+    private int crashes;
+    private int deadDays;
+
+    //Worst quarter
+    private long maxJournalBytes;
+    private double maxEventP99;
+    private double maxQueryP99;
+
+    //endregion
+
+    private StepSoak(File directory, long seed) {
+        this.directory = directory;
+        this.random = new Random(seed);
+    }
+
+    //region Main
+
+    public static void main(String[] args) throws Exception {
+        int years = 5;
+        long seed = 1;
+        File directory = null;
+        long maxJournalKb = 1024;
+        double maxEventP99Us = 5000;
+        double maxQueryP99Ms = 50;
+        double maxLostPercent = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--years": years = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--dir": directory = new File(value); break;
+                case "--max-journal-kb": maxJournalKb = Long.parseLong(value); break;
+                case "--max-event-p99-us": maxEventP99Us = Double.parseDouble(value); break;
+                case "--max-query-p99-ms": maxQueryP99Ms = Double.parseDouble(value); break;
+                case "--max-lost-percent": maxLostPercent = Double.parseDouble(value); break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+                    return;
+            }
+        }
+        if (args.length % 2 != 0) {
+            System.err.println("Missing value for " + args[args.length - 1]);
+            System.exit(2);
+            return;
+        }
+
+        if (directory == null) {
+            directory = File.createTempFile("stepsoak", "");
+            if (!directory.delete() || !directory.mkdirs())
+                throw new IOException("Can't create " + directory);
+        }
+
+        TimeZone defaultZone = TimeZone.getDefault();
+        StepSoak soak = new StepSoak(directory, seed);
+        long counted;
+        try {
+            counted = soak.run(years * 365);
+        }
+        finally {
+            TimeZone.setDefault(defaultZone);
+            soak.deleteFiles();
+        }
+
+        long lost = soak.walkedSteps - soak.deadSteps - counted;
+        double lostPercent = soak.walkedSteps > 0 ? lost * 100d / soak.walkedSteps : 0;
+        System.out.println(String.format(Locale.US, "%d years: %d events, %d reboots (%d crashes), %d dead days, " +
+                                         "walked %d steps (%d while the service was dead), counted %d, lost %d " +
+                                         "(%.3f%%)", years, soak.events, soak.reboots, soak.crashes, soak.deadDays,
+                                         soak.walkedSteps, soak.deadSteps, counted, lost, lostPercent));
+
+        List<String> failures = new ArrayList<>();
+        if (soak.maxJournalBytes > maxJournalKb * 1024)
+            failures.add(String.format(Locale.US, "journal %d KB > %d KB", soak.maxJournalBytes / 1024, maxJournalKb));
+        if (soak.maxEventP99 > maxEventP99Us)
+            failures.add(String.format(Locale.US, "event p99 %.0f us > %.0f us", soak.maxEventP99, maxEventP99Us));
+        if (soak.maxQueryP99 / 1000 > maxQueryP99Ms)
+            failures.add(String.format(Locale.US, "query p99 %.1f ms > %.1f ms", soak.maxQueryP99 / 1000, maxQueryP99Ms));
+        if (lostPercent > maxLostPercent)
+            failures.add(String.format(Locale.US, "lost %.3f%% of the steps > %.3f%%", lostPercent, maxLostPercent));
+
+        if (!failures.isEmpty()) {
+            System.out.println("FAILED: " + failures);
+            System.exit(1);
+        }
+        System.out.println("OK: all budgets met");
+    }
+
+    //endregion
+
+    //region Simulation
+
+    /* Simulates the days, returns the counted total. */
+    private long run(int days) throws IOException {
+        journalFile = new File(directory, "soak.journal");
+        logFile = new File(directory, "soak.log");
+        minutesFile = new File(directory, "soak.minutes");
+        deleteFiles();
+
+        TimeZone.setDefault(TimeZone.getTimeZone(HOME_ZONE));
+        calendar.setTimeZone(TimeZone.getDefault());
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 1);
+        clock.timeMillis = calendar.getTimeInMillis();
+        log = StepLogRing.open(logFile, StepLogRing.DEFAULT_SLOTS);
+        startService();
+
+        System.out.println(String.format(Locale.US, "%-10s %8s %8s %8s %8s %8s %8s %8s %8s %8s %8s", "quarter",
+                                         "jrnl KB", "log KB", "events", "ev p50", "ev p99", "ev max", "flush99",
+                                         "today99", "hist99", "range99"));
+        int quarterEvents = 0;
+        int travelStart = 150 + random.nextInt(120);
+        for (int day = 0; day < days; day++) {
+            //Two weeks abroad every year
+            int dayOfYear = day % 365;
+            String zone = dayOfYear >= travelStart && dayOfYear < travelStart + 14 ? TRAVEL_ZONE : HOME_ZONE;
+            if (!zone.equals(TimeZone.getDefault().getID())) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                calendar.setTimeZone(TimeZone.getDefault());
+            }
+
+            calendar.setTimeInMillis(clock.timeMillis + 12 * 60 * MINUTE_MS);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            long dayStart = calendar.getTimeInMillis();
+
+            int eventsBefore = events;
+            simulateDay(dayStart);
+            quarterEvents += events - eventsBefore;
+
+            if ((day + 1) % REPORT_DAYS == 0 || day == days - 1) {
+                report(dayStart, quarterEvents);
+                quarterEvents = 0;
+            }
+        }
+
+        flush();
+        journal.close();
+        reader.close();
+        log.close();
+        StepJournal counted = StepJournal.open(journalFile, false);
+        StepJournal.Bucket total = counted.get(StepJournal.KIND_TOTAL, 0);
+        counted.close();
+        return total != null ? total.steps : 0;
+    }
+
+    private void simulateDay(long dayStart) throws IOException {
+        boolean dead = random.nextInt(50) == 0;
+        int rebootMinute = random.nextInt(30) == 0 ? random.nextInt(24 * 60) : -1;
+        if (dead)
+            deadDays++;
+
+        //Steps per minute: a few walks between 7:00 and 22:00
+        int[] stepsPerMinute = new int[24 * 60];
+        int walks = 2 + random.nextInt(7);
+        for (int i = 0; i < walks; i++) {
+            int start = 7 * 60 + random.nextInt(15 * 60);
+            int length = 2 + random.nextInt(44);
+            int cadence = 90 + random.nextInt(36);
+            for (int minute = start; minute < Math.min(start + length, stepsPerMinute.length); minute++)
+                stepsPerMinute[minute] = cadence;
+        }
+
+        for (int minute = 0; minute < stepsPerMinute.length; minute++) {
+            long minuteStart = dayStart + minute * MINUTE_MS;
+            if (minute == rebootMinute)
+                reboot(minuteStart, random.nextBoolean());
+
+            for (int event = 0; event < EVENTS_PER_MINUTE && stepsPerMinute[minute] > 0; event++) {
+                long eventMillis = minuteStart + event * (MINUTE_MS / EVENTS_PER_MINUTE);
+                int steps = stepsPerMinute[minute] / EVENTS_PER_MINUTE;
+                sensorValue += steps;
+                walkedSteps += steps;
+                if (dead)
+                    deadSteps += steps;
+                else
+                    onSensorValue(eventMillis);
+            }
+
+            //The delayed flush of the writer runs even without sensor values
+            if (flushDueMillis >= 0 && flushDueMillis <= minuteStart + MINUTE_MS && !dead) {
+                clock.timeMillis = flushDueMillis;
+                flush();
+            }
+        }
+
+        //The app looks at the steps in the evening
+        clock.timeMillis = dayStart + 21 * 60 * MINUTE_MS;
+        query();
+        clock.timeMillis = dayStart + 24 * 60 * MINUTE_MS;
+    }
+
+    /* What StepCounterHelper.saveSteps() and the service's writer do with a sensor value. */
+    private void onSensorValue(long timeMillis) throws IOException {
+        clock.timeMillis = timeMillis;
+        long start = System.nanoTime();
+
+        boolean newHour = accounting.moveTo(journal, timeMillis);
+        if (state.isDirty() && accounting.isNewPeriod())
+            flush();
+        if (newHour) {
+            Calendar hour = StepRetention.calendarOf(accounting.getHourKey() / 100);
+            hour.set(Calendar.HOUR_OF_DAY, accounting.getHourKey() % 100);
+            StepRetention.apply(journal, hour, HOURLY_RETENTION_DAYS, DAILY_RETENTION_DAYS, WEEKLY_RETENTION_WEEKS);
+        }
+        int result = accounting.apply(journal, sensorValue);
+        if ((result & StepAccounting.RESULT_COUNTED) != 0) {
+            minutes.add(lastEventMillis >= 0 ? Math.max(lastEventMillis, timeMillis - MINUTE_MS) : timeMillis,
+                        timeMillis, state.day.delta);
+            lastEventMillis = timeMillis;
+        }
+
+        if (state.unflushedSteps >= FLUSH_STEP_THRESHOLD)
+            flush();
+        else if (flushDueMillis < 0)
+            flushDueMillis = timeMillis + FLUSH_INTERVAL_MS;
+
+        eventSamples.add(System.nanoTime() - start);
+        events++;
+
+        //The service logs every value (logSampleRate 1), asynchronously
+        log.append(timeMillis, "INFO", "StepCounterService", "onChanged: Sensor=" + sensorValue + " Daily=" +
+                                                             state.day.steps);
+    }
+
+    /* What StepCounterHelper.flushSteps() does. */
+    private void flush() throws IOException {
+        flushDueMillis = -1;
+        if (!state.isDirty())
+            return;
+
+        long start = System.nanoTime();
+        StepSummary.ensureBuilt(journal);
+        if (state.day.dirty) {
+            journal.stage(StepJournal.KIND_DAY, state.day.key, state.day.steps, state.day.offset, state.day.buffer);
+            StepSummary.stageDelta(journal, state.day.key, state.day.steps - state.day.flushedSteps);
+        }
+        if (state.hour.dirty)
+            journal.stage(StepJournal.KIND_HOUR, state.hour.key, state.hour.steps, state.hour.offset,
+                          state.hour.buffer);
+        if (state.totalDirty)
+            journal.stage(StepJournal.KIND_TOTAL, 0, state.total, 0, 0);
+        journal.commit(true);
+        state.markFlushed(clock.timeMillis);
+        minutes.save(minutesFile);
+        flushSamples.add(System.nanoTime() - start);
+    }
+
+    /* The phone restarts: the counter starts over and so does the service. */
+    private void reboot(long timeMillis, boolean clean) throws IOException {
+        clock.timeMillis = timeMillis;
+        reboots++;
+        if (clean) {
+            saveDailyBuffer();
+        }
+        else {
+            //The process dies with the steps not flushed yet
+            crashes++;
+        }
+        journal.close();
+        reader.close();
+        sensorValue = 0;
+        startService();
+    }
+
+    /* What StepCounterHelper.saveDailyBuffer() does on shutdown. */
+    private void saveDailyBuffer() throws IOException {
+        flush();
+        calendar.setTimeInMillis(clock.timeMillis);
+        int dayKey = StepAccounting.dayKey(calendar);
+        int hourKey = StepAccounting.hourKey(calendar);
+        StepJournal.Bucket day = journal.get(StepJournal.KIND_DAY, dayKey);
+        if (day != null)
+            journal.stage(StepJournal.KIND_DAY, dayKey, day.steps, 0, day.steps);
+        StepJournal.Bucket hour = journal.get(StepJournal.KIND_HOUR, hourKey);
+        if (hour != null)
+            journal.stage(StepJournal.KIND_HOUR, hourKey, hour.steps, 0, hour.steps);
+        if (journal.getPendingCount() > 0)
+            journal.commit(true);
+        state.invalidate();
+    }
+
+    private void startService() throws IOException {
+        journal = StepJournal.open(journalFile, true);
+        reader = StepJournal.open(journalFile, false);
+        state = new StepState();
+        accounting = new StepAccounting(state, clock);
+        minutes = new StepMinuteRing();
+        minutes.load(minutesFile);
+        flushDueMillis = -1;
+        lastEventMillis = -1;
+    }
+
+    /* The app's evening look at the steps, from its own (read-only) view of the journal. */
+    private void query() throws IOException {
+        calendar.setTimeInMillis(clock.timeMillis);
+        int todayKey = StepAccounting.dayKey(calendar);
+
+        long start = System.nanoTime();
+        reader.refresh();
+        reader.get(StepJournal.KIND_DAY, todayKey);
+        reader.get(StepSummary.kindOf(StepSummary.PERIOD_WEEK),
+                   StepSummary.periodKey(StepSummary.PERIOD_WEEK, todayKey));
+        todaySamples.add(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        StepHistoryQuery.historyJson(reader);
+        historySamples.add(System.nanoTime() - start);
+
+        Calendar to = (Calendar) calendar.clone();
+        Calendar from = (Calendar) calendar.clone();
+        from.add(Calendar.DATE, -7);
+        start = System.nanoTime();
+        StepHistoryQuery.queryJson(reader, from, to, StepHistoryQuery.GRANULARITY_DAY);
+        rangeSamples.add(System.nanoTime() - start);
+    }
+
+    private void report(long dayStart, int quarterEvents) {
+        calendar.setTimeInMillis(dayStart);
+        long journalBytes = journalFile.length();
+        double eventP50 = eventSamples.percentile(0.50);
+        double eventP99 = eventSamples.percentile(0.99);
+        double eventMax = eventSamples.percentile(1);
+        double historyP99 = historySamples.percentile(0.99);
+        double rangeP99 = rangeSamples.percentile(0.99);
+        double todayP99 = todaySamples.percentile(0.99);
+
+        maxJournalBytes = Math.max(maxJournalBytes, journalBytes);
+        maxEventP99 = Math.max(maxEventP99, eventP99);
+        maxQueryP99 = Math.max(maxQueryP99, Math.max(historyP99, Math.max(rangeP99, todayP99)));
+
+        System.out.println(String.format(Locale.US, "%04d-%02d-%02d %8d %8d %8d %8.1f %8.1f %8.0f %8.0f %8.1f %8.0f %8.1f",
+                                         calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                                         calendar.get(Calendar.DAY_OF_MONTH), journalBytes / 1024,
+                                         logFile.length() / 1024, quarterEvents, eventP50, eventP99, eventMax,
+                                         flushSamples.percentile(0.99), todayP99, historyP99, rangeP99));
+
+        eventSamples.clear();
+        flushSamples.clear();
+        todaySamples.clear();
+        historySamples.clear();
+        rangeSamples.clear();
+    }
+
+    private void deleteFiles() {
+        for (File file : new File[] { journalFile, logFile, minutesFile }) {
+            if (file != null && file.exists() && !file.delete())
+                file.deleteOnExit();
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,195 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Writes the synthetic sensor traces in bench/traces, each with the steps per day (UTC) that were
+ * walked in it, for StepTraceReplay to check what it counts against:
+ *
+ *   bench/run.sh StepTraceGenerator [directory]
+ *   bench/run.sh StepTraceReplay bench/traces/counter.trace --time-zone UTC --expect bench/traces/counter.expected
+ *
+ * (the same for accelerometer.trace). The expected steps come from the walks the generator simulates,
+ * not from a replay.
+ */
+final class StepTraceGenerator {
+
+    //region Constants
+
+    private static final int TYPE_ACCELEROMETER = 1;
+    private static final int TYPE_STEP_COUNTER = 19;
+    private static final float GRAVITY = 9.81f;
+    //50 Hz, as StepSensorManager samples the accelerometer
+    private static final long SAMPLE_NS = 20000000L;
+    private static final long SECOND_NS = 1000000000L;
+    private static final long MINUTE_NS = 60 * SECOND_NS;
+
+    //endregion
+
+    //region Variables
+
+    private final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    //Steps walked per day (yyyyMMdd, UTC)
+    private final Map<Integer, Long> walked = new TreeMap<>();
+
+    //endregion
+
+    //region Main
+
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : "bench/traces");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+
+        StepTraceGenerator generator = new StepTraceGenerator();
+        generator.writeCounterTrace(new File(directory, "counter"));
+        generator.writeAccelerometerTrace(new File(directory, "accelerometer"));
+    }
+
+    //endregion
+
+    //region Traces
+
+    /*
+     * A step counter batching its events for 10 minutes: an evening walk of 100 steps a minute from
+     * 20:00 to 00:30 (across midnight), then a reboot (the counter starts over at 0) and a morning walk
+     * of 50 steps a minute from 08:00 to 09:00, delivered right away.
+     */
+    private void writeCounterTrace(File base) throws IOException {
+        File file = new File(base.getPath() + ".trace");
+        if (file.exists() && !file.delete())
+            throw new IOException("Can't delete " + file);
+
+        //The counter value at 20:00 is where the service starts, the steps before it are not counted
+        long bootNanos = SECOND_NS;
+        long start = utcMillis(2024, Calendar.MARCH, 9, 20, 0);
+        StepTraceRecorder recorder = StepTraceRecorder.open(file, StepTraceRecorder.DEFAULT_MAX_BYTES, start,
+                                                            bootNanos);
+        for (int minute = 0; minute <= 270; minute++) {
+            long timestamp = bootNanos + minute * MINUTE_NS;
+            long deliveredAt = bootNanos + ((minute + 9) / 10 * 10) * MINUTE_NS + SECOND_NS / 2;
+            recorder.event(TYPE_STEP_COUNTER, timestamp, new float[] { 10000 + 100 * minute }, deliveredAt);
+            if (minute > 0)
+                walk(start + (minute - 1) * 60000L, 100);
+        }
+        recorder.close();
+
+        //The first value after the reboot holds the steps since the reboot, they are counted
+        bootNanos = 5 * SECOND_NS;
+        start = utcMillis(2024, Calendar.MARCH, 10, 8, 0);
+        recorder = StepTraceRecorder.open(file, StepTraceRecorder.DEFAULT_MAX_BYTES, start, bootNanos);
+        for (int minute = 1; minute <= 60; minute++) {
+            long timestamp = bootNanos + minute * MINUTE_NS;
+            recorder.event(TYPE_STEP_COUNTER, timestamp, new float[] { 50 * minute }, timestamp + 1000000L);
+            walk(start + (minute - 1) * 60000L, 50);
+        }
+        recorder.close();
+
+        writeExpected(new File(base.getPath() + ".expected"), file.getName(),
+                      "A step counter batching for 10 minutes, a walk across midnight and a reboot.");
+    }
+
+    /*
+     * A device without a step counter: accelerometer samples batched for 5 seconds. A walk of 120
+     * steps, a shake of the phone (3 peaks, not a walk), a slower walk of 54 steps, then the service
+     * restarts (the software detector starts over) and a walk of 40 steps.
+     */
+    private void writeAccelerometerTrace(File base) throws IOException {
+        File file = new File(base.getPath() + ".trace");
+        if (file.exists() && !file.delete())
+            throw new IOException("Can't delete " + file);
+
+        long bootNanos = 60 * SECOND_NS;
+        long start = utcMillis(2024, Calendar.MARCH, 9, 10, 0);
+        StepTraceRecorder recorder = StepTraceRecorder.open(file, StepTraceRecorder.DEFAULT_MAX_BYTES, start,
+                                                            bootNanos);
+        long timestamp = bootNanos;
+        timestamp = sampleAccelerometer(recorder, timestamp, 5, 0, 0);
+        timestamp = sampleAccelerometer(recorder, timestamp, 60, 2, 4);
+        walk(start, 120);
+        timestamp = sampleAccelerometer(recorder, timestamp, 30, 0, 0);
+        timestamp = sampleAccelerometer(recorder, timestamp, 1, 3, 5);
+        timestamp = sampleAccelerometer(recorder, timestamp, 10, 0, 0);
+        timestamp = sampleAccelerometer(recorder, timestamp, 30, 1.8, 4);
+        walk(start, 54);
+        timestamp = sampleAccelerometer(recorder, timestamp, 5, 0, 0);
+        recorder.close();
+
+        //Same boot, the service started again ten minutes later
+        long restartNanos = timestamp + 10 * MINUTE_NS;
+        recorder = StepTraceRecorder.open(file, StepTraceRecorder.DEFAULT_MAX_BYTES,
+                                          start + (restartNanos - bootNanos) / 1000000L, restartNanos);
+        timestamp = sampleAccelerometer(recorder, restartNanos, 2, 0, 0);
+        timestamp = sampleAccelerometer(recorder, timestamp, 20, 2, 4);
+        sampleAccelerometer(recorder, timestamp, 5, 0, 0);
+        walk(start, 40);
+        recorder.close();
+
+        writeExpected(new File(base.getPath() + ".expected"), file.getName(),
+                      "Accelerometer samples of three walks, a shake and a service restart.");
+    }
+
+    /*
+     * Records seconds of 50 Hz samples delivered in batches of 5 seconds: standing still (steps per
+     * second 0) or walking, one acceleration peak of the given amplitude (m/s^2) per step.
+     * @return the timestamp after the last sample
+     */
+    private static long sampleAccelerometer(StepTraceRecorder recorder, long fromNanos, int seconds,
+                                            double stepsPerSecond, float amplitude) throws IOException {
+        float[] values = new float[3];
+        long toNanos = fromNanos + seconds * SECOND_NS;
+        long timestamp = fromNanos;
+        for (; timestamp < toNanos; timestamp += SAMPLE_NS) {
+            double t = (timestamp - fromNanos) / (double) SECOND_NS;
+            values[2] = GRAVITY + (float) (amplitude * Math.sin(2 * Math.PI * stepsPerSecond * t));
+            long deliveredAt = (timestamp / (5 * SECOND_NS) + 1) * 5 * SECOND_NS;
+            recorder.event(TYPE_ACCELEROMETER, timestamp, values, deliveredAt);
+        }
+        return timestamp;
+    }
+
+    //endregion
+
+    //region Helpers
+
+    /* Counts the steps of a minute of walking into its day. */
+    private void walk(long minuteStartMillis, int steps) {
+        utc.setTimeInMillis(minuteStartMillis);
+        int day = StepAccounting.dayKey(utc);
+        Long daySteps = walked.get(day);
+        walked.put(day, (daySteps != null ? daySteps : 0) + steps);
+    }
+
+    private void writeExpected(File file, String traceName, String description) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append("# ").append(traceName).append(": ").append(description).append('\n');
+        text.append("# Steps walked per day (UTC), written by StepTraceGenerator\n");
+        long total = 0;
+        for (Map.Entry<Integer, Long> day : walked.entrySet()) {
+            StepHistoryQuery.appendPeriodKey(text, StepJournal.KIND_DAY, day.getKey());
+            text.append(' ').append(day.getValue()).append('\n');
+            total += day.getValue();
+        }
+        text.append("total ").append(total).append('\n');
+
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(text.toString());
+        }
+        walked.clear();
+    }
+
+    private long utcMillis(int year, int month, int day, int hour, int minute) {
+        utc.clear();
+        utc.set(year, month, day, hour, minute);
+        return utc.getTimeInMillis();
+    }
+
+    //endregion
+}
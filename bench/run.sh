@@ -0,0 +1,30 @@
+#!/bin/sh
+# Compiles the plugin's pure-Java classes with the harnesses in bench/ and runs one of them on the
+# local JVM, StepBenchmark unless the first argument names another (StepSoak, StepChecks,
+# StepTraceReplay, StepTraceGenerator). The other arguments are passed on, see the harness.
+#
+# The classes are plain Java, compiling only needs the androidx annotations:
+#   ANNOTATION_JAR=~/.gradle/caches/.../androidx.annotation/annotation-jvm/1.x/.../annotation-jvm-1.x.jar
+set -e
+
+: "${ANNOTATION_JAR:?set ANNOTATION_JAR to the androidx annotation jar}"
+
+MAIN=StepBenchmark
+case "$1" in
+    Step*) MAIN=$1; shift ;;
+esac
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+SRC="$ROOT/src/android"
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -Xlint:all,-try -d "$OUT" -cp "$ANNOTATION_JAR" \
+    "$SRC/StepAccounting.java" "$SRC/StepClock.java" "$SRC/StepStore.java" "$SRC/StepState.java" \
+    "$SRC/StepJournal.java" "$SRC/StepSummary.java" "$SRC/StepRetention.java" "$SRC/StepHistoryQuery.java" \
+    "$SRC/StepLogRing.java" "$SRC/StepMinuteRing.java" "$SRC/StepMetrics.java" "$SRC/StepTraceReplay.java" \
+    "$SRC/StepTraceRecorder.java" "$SRC/StepChangeListener.java" "$SRC/AccelerometerStepDetector.java" \
+    "$SRC/StepTimeAttribution.java" "$SRC/StepValueQueue.java" \
+    "$ROOT"/bench/*.java
+
+java -cp "$OUT" "com.mctechnologies.cordovapluginstepcounter.$MAIN" "$@"
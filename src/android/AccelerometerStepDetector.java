@@ -0,0 +1,158 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+/**
+ * Software pedometer for devices without a step counter sensor: detects steps in a stream of
+ * accelerometer samples.
+ *
+ * Per sample: the magnitude of the acceleration, minus gravity (a slow moving average of the
+ * magnitude), smoothed by a short moving average. A step is the peak of a rise above the threshold,
+ * which adapts to the recent peaks, at least MIN_STEP_INTERVAL after the previous step. Steps only
+ * count once the walk is regular: the first REQUIRED_STEPS candidates, each within MAX_STEP_INTERVAL
+ * of the previous one, are held back and counted together, a longer pause starts over. That keeps
+ * picking up or shaking the phone from counting.
+ *
+ * All state lives in fields and a primitive ring buffer, a sample allocates nothing. Not thread-safe,
+ * fed from the sensor thread only. Pure Java, so recorded traces can be replayed on the JVM.
+ */
+final class AccelerometerStepDetector {
+
+    //region Constants
+
+    private static final int SMOOTHING_WINDOW = 5;
+    private static final float GRAVITY_TIME_CONSTANT_S = 1f;
+    private static final float MIN_THRESHOLD = 1.2f;       // m/s^2 above gravity
+    private static final float MAX_THRESHOLD = 6f;
+    private static final float THRESHOLD_RATIO = 0.5f;     // of the average recent peak
+    private static final float PEAK_AVERAGE_WEIGHT = 0.2f;
+    private static final long MIN_STEP_INTERVAL_NS = 250 * 1000000L;
+    private static final long MAX_STEP_INTERVAL_NS = 2000 * 1000000L;
+    //Samples further apart than this (the sensor was off) start the filters over
+    private static final long MAX_SAMPLE_GAP_NS = 1000 * 1000000L;
+    static final int REQUIRED_STEPS = 4;
+
+    //endregion
+
+    //region Variables
+
+    private final float[] window = new float[SMOOTHING_WINDOW];
+    private int windowIndex;
+    private int windowCount;
+    private float windowSum;
+
+    private long lastSampleNs = -1;
+    private float gravity;
+
+    private float peakAverage = MIN_THRESHOLD / THRESHOLD_RATIO;
+    private boolean aboveThreshold;
+    private float peakValue;
+    private long peakTimeNs;
+
+    private long lastStepNs = -1;
+    private int candidateSteps;
+    private boolean walking;
+    private int steps;
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * Processes one accelerometer sample.
+     * @param timestampNs sample time, nanoseconds in any monotonic time base
+     * @return true if the sample completed one or more steps (see {@link #getSteps()})
+     */
+    boolean onSample(long timestampNs, float x, float y, float z) {
+        float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+
+        long dt = lastSampleNs < 0 ? -1 : timestampNs - lastSampleNs;
+        if (dt < 0 || dt > MAX_SAMPLE_GAP_NS) {
+            restartFilters(magnitude);
+            lastSampleNs = timestampNs;
+            return false;
+        }
+        lastSampleNs = timestampNs;
+
+        //Gravity: exponential moving average with a fixed time constant, whatever the sampling rate
+        float dtSeconds = dt / 1e9f;
+        gravity += (magnitude - gravity) * (dtSeconds / (GRAVITY_TIME_CONSTANT_S + dtSeconds));
+
+        float linear = magnitude - gravity;
+        windowSum += linear - window[windowIndex];
+        window[windowIndex] = linear;
+        windowIndex = (windowIndex + 1) % SMOOTHING_WINDOW;
+        if (windowCount < SMOOTHING_WINDOW) {
+            windowCount++;
+            return false;
+        }
+        float smoothed = windowSum / SMOOTHING_WINDOW;
+
+        float threshold = Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, peakAverage * THRESHOLD_RATIO));
+        if (smoothed > threshold) {
+            if (!aboveThreshold || smoothed > peakValue) {
+                peakValue = smoothed;
+                peakTimeNs = timestampNs;
+            }
+            aboveThreshold = true;
+            return false;
+        }
+
+        //Hysteresis: the peak is over once the signal fell below half the threshold
+        if (!aboveThreshold || smoothed > threshold * 0.5f)
+            return false;
+        aboveThreshold = false;
+        return onPeak(peakTimeNs, peakValue);
+    }
+
+    /**
+     * @return the steps counted since the detector was created or reset
+     */
+    int getSteps() {
+        return steps;
+    }
+
+    void reset() {
+        steps = 0;
+        lastSampleNs = -1;
+        restartFilters(0);
+    }
+
+    private boolean onPeak(long timeNs, float value) {
+        if (lastStepNs >= 0 && timeNs - lastStepNs < MIN_STEP_INTERVAL_NS)
+            return false;
+
+        peakAverage += (value - peakAverage) * PEAK_AVERAGE_WEIGHT;
+        if (lastStepNs < 0 || timeNs - lastStepNs > MAX_STEP_INTERVAL_NS) {
+            //A pause: the walk has to prove itself again...
+            walking = false;
+            candidateSteps = 0;
+        }
+        lastStepNs = timeNs;
+
+        if (walking) {
+            steps++;
+            return true;
+        }
+        if (++candidateSteps < REQUIRED_STEPS)
+            return false;
+
+        walking = true;
+        steps += candidateSteps;
+        candidateSteps = 0;
+        return true;
+    }
+
+    private void restartFilters(float magnitude) {
+        gravity = magnitude;
+        windowIndex = 0;
+        windowCount = 0;
+        windowSum = 0;
+        for (int i = 0; i < SMOOTHING_WINDOW; i++)
+            window[i] = 0;
+        aboveThreshold = false;
+        candidateSteps = 0;
+        walking = false;
+        lastStepNs = -1;
+    }
+
+    //endregion
+}
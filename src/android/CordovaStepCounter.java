@@ -22,61 +22,159 @@ package com.mctechnologies.cordovapluginstepcounter;
 
 import org.apache.cordova.*;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.os.Build;
+import android.os.Bundle;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import android.util.Log;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CordovaStepCounter extends CordovaPlugin {
 
     private final String TAG = "CordovaStepCounter";
 
-    //private final String ACTION_CONFIGURE        = "configure";
+    private static final int MAX_QUEUED_ACTIONS = 64;
+
+    private final String ACTION_CONFIGURE        = "configure";
     private final String ACTION_START            = "start";
     private final String ACTION_STOP             = "stop";
     private final String ACTION_GET_STEPS        = "get_step_count";
     private final String ACTION_GET_TODAY_STEPS  = "get_today_step_count";
     private final String ACTION_CAN_COUNT_STEPS  = "can_count_steps";
     private final String ACTION_GET_HISTORY      = "get_history";
+    private final String ACTION_GET_HISTORY_RANGE = "get_history_range";
+    private final String ACTION_GET_SUMMARY      = "get_summary";
+    private final String ACTION_GET_MINUTES      = "get_minutes";
+    private final String ACTION_GET_CHANGES_SINCE = "get_changes_since";
     private final String ACTION_GET_LOGS         = "get_logs";
     private final String ACTION_CLEAR_LOGS       = "clear_logs";
+    private final String ACTION_GET_METRICS      = "get_metrics";
+    private final String ACTION_RESET_METRICS    = "reset_metrics";
+    private final String ACTION_WATCH_STEPS      = "watch_steps";
+    private final String ACTION_CLEAR_WATCH      = "clear_watch";
+
+    //watchSteps() subscriptions by id, only touched on the UI thread
+    private final Map<String, StepWatch> watches = new LinkedHashMap<>();
+    private boolean isForeground = true;
+    private BroadcastReceiver stepUpdateReceiver;
+
+
+    //Actions that change state run one after the other, in the order they were called
+    private final ExecutorService serialExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_QUEUED_ACTIONS), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    return new Thread(runnable, "StepCounterActions");
+                }
+            });
+    private final AtomicBoolean pendingStartCheckQueued = new AtomicBoolean();
+
 
+    @Override
+    protected void pluginInitialize() {
+        final Context context = cordova.getActivity().getApplicationContext();
+        StepLog.init(context);
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                StepCounterConfig.reload(context);
+            }
+        });
+    }
 
     @Override
-    public boolean execute(String action, JSONArray data, CallbackContext callbackContext)  {
+    public boolean execute(final String action, final JSONArray data, final CallbackContext callbackContext)  {
         LOG.i(TAG, "execute()");
-        StepCounterHelper.logToPrefs(this.cordova.getActivity(), "INFO", TAG, "execute() action=" + action);
 
+        // Check for pending service start on Android 15+ (auto-start after app launch), once per batch of calls
+        if (pendingStartCheckQueued.compareAndSet(false, true)) {
+            submit(serialExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    pendingStartCheckQueued.set(false);
+                    checkAndHandlePendingServiceStart(cordova.getActivity());
+                }
+            }, null);
+        }
+
+        //Nothing is done on the bridge thread: reads run concurrently on Cordova's pool, writes in order...
+        final long queuedAt = System.nanoTime();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long startedAt = System.nanoTime();
+                try {
+                    runAction(action, data, callbackContext);
+                }
+                catch (Exception ex) {
+                    Log.e(TAG, "Action " + action + " failed: " + ex.getMessage());
+                    StepCounterHelper.logToPrefs(cordova.getActivity(), "ERROR", TAG,
+                                                 "Action " + action + " failed: " + ex.getMessage());
+                    callbackContext.error("Action " + action + " failed: " + ex.getMessage());
+                }
+                recordLatency(action, startedAt - queuedAt, System.nanoTime() - startedAt);
+            }
+        };
+
+        if (isReadOnlyAction(action))
+            submit(cordova.getThreadPool(), task, callbackContext);
+        else
+            submit(serialExecutor, task, callbackContext);
+        return true;
+    }
+
+    private void runAction(String action, JSONArray data, CallbackContext callbackContext) {
         Activity activity = this.cordova.getActivity();
         Intent stepCounterIntent = new Intent(activity, StepCounterService.class);
+        StepCounterHelper.logToPrefs(activity, "INFO", TAG, "execute() action=" + action);
 
-        // Check for pending service start on Android 15+ (auto-start after app launch)
-        checkAndHandlePendingServiceStart(activity);
+        if (ACTION_CONFIGURE.equals(action)) {
+            JSONObject options = data.optJSONObject(0);
+            if (options == null) {
+                callbackContext.error("Missing configuration options");
+                return;
+            }
 
-        if (ACTION_CAN_COUNT_STEPS.equals(action)) {
-            Boolean can = deviceHasStepCounter(activity.getPackageManager());
+            boolean saved = StepCounterProvider.configure(activity, options);
+            if (saved)
+                StepCounterConfig.applyLogOptions(options);
+            StepCounterHelper.logToPrefs(activity, "INFO", TAG, "configure: " + options + " saved=" + saved);
+
+            if (saved)
+                callbackContext.success("configured");
+            else
+                callbackContext.error("Could not save configuration");
+        }
+        else if (ACTION_CAN_COUNT_STEPS.equals(action)) {
+            Boolean can = StepSensorManager.canCountSteps(activity.getPackageManager());
             Log.i(TAG, "Checking if device has step counter APIS: "+ can);
             StepCounterHelper.logToPrefs(activity, "INFO", TAG, "Device has step counter: " + can);
             callbackContext.success( can ? 1 : 0 );
         }
         else if (ACTION_START.equals(action)) {
-            if(!deviceHasStepCounter(activity.getPackageManager())){
+            if(!StepSensorManager.canCountSteps(activity.getPackageManager())){
                 Log.i(TAG, "Step detector not supported");
                 StepCounterHelper.logToPrefs(activity, "ERROR", TAG, "Step detector not supported");
                 callbackContext.error("Step detector not supported");
-                return true;
+                return;
             }
 
             Log.i(TAG, "Starting StepCounterService ...");
@@ -114,61 +212,139 @@ public class CordovaStepCounter extends CordovaPlugin {
             callbackContext.success("stopped service");
         }
         else if (ACTION_GET_STEPS.equals(action)) {
-            Integer steps = StepCounterHelper.getTotalCount(activity);
+            Integer steps = StepCounterProvider.getSteps(activity, getFlushTimeoutMs(data))[1];
             Log.i(TAG, "QUERY_TOTAL: Returning total steps: " + steps);
             StepCounterHelper.logToPrefs(activity, "INFO", TAG, "QUERY_TOTAL: " + steps);
             callbackContext.success(steps);
         }
         else if (ACTION_GET_TODAY_STEPS.equals(action)) {
-            SharedPreferences sharedPref = getDefaultSharedPreferencesMultiProcess(activity,"UserData");
-            if(sharedPref.contains("pedometerDayData")){
-                String pDataString = sharedPref.getString("pedometerDayData", "{}");
-
-                Date currentDate = new Date();
-                SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
-                String currentDateString = dateFormatter.format(currentDate);
-
-                JSONObject pData = new JSONObject();
-                JSONObject dayData;
-                Integer daySteps = -1;
-                try{
-                    pData = new JSONObject(pDataString);
-                    Log.d(TAG," got json shared prefs "+pData.toString());
-                }catch (JSONException err){
-                    Log.e(TAG," DATA_PARSE_ERROR: Exception while parsing json string : "+pDataString);
-                    StepCounterHelper.logToPrefs(activity, "ERROR", TAG, "DATA_PARSE_ERROR: " + err.getMessage());
-                }
-
-                if(pData.has(currentDateString)){
-                    try {
-                        dayData = pData.getJSONObject(currentDateString);
-                        daySteps = dayData.getInt("steps");
-                    }catch(JSONException err){
-                        Log.e(TAG,"DATA_PARSE_ERROR: Exception while getting Object from JSON for "+currentDateString);
-                        StepCounterHelper.logToPrefs(activity, "ERROR", TAG, "DATA_PARSE_ERROR for date " + currentDateString + ": " + err.getMessage());
-                    }
-                }
-
-                Log.i(TAG, "QUERY_TODAY: Returning steps for today: " + daySteps + " date=" + currentDateString);
-                StepCounterHelper.logToPrefs(activity, "INFO", TAG, "QUERY_TODAY: " + daySteps + " date=" + currentDateString);
-                callbackContext.success(daySteps);
-            }else{
+            int daySteps = StepCounterProvider.getSteps(activity, getFlushTimeoutMs(data))[0];
+            if (daySteps >= 0) {
+                Log.i(TAG, "QUERY_TODAY: Returning steps for today: " + daySteps);
+                StepCounterHelper.logToPrefs(activity, "INFO", TAG, "QUERY_TODAY: " + daySteps);
+            } else {
                 Log.w(TAG, "QUERY_TODAY: No steps history found in stepCounterService!");
                 StepCounterHelper.logToPrefs(activity, "WARN", TAG, "QUERY_TODAY: No steps history found");
-                callbackContext.success(-1);
             }
+            callbackContext.success(daySteps);
         } else if(ACTION_GET_HISTORY.equals(action)){
-            SharedPreferences sharedPref = getDefaultSharedPreferencesMultiProcess(activity,"UserData");
-            if(sharedPref.contains("pedometerHistoryData")){
-                String pDataString = sharedPref.getString("pedometerHistoryData","{}");
-                Log.i(TAG, "Getting steps history from stepCounterService: " + pDataString);
-                StepCounterHelper.logToPrefs(activity, "INFO", TAG, "GET_HISTORY: Retrieved history data");
-                callbackContext.success(pDataString);
-            }else{
-                Log.i(TAG, "No steps history found in stepCounterService !");
-                StepCounterHelper.logToPrefs(activity, "INFO", TAG, "GET_HISTORY: No history found");
-                callbackContext.success("{}");
+            String pDataString = StepCounterProvider.getHistoryJson(activity);
+            Log.i(TAG, "Getting steps history from stepCounterService, size=" + pDataString.length());
+            StepCounterHelper.logToPrefs(activity, "INFO", TAG, "GET_HISTORY: Retrieved history data");
+            callbackContext.success(pDataString);
+        }
+        else if (ACTION_GET_HISTORY_RANGE.equals(action)) {
+            long from = data.optLong(0, -1);
+            long to = data.optLong(1, -1);
+            String granularityName = data.optString(2, "day");
+            int granularity = StepHistoryQuery.parseGranularity(granularityName);
+            if (from < 0 || to <= from || granularity < 0) {
+                callbackContext.error("Invalid history range: from=" + from + " to=" + to +
+                                      " granularity=" + granularityName);
+                return;
+            }
+
+            String rangeData = StepCounterProvider.getHistoryRangeJson(activity, from, to, granularity);
+            Log.i(TAG, "GET_HISTORY_RANGE: granularity=" + granularityName + " size=" + rangeData.length());
+            StepCounterHelper.logToPrefs(activity, "INFO", TAG, "GET_HISTORY_RANGE: from=" + from + " to=" + to +
+                                         " granularity=" + granularityName);
+            callbackContext.success(rangeData);
+        }
+        else if (ACTION_GET_SUMMARY.equals(action)) {
+            String periodName = data.optString(0, "day");
+            int period = StepSummary.parsePeriod(periodName);
+            long time = data.optLong(1, -1);
+            if (period < 0) {
+                callbackContext.error("Invalid summary period: " + periodName);
+                return;
             }
+
+            String summary = StepCounterProvider.getSummaryJson(activity, period,
+                                                                time >= 0 ? time : System.currentTimeMillis());
+            Log.i(TAG, "GET_SUMMARY: " + summary);
+            callbackContext.success(summary);
+        }
+        else if (ACTION_GET_MINUTES.equals(action)) {
+            int minutes = data.optInt(0, 60);
+            long to = data.optLong(1, -1);
+            if (minutes < 1 || minutes > StepMinuteRing.MINUTES) {
+                callbackContext.error("Invalid number of minutes: " + minutes);
+                return;
+            }
+
+            String minuteData = StepCounterProvider.getMinutesJson(activity, to >= 0 ? to : System.currentTimeMillis(),
+                                                                   minutes);
+            Log.i(TAG, "GET_MINUTES: minutes=" + minutes + " size=" + minuteData.length());
+            callbackContext.success(minuteData);
+        }
+        else if (ACTION_GET_METRICS.equals(action)) {
+            //The service's counters, with the bridge latencies of this process
+            try {
+                String serviceMetrics = StepCounterProvider.getMetricsJson(activity);
+                JSONObject metrics = new JSONObject(StepMetrics.toJson());
+                metrics.put("service", serviceMetrics != null ? new JSONObject(serviceMetrics) : JSONObject.NULL);
+                callbackContext.success(metrics.toString());
+            } catch (Exception e) {
+                Log.e(TAG, "Error getting metrics: " + e.getMessage());
+                callbackContext.error("Error getting metrics: " + e.getMessage());
+            }
+        }
+        else if (ACTION_RESET_METRICS.equals(action)) {
+            StepMetrics.reset();
+            if (StepCounterProvider.resetMetrics(activity))
+                callbackContext.success("Metrics reset");
+            else
+                callbackContext.error("Step counter process not reachable, only the app's metrics were reset");
+        }
+        else if (ACTION_GET_CHANGES_SINCE.equals(action)) {
+            long cursor = data.optLong(0, 0);
+            if (cursor < 0) {
+                callbackContext.error("Invalid cursor: " + cursor);
+                return;
+            }
+
+            String changes = StepCounterProvider.getChangesJson(activity, cursor);
+            if (changes == null) {
+                callbackContext.error("Could not read the step history");
+                return;
+            }
+            Log.i(TAG, "GET_CHANGES_SINCE: cursor=" + cursor + " size=" + changes.length());
+            callbackContext.success(changes);
+        }
+        else if (ACTION_WATCH_STEPS.equals(action)) {
+            String watchId = data.optString(0, null);
+            JSONObject options = data.optJSONObject(1);
+            if (watchId == null) {
+                callbackContext.error("Missing watch id");
+                return;
+            }
+
+            final StepWatch watch = new StepWatch(watchId,
+                                                  options != null ? options.optLong("minIntervalMs", 1000) : 1000,
+                                                  options != null ? options.optInt("minDelta", 1) : 1,
+                                                  callbackContext);
+
+            //Start with the current counts, then follow the updates pushed by the service...
+            final int[] steps = StepCounterProvider.getSteps(activity);
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    addWatch(watch);
+                    watch.onSteps(steps[0], steps[1], System.currentTimeMillis());
+                }
+            });
+            StepCounterHelper.logToPrefs(activity, "INFO", TAG, "WATCH_STEPS: id=" + watchId +
+                                         " minIntervalMs=" + watch.minIntervalMs);
+        }
+        else if (ACTION_CLEAR_WATCH.equals(action)) {
+            final String watchId = data.optString(0, null);
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    removeWatch(watchId);
+                }
+            });
+            callbackContext.success("watch cleared");
         }
         else if (ACTION_GET_LOGS.equals(action)) {
             try {
@@ -197,13 +373,154 @@ public class CordovaStepCounter extends CordovaPlugin {
             StepCounterHelper.logToPrefs(activity, "ERROR", TAG, "Invalid action: " + action);
             callbackContext.error("Invalid action called on class " + TAG + ", " + action);
         }
+    }
 
-        return true;
+    /* Read-through option of the step count queries: [{flushTimeoutMs: n}] */
+    private static long getFlushTimeoutMs(JSONArray data) {
+        JSONObject options = data.optJSONObject(0);
+        return options != null ? Math.max(0, options.optLong("flushTimeoutMs", 0)) : 0;
+    }
+
+    private boolean isReadOnlyAction(String action) {
+        return ACTION_GET_STEPS.equals(action) || ACTION_GET_TODAY_STEPS.equals(action) ||
+               ACTION_CAN_COUNT_STEPS.equals(action) || ACTION_GET_HISTORY.equals(action) ||
+               ACTION_GET_HISTORY_RANGE.equals(action) || ACTION_GET_SUMMARY.equals(action) ||
+               ACTION_GET_MINUTES.equals(action) || ACTION_GET_CHANGES_SINCE.equals(action) ||
+               ACTION_GET_LOGS.equals(action) || ACTION_GET_METRICS.equals(action);
+    }
+
+    private void submit(@NonNull ExecutorService executor, @NonNull Runnable task, CallbackContext callbackContext) {
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Action rejected: " + ex.getMessage());
+            if (callbackContext != null)
+                callbackContext.error("Too many pending step counter calls");
+        }
     }
 
-    private static boolean deviceHasStepCounter(PackageManager pm) {
-        // Check that the device supports the step counter and detector sensors
-        return Build.VERSION.SDK_INT >= 19 && pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_COUNTER);
+    /* Records the queue wait and run time of each action in StepMetrics (see getMetrics()), logged every 50 calls. */
+    private void recordLatency(String action, long queuedNanos, long runNanos) {
+        StepMetrics.Histogram run = StepMetrics.recordAction(action, queuedNanos, runNanos);
+
+        if (StepLog.isLoggable(StepLog.DEBUG))
+            StepLog.d(TAG, "%s took %dus after waiting %dus", action, runNanos / 1000, queuedNanos / 1000);
+        long calls = run.getCount();
+        if (calls % 50 == 0) {
+            Log.i(TAG, "Latency of " + action + " over " + calls + " calls: avg run " + run.getAverageMicros() +
+                       "us, p99 run " + run.getPercentileMicros(99) + "us, max run " + run.getMaxMicros() + "us");
+        }
+    }
+
+    @Override
+    public void onPause(boolean multitasking) {
+        super.onPause(multitasking);
+        isForeground = false;
+        //Live step detection stops in the background, the watches keep getting the counted steps
+        if (!watches.isEmpty())
+            updateWatchInterval();
+    }
+
+    @Override
+    public void onResume(boolean multitasking) {
+        super.onResume(multitasking);
+        isForeground = true;
+        //The step counter process may have been restarted meanwhile and forgotten about the watches...
+        if (!watches.isEmpty())
+            updateWatchInterval();
+    }
+
+    @Override
+    public void onReset() {
+        clearWatches();
+        super.onReset();
+    }
+
+    @Override
+    public void onDestroy() {
+        clearWatches();
+        serialExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    private void addWatch(@NonNull StepWatch watch) {
+        StepWatch previous = watches.put(watch.id, watch);
+        if (previous != null)
+            previous.close();
+
+        if (stepUpdateReceiver == null) {
+            stepUpdateReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    int todaySteps = intent.getIntExtra(StepUpdateBroadcaster.EXTRA_TODAY_STEPS, 0);
+                    int totalSteps = intent.getIntExtra(StepUpdateBroadcaster.EXTRA_TOTAL_STEPS, 0);
+                    long timestamp = intent.getLongExtra(StepUpdateBroadcaster.EXTRA_TIMESTAMP, 0);
+                    for (StepWatch stepWatch : new ArrayList<>(watches.values()))
+                        stepWatch.onSteps(todaySteps, totalSteps, timestamp);
+                }
+            };
+
+            IntentFilter filter = new IntentFilter(StepUpdateBroadcaster.ACTION_STEPS_CHANGED);
+            //Not exported on every API level (below 33 through a signature permission of the app)...
+            ContextCompat.registerReceiver(cordova.getActivity(), stepUpdateReceiver, filter,
+                                           ContextCompat.RECEIVER_NOT_EXPORTED);
+        }
+
+        updateWatchInterval();
+    }
+
+    private void removeWatch(String watchId) {
+        StepWatch watch = watches.remove(watchId);
+        if (watch != null)
+            watch.close();
+
+        if (watches.isEmpty())
+            unregisterStepUpdateReceiver();
+        updateWatchInterval();
+    }
+
+    private void clearWatches() {
+        for (StepWatch watch : watches.values())
+            watch.close();
+        boolean hadWatches = !watches.isEmpty();
+        watches.clear();
+        unregisterStepUpdateReceiver();
+        if (hadWatches)
+            updateWatchInterval();
+    }
+
+    private void unregisterStepUpdateReceiver() {
+        if (stepUpdateReceiver == null)
+            return;
+
+        try {
+            cordova.getActivity().unregisterReceiver(stepUpdateReceiver);
+        } catch (IllegalArgumentException ex) {
+            Log.w(TAG, "Step update receiver was not registered: " + ex.getMessage());
+        }
+        stepUpdateReceiver = null;
+    }
+
+    /*
+     * Tells the service how often it has to push updates (as often as the most demanding watch wants)
+     * and whether the app is in the foreground.
+     */
+    private void updateWatchInterval() {
+        long interval = -1;
+        for (StepWatch watch : watches.values())
+            interval = interval < 0 ? watch.minIntervalMs : Math.min(interval, watch.minIntervalMs);
+
+        final String arg = Long.toString(interval);
+        final Bundle extras = new Bundle();
+        extras.putBoolean(StepCounterProvider.KEY_FOREGROUND, isForeground);
+        final Context context = cordova.getActivity().getApplicationContext();
+        cordova.getThreadPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                StepCounterProvider.callService(context, StepCounterProvider.METHOD_WATCH, arg, extras);
+            }
+        });
     }
 
     static SharedPreferences getDefaultSharedPreferencesMultiProcess(   @NonNull Context context,
@@ -0,0 +1,288 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Turns cumulative step counter values into the steps of the current day and hour (and the total),
+ * kept in a StepState.
+ *
+ * Every period stores the sensor value it started at (offset) and a buffer of steps that survived a
+ * counter reset (reboot): its steps are value - offset + buffer. A new period continues from the
+ * previous one's offset + steps, so no step is lost between them. A value lower than the period's
+ * last one (or than the previous period's, for a new one) means the counter was reset (reboot): the
+ * steps since the reset are added to the period.
+ *
+ * Periods never go back (a time zone change to the west keeps counting into the later hour), unless
+ * the clock went back more than MAX_CLOCK_BACK_MS: a wrong clock was corrected and the periods
+ * counted since would pin every step into the future. Counting then moves to the current time,
+ * continuing from the last value counted.
+ *
+ * Pure Java without any Android dependency: the wall clock and the stored buckets come in through
+ * StepClock and StepStore, problems are reported as flags for the caller to log. Applying a value
+ * allocates nothing, so the hot path can be profiled, benchmarked and fuzzed on a plain JVM.
+ *
+ * Not thread-safe, StepCounterHelper uses it under its lock.
+ */
+final class StepAccounting {
+
+    //region Constants
+
+    /** The day's steps changed, the total and the unflushed steps followed. */
+    static final int RESULT_COUNTED = 0x01;
+    /** A period started, continuing from the previous one or from this value if there is none. */
+    static final int RESULT_NEW_PERIOD = 0x02;
+    /** The counter went back (reset without a saved buffer), the buffer was grown to keep the steps. */
+    static final int RESULT_NEGATIVE_DELTA = 0x04;
+    /** The value gave negative steps and was ignored for a period. */
+    static final int RESULT_REJECTED = 0x08;
+    /** A period started after the counter was reset since the previous one, it counts from 0. */
+    static final int RESULT_COUNTER_RESET = 0x10;
+    /** The clock went back behind the periods counted so far, counting continued at the current time. */
+    static final int RESULT_CLOCK_WENT_BACK = 0x20;
+
+    //How far the clock may go back (or the last stored hour be ahead of it) before counting follows it
+    static final long MAX_CLOCK_BACK_MS = 3 * 60 * 60 * 1000L;
+
+    //The default time zone is looked up again at most this often (the lookup allocates)
+    private static final long TIME_ZONE_CHECK_MS = 60 * 1000L;
+
+    //endregion
+
+    //region Variables
+
+    private final StepState state;
+    private final StepClock clock;
+    private final Calendar calendar = Calendar.getInstance();
+    private long timeZoneCheckedAt = -1;
+
+    //The periods the last moveTo() picked
+    private int todayKey = -1;
+    private int dayKey = -1;
+    private int hourKey = -1;
+
+    //The latest time moveTo() counted at, and the counter value to continue from after the clock went back
+    private long latestTimeMillis = Long.MIN_VALUE;
+    private int rebaseValue = -1;
+
+    //endregion
+
+    StepAccounting(StepState state, StepClock clock) {
+        this.state = state;
+        this.clock = clock;
+    }
+
+    //region Static Methods
+
+    static int dayKey(Calendar calendar) {
+        return calendar.get(Calendar.YEAR) * 10000 +
+               (calendar.get(Calendar.MONTH) + 1) * 100 +
+               calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    static int hourKey(Calendar calendar) {
+        return dayKey(calendar) * 100 + calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * Picks the day and hour steps taken at timeMillis are counted into: times in the future count
+     * now, times before the hour currently counted into count into that hour (periods never go back),
+     * unless the clock went back more than MAX_CLOCK_BACK_MS (see RESULT_CLOCK_WENT_BACK).
+     * @return true if that is another hour than the one the state is counting into
+     */
+    boolean moveTo(StepStore store, long timeMillis) {
+        long now = clock.currentTimeMillis();
+        if (timeZoneCheckedAt < 0 || Math.abs(now - timeZoneCheckedAt) >= TIME_ZONE_CHECK_MS) {
+            calendar.setTimeZone(TimeZone.getDefault());
+            timeZoneCheckedAt = now;
+        }
+
+        calendar.setTimeInMillis(now);
+        todayKey = dayKey(calendar);
+        timeMillis = Math.min(timeMillis, now);
+
+        int latestHourKey;
+        if (state.hour.key >= 0) {
+            latestHourKey = state.hour.key;
+            if (latestTimeMillis - now > MAX_CLOCK_BACK_MS) {
+                rebaseValue = state.hour.offset + state.hour.steps - state.hour.buffer;
+                latestHourKey = -1;
+            }
+        }
+        else {
+            //Nothing counted since the start, the last stored hour is only trusted if it isn't far ahead
+            latestHourKey = store.lastKey(StepJournal.KIND_HOUR);
+            StepJournal.Bucket latest = latestHourKey >= 0 ? store.get(StepJournal.KIND_HOUR, latestHourKey) : null;
+            if (latest != null && startOfHour(latestHourKey) - now > MAX_CLOCK_BACK_MS) {
+                rebaseValue = latest.offset + latest.steps - latest.buffer;
+                latestHourKey = -1;
+            }
+        }
+        if (rebaseValue >= 0)
+            latestTimeMillis = timeMillis;
+        else
+            latestTimeMillis = Math.max(latestTimeMillis, timeMillis);
+
+        calendar.setTimeInMillis(timeMillis);
+        if (hourKey(calendar) < latestHourKey)
+            calendar.setTimeInMillis(startOfHour(latestHourKey));
+
+        dayKey = dayKey(calendar);
+        hourKey = hourKey(calendar);
+        return state.hour.key != hourKey;
+    }
+
+    /**
+     * @return true if moveTo() picked another day or hour than the state is counting into
+     */
+    boolean isNewPeriod() {
+        return state.day.key != dayKey || state.hour.key != hourKey;
+    }
+
+    /**
+     * Applies a counter value to the day and hour moveTo() picked and, if the day's steps changed,
+     * to the total. Buckets that are not in the state yet are loaded from the store.
+     * @return RESULT_* flags
+     */
+    int apply(StepStore store, int steps) {
+        int result = applyPeriod(store, steps, StepJournal.KIND_DAY, dayKey, state.day);
+        boolean dayChanged = (result & RESULT_REJECTED) == 0;
+        result |= applyPeriod(store, steps, StepJournal.KIND_HOUR, hourKey, state.hour);
+        if (rebaseValue >= 0) {
+            rebaseValue = -1;
+            result |= RESULT_CLOCK_WENT_BACK;
+        }
+
+        //The total follows the day bucket, the hour bucket is just a finer view of the same steps...
+        if (dayChanged) {
+            if (!state.totalLoaded) {
+                StepJournal.Bucket total = store.get(StepJournal.KIND_TOTAL, 0);
+                state.total = total != null ? total.steps : 0;
+                state.totalLoaded = true;
+            }
+            state.total += state.day.delta;
+            state.totalDirty = true;
+            state.unflushedSteps += Math.max(state.day.delta, 0);
+            result |= RESULT_COUNTED;
+        }
+        return result;
+    }
+
+    /**
+     * @return the day (yyyyMMdd) of the clock at the last moveTo()
+     */
+    int getTodayKey() {
+        return todayKey;
+    }
+
+    /**
+     * @return the hour (yyyyMMddHH) the last moveTo() picked
+     */
+    int getHourKey() {
+        return hourKey;
+    }
+
+    /**
+     * @return today's steps, 0 if the state is counting into another day
+     */
+    int getTodaySteps() {
+        return state.day.key == todayKey ? state.day.steps : 0;
+    }
+
+    private int applyPeriod(StepStore store, int steps, int kind, int currentKey, StepState.Period period) {
+        int result = 0;
+        int offset;
+        int buffer;
+        int oldSteps = 0;
+
+        if (period.key != currentKey) {
+            StepJournal.Bucket current = store.get(kind, currentKey);
+            if (current != null) {
+                period.set(currentKey, current.steps, current.offset, current.buffer);
+                period.flushedSteps = current.steps;
+            }
+            else {
+                period.key = -1;
+                period.flushedSteps = 0;
+            }
+        }
+
+        if (rebaseValue >= 0) {
+            //The clock went back: the period (a new one, or an older one counted before the clock
+            //went forward) gets the steps since the last value counted, in the periods left behind
+            oldSteps = period.key == currentKey ? period.steps : 0;
+            offset = rebaseValue;
+            buffer = oldSteps;
+            if (steps < offset) {
+                //...and the counter was reset since, all of its steps are new
+                offset = 0;
+                result |= RESULT_COUNTER_RESET;
+            }
+            if (period.key != currentKey)
+                result |= RESULT_NEW_PERIOD;
+        }
+        else if (period.key == currentKey) {
+            offset = period.offset;
+            oldSteps = period.steps;
+            buffer = period.buffer;
+
+            //The counter went back: it was reset (reboot) without the buffer being saved. The period
+            //keeps its steps and the value (the steps since the reset) is added to them...
+            int delta = (steps - offset + buffer) - oldSteps;
+            if (delta < 0) {
+                buffer = oldSteps + offset;
+                result |= RESULT_NEGATIVE_DELTA;
+            }
+        }
+        else {
+            //New day/hour: continue from the previous one, or start at this value
+            StepJournal.Bucket previous = store.get(kind, previousKey(kind));
+            if (previous != null && steps - previous.offset - previous.steps + previous.buffer >= 0) {
+                offset = previous.offset + previous.steps;
+                buffer = previous.buffer;
+            }
+            else if (previous != null) {
+                //The counter was reset since the previous one, all of its steps are new
+                offset = 0;
+                buffer = 0;
+                result |= RESULT_COUNTER_RESET;
+            }
+            else {
+                offset = steps;
+                buffer = 0;
+            }
+            result |= RESULT_NEW_PERIOD;
+        }
+
+        int newSteps = steps - offset + buffer;
+        if (newSteps < 0)
+            return result | RESULT_REJECTED; // Keep the old value, don't save anything
+
+        period.set(currentKey, newSteps, offset, buffer);
+        period.delta = newSteps - oldSteps;
+        period.dirty = true;
+        return result;
+    }
+
+    /* The start of an hour (yyyyMMddHH) in the current time zone, moves the calendar. */
+    private long startOfHour(int key) {
+        calendar.clear();
+        calendar.set(key / 1000000, (key / 10000) % 100 - 1, (key / 100) % 100, key % 100, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /* The day or hour before the given one, calculated in the calendar that moveTo() set to it. */
+    private int previousKey(int kind) {
+        boolean hour = kind == StepJournal.KIND_HOUR;
+        calendar.add(hour ? Calendar.HOUR_OF_DAY : Calendar.DATE, -1);
+        int previousKey = hour ? hourKey(calendar) : dayKey(calendar);
+        calendar.add(hour ? Calendar.HOUR_OF_DAY : Calendar.DATE, 1);
+        return previousKey;
+    }
+
+    //endregion
+}
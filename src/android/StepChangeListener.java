@@ -5,5 +5,15 @@ package com.mctechnologies.cordovapluginstepcounter;
  */
 public interface StepChangeListener {
 
-    void onChanged(float steps);
+    /**
+     * @param steps the cumulative step counter value
+     * @param timestamp SensorEvent.timestamp of the value, in the elapsedRealtimeNanos() time base
+     */
+    void onChanged(float steps, long timestamp);
+
+    /**
+     * Live mode only: the steps the step detector saw after the last counter value. They are not
+     * counted yet, the next counter value includes them.
+     */
+    void onProvisionalSteps(int steps);
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+/**
+ * The two clocks the step pipeline reads: the wall clock the steps are attributed to and the
+ * elapsed realtime the sensor timestamps are in. Replays and simulations substitute their own.
+ */
+interface StepClock {
+
+    /**
+     * @return the wall clock time, as System.currentTimeMillis()
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return the time since boot, as SystemClock.elapsedRealtimeNanos()
+     */
+    long elapsedRealtimeNanos();
+}
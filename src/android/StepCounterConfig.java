@@ -0,0 +1,237 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+/**
+ * Runtime options set from JavaScript through configure(). They are stored in the "StepCounterConfig"
+ * SharedPreferences and cached in memory. Only the step counter process writes them, configure()
+ * reaches it through StepCounterProvider. The app process reads them once on startup, for the
+ * logging options.
+ */
+final class StepCounterConfig {
+
+    //region Constants
+
+    private static final String TAG = "StepCounterConfig";
+    private static final String PREFERENCE_NAME = "StepCounterConfig";
+
+    static final String KEY_FLUSH_INTERVAL_MS = "flushIntervalMs";
+    static final String KEY_FLUSH_STEP_THRESHOLD = "flushStepThreshold";
+    static final String KEY_HOURLY_RETENTION_DAYS = "hourlyRetentionDays";
+    static final String KEY_DAILY_RETENTION_DAYS = "dailyRetentionDays";
+    static final String KEY_WEEKLY_RETENTION_WEEKS = "weeklyRetentionWeeks";
+    static final String KEY_MAX_REPORT_LATENCY_MS = "maxReportLatencyMs";
+    static final String KEY_LIVE_STEP_DETECTION = "liveStepDetection";
+    static final String KEY_RECORD_SENSOR_TRACE = "recordSensorTrace";
+    static final String KEY_NOTIFICATION_INTERVAL_MS = "notificationIntervalMs";
+    static final String KEY_LOG_LEVEL = "logLevel";
+    static final String KEY_LOG_SAMPLE_RATE = "logSampleRate";
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final long MIN_FLUSH_INTERVAL_MS = 1000;
+    private static final long MAX_FLUSH_INTERVAL_MS = 15 * 60 * 1000;
+    private static final int DEFAULT_FLUSH_STEP_THRESHOLD = 250;
+    private static final int MAX_FLUSH_STEP_THRESHOLD = 10000;
+    private static final int DEFAULT_HOURLY_RETENTION_DAYS = 31;
+    private static final int DEFAULT_DAILY_RETENTION_DAYS = 366;
+    private static final int DEFAULT_WEEKLY_RETENTION_WEEKS = 104;
+    private static final int MIN_HOURLY_RETENTION_DAYS = 2;
+    private static final int MAX_RETENTION_DAYS = 10 * 366;
+    private static final long DEFAULT_MAX_REPORT_LATENCY_MS = 0;
+    private static final long MAX_REPORT_LATENCY_MS = 10 * 60 * 1000;
+    private static final long DEFAULT_NOTIFICATION_INTERVAL_MS = 5000;
+    private static final long MAX_NOTIFICATION_INTERVAL_MS = 10 * 60 * 1000;
+    private static final String DEFAULT_LOG_LEVEL = "INFO";
+    private static final int DEFAULT_LOG_SAMPLE_RATE = 1;
+
+    //endregion
+
+    //region Variables
+
+    private static volatile long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private static volatile int flushStepThreshold = DEFAULT_FLUSH_STEP_THRESHOLD;
+    private static volatile int hourlyRetentionDays = DEFAULT_HOURLY_RETENTION_DAYS;
+    private static volatile int dailyRetentionDays = DEFAULT_DAILY_RETENTION_DAYS;
+    private static volatile int weeklyRetentionWeeks = DEFAULT_WEEKLY_RETENTION_WEEKS;
+    private static volatile long maxReportLatencyMs = DEFAULT_MAX_REPORT_LATENCY_MS;
+    private static volatile boolean liveStepDetection;
+    private static volatile boolean recordSensorTrace;
+    private static volatile long notificationIntervalMs = DEFAULT_NOTIFICATION_INTERVAL_MS;
+    private static volatile Runnable changeListener;
+
+    //endregion
+
+    private StepCounterConfig() {
+    }
+
+    //region Getters
+
+    /**
+     * @return the longest time counted steps stay in memory before they are written to disk
+     */
+    static long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * @return the number of unsaved steps that triggers a write before the flush interval is over
+     */
+    static int getFlushStepThreshold() {
+        return flushStepThreshold;
+    }
+
+    /**
+     * @return the number of days hourly history is kept before it is rolled up into days
+     */
+    static int getHourlyRetentionDays() {
+        return hourlyRetentionDays;
+    }
+
+    /**
+     * @return the number of days daily history is kept before it is rolled up into weeks
+     */
+    static int getDailyRetentionDays() {
+        return dailyRetentionDays;
+    }
+
+    /**
+     * @return the number of weeks weekly history is kept before it is rolled up into months
+     */
+    static int getWeeklyRetentionWeeks() {
+        return weeklyRetentionWeeks;
+    }
+
+    /**
+     * @return how long the step sensor may keep steps in its hardware FIFO before it reports them,
+     *         0 if batching is off
+     */
+    static long getMaxReportLatencyMs() {
+        return maxReportLatencyMs;
+    }
+
+    /**
+     * @return whether the step detector may be used for live updates while the app watches in the
+     *         foreground
+     */
+    static boolean isLiveStepDetection() {
+        return liveStepDetection;
+    }
+
+    /**
+     * @return the shortest time between two updates of the step count in the notification
+     */
+    static long getNotificationIntervalMs() {
+        return notificationIntervalMs;
+    }
+
+    /**
+     * @return whether the sensor input is recorded into a trace file, for replaying it off the device
+     */
+    static boolean isRecordSensorTrace() {
+        return recordSensorTrace;
+    }
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * @param listener called (on the calling thread of reload()) whenever the config was reloaded
+     */
+    static void setChangeListener(Runnable listener) {
+        changeListener = listener;
+    }
+
+    static void reload(@NonNull Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        flushIntervalMs = clamp(prefs.getLong(KEY_FLUSH_INTERVAL_MS, DEFAULT_FLUSH_INTERVAL_MS),
+                                MIN_FLUSH_INTERVAL_MS, MAX_FLUSH_INTERVAL_MS);
+        flushStepThreshold = (int) clamp(prefs.getInt(KEY_FLUSH_STEP_THRESHOLD, DEFAULT_FLUSH_STEP_THRESHOLD),
+                                         1, MAX_FLUSH_STEP_THRESHOLD);
+        hourlyRetentionDays = (int) clamp(prefs.getInt(KEY_HOURLY_RETENTION_DAYS, DEFAULT_HOURLY_RETENTION_DAYS),
+                                          MIN_HOURLY_RETENTION_DAYS, MAX_RETENTION_DAYS);
+        //Each tier must reach at least as far back as the finer one...
+        dailyRetentionDays = (int) clamp(prefs.getInt(KEY_DAILY_RETENTION_DAYS, DEFAULT_DAILY_RETENTION_DAYS),
+                                         hourlyRetentionDays, MAX_RETENTION_DAYS);
+        weeklyRetentionWeeks = (int) clamp(prefs.getInt(KEY_WEEKLY_RETENTION_WEEKS, DEFAULT_WEEKLY_RETENTION_WEEKS),
+                                           (dailyRetentionDays + 6) / 7, MAX_RETENTION_DAYS / 7);
+        maxReportLatencyMs = clamp(prefs.getLong(KEY_MAX_REPORT_LATENCY_MS, DEFAULT_MAX_REPORT_LATENCY_MS),
+                                   0, MAX_REPORT_LATENCY_MS);
+        liveStepDetection = prefs.getBoolean(KEY_LIVE_STEP_DETECTION, false);
+        recordSensorTrace = prefs.getBoolean(KEY_RECORD_SENSOR_TRACE, false);
+        notificationIntervalMs = clamp(prefs.getLong(KEY_NOTIFICATION_INTERVAL_MS, DEFAULT_NOTIFICATION_INTERVAL_MS),
+                                       0, MAX_NOTIFICATION_INTERVAL_MS);
+        StepLog.setLevel(prefs.getString(KEY_LOG_LEVEL, DEFAULT_LOG_LEVEL));
+        StepLog.setSampleRate(prefs.getInt(KEY_LOG_SAMPLE_RATE, DEFAULT_LOG_SAMPLE_RATE));
+        Log.i(TAG, "Config loaded. flushIntervalMs=" + flushIntervalMs + " flushStepThreshold=" + flushStepThreshold +
+                   " hourlyRetentionDays=" + hourlyRetentionDays + " dailyRetentionDays=" + dailyRetentionDays +
+                   " weeklyRetentionWeeks=" + weeklyRetentionWeeks + " maxReportLatencyMs=" + maxReportLatencyMs +
+                   " liveStepDetection=" + liveStepDetection +
+                   " recordSensorTrace=" + recordSensorTrace + " notificationIntervalMs=" + notificationIntervalMs +
+                   " logLevel=" + StepLog.getLevelName());
+
+        Runnable listener = changeListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Stores the known options of the given object (unknown ones are ignored) and reloads the config.
+     * @return false if the options could not be saved
+     */
+    static boolean save(@NonNull Context context, @NonNull JSONObject options) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (options.has(KEY_FLUSH_INTERVAL_MS))
+            editor.putLong(KEY_FLUSH_INTERVAL_MS, options.optLong(KEY_FLUSH_INTERVAL_MS, DEFAULT_FLUSH_INTERVAL_MS));
+        if (options.has(KEY_FLUSH_STEP_THRESHOLD))
+            editor.putInt(KEY_FLUSH_STEP_THRESHOLD, options.optInt(KEY_FLUSH_STEP_THRESHOLD, DEFAULT_FLUSH_STEP_THRESHOLD));
+        if (options.has(KEY_HOURLY_RETENTION_DAYS))
+            editor.putInt(KEY_HOURLY_RETENTION_DAYS, options.optInt(KEY_HOURLY_RETENTION_DAYS, DEFAULT_HOURLY_RETENTION_DAYS));
+        if (options.has(KEY_DAILY_RETENTION_DAYS))
+            editor.putInt(KEY_DAILY_RETENTION_DAYS, options.optInt(KEY_DAILY_RETENTION_DAYS, DEFAULT_DAILY_RETENTION_DAYS));
+        if (options.has(KEY_WEEKLY_RETENTION_WEEKS))
+            editor.putInt(KEY_WEEKLY_RETENTION_WEEKS, options.optInt(KEY_WEEKLY_RETENTION_WEEKS, DEFAULT_WEEKLY_RETENTION_WEEKS));
+        if (options.has(KEY_MAX_REPORT_LATENCY_MS))
+            editor.putLong(KEY_MAX_REPORT_LATENCY_MS, options.optLong(KEY_MAX_REPORT_LATENCY_MS,
+                                                                      DEFAULT_MAX_REPORT_LATENCY_MS));
+        if (options.has(KEY_LIVE_STEP_DETECTION))
+            editor.putBoolean(KEY_LIVE_STEP_DETECTION, options.optBoolean(KEY_LIVE_STEP_DETECTION, false));
+        if (options.has(KEY_RECORD_SENSOR_TRACE))
+            editor.putBoolean(KEY_RECORD_SENSOR_TRACE, options.optBoolean(KEY_RECORD_SENSOR_TRACE, false));
+        if (options.has(KEY_NOTIFICATION_INTERVAL_MS))
+            editor.putLong(KEY_NOTIFICATION_INTERVAL_MS, options.optLong(KEY_NOTIFICATION_INTERVAL_MS,
+                                                                         DEFAULT_NOTIFICATION_INTERVAL_MS));
+        applyLogOptions(options);
+        if (options.has(KEY_LOG_LEVEL))
+            editor.putString(KEY_LOG_LEVEL, StepLog.getLevelName());
+        if (options.has(KEY_LOG_SAMPLE_RATE))
+            editor.putInt(KEY_LOG_SAMPLE_RATE, options.optInt(KEY_LOG_SAMPLE_RATE, DEFAULT_LOG_SAMPLE_RATE));
+
+        boolean saved = editor.commit();
+        reload(context);
+        return saved;
+    }
+
+    /**
+     * Applies the logging options of the given object to this process only. The app process calls
+     * this after configure(), the step counter process gets them through save().
+     */
+    static void applyLogOptions(@NonNull JSONObject options) {
+        if (options.has(KEY_LOG_LEVEL))
+            StepLog.setLevel(options.optString(KEY_LOG_LEVEL, DEFAULT_LOG_LEVEL));
+        if (options.has(KEY_LOG_SAMPLE_RATE))
+            StepLog.setSampleRate(options.optInt(KEY_LOG_SAMPLE_RATE, DEFAULT_LOG_SAMPLE_RATE));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    //endregion
+}
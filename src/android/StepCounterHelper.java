@@ -2,16 +2,17 @@ package com.mctechnologies.cordovapluginstepcounter;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
-import android.util.Log;
+import android.util.JsonReader;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.channels.FileLock;
 import java.util.Calendar;
-import java.util.Date;
-import java.util.Locale;
 
 /**
  * Created by Digitalsunray Media GmbH. On 19.07.2018.
@@ -20,355 +21,607 @@ class StepCounterHelper {
 
     //region Constants
 
-    private static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
-    private static final String DEFAULT_DATE_HISTORY_PATTERN = "yyyy-MM-dd HH";
+    private static final String TAG = "StepCounterHelper";
     private static final String PREFERENCE_NAME = "UserData";
     private static final String PREF_KEY_PEDOMETER_DATA = "pedometerDayData";
     private static final String PREF_KEY_PEDOMETER_HISTORY_DATA = "pedometerHistoryData";
-    private static final String PREF_KEY_DEBUG_LOGS = "pedometerDebugLogs";
+    private static final String PREF_KEY_TOTAL_COUNT = "PEDOMETER_TOTAL_COUNT_PREF";
     private static final String PEDOMETER_DATA_STEPS = "steps";
     private static final String PEDOMETER_DATA_OFFSET = "offset";
     private static final String PEDOMETER_DATA_DAILY_BUFFER = "buffer";
-    private static final int MAX_LOG_ENTRIES = 500; // Keep last 500 log entries
+    private static final String JOURNAL_FILE_NAME = "pedometer.journal";
+    private static final String JOURNAL_LOCK_FILE_NAME = "pedometer.journal.lock";
+    private static final String MINUTES_FILE_NAME = "pedometer.minutes";
+    //Batched steps were taken at most this long before they were reported (see maxReportLatencyMs)
+    private static final long MIN_MINUTE_SPREAD_MS = 60 * 1000L;
+
+    //endregion
+
+    //region Variables
+
+    private static StepJournal journal;
+
+    //Buckets the service is counting into, written to the journal by flushSteps() (service process only)
+    private static final StepState STATE = new StepState();
+    private static final StepAccounting ACCOUNTING = new StepAccounting(STATE, new StepClock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    });
+    private static final StepLog.Sampler STEP_COUNTED_SAMPLER = new StepLog.Sampler();
+    private static int lastResult;
+
+    //Steps per minute of the last 24 hours, and when the steps counted last were taken
+    private static StepMinuteRing minuteRing;
+    private static long lastCountedMillis = -1;
 
     //endregion
 
     //region Static Methods
 
-    static Calendar getPreviousDate(String key) {
-        Calendar calendar = Calendar.getInstance();
-        if (key == PREF_KEY_PEDOMETER_HISTORY_DATA) {
-            calendar.add(Calendar.HOUR_OF_DAY, -1);
-            return calendar;
+    static int dayKey(@NonNull Calendar calendar) {
+        return StepAccounting.dayKey(calendar);
+    }
+
+    static int hourKey(@NonNull Calendar calendar) {
+        return StepAccounting.hourKey(calendar);
+    }
+
+    /**
+     * Returns the process wide step journal, migrating the legacy JSON data on first use.
+     * @param forWriting only the service process writes, every other caller gets a read-only view
+     *                   that is refreshed with the records appended since the previous call.
+     */
+    static synchronized StepJournal getJournal(@NonNull Context context, boolean forWriting) throws IOException {
+        if (journal != null && (journal.isWritable() || !forWriting)) {
+            journal.refresh();
+            return journal;
+        }
+
+        File directory = context.getFilesDir();
+        File file = new File(directory, JOURNAL_FILE_NAME);
+
+        //Both processes may get here first, the lock makes sure the migration runs only once...
+        try (RandomAccessFile lockFile = new RandomAccessFile(new File(directory, JOURNAL_LOCK_FILE_NAME), "rw");
+             FileLock ignored = lockFile.getChannel().lock()) {
+            if (!file.exists())
+                migrateLegacyData(context, file);
+
+            if (journal != null)
+                journal.close();
+            journal = StepJournal.open(file, forWriting);
         }
-        calendar.add(Calendar.DATE, -1);
-        return calendar;
+
+        return journal;
     }
 
-    static int cacheSteps(int steps, String format, String key, @NonNull Context context) {
-      int oldSteps = 0;
-      try {
-          int newSteps;
-          int offset;
-          int buffer = 0;
-
-          Date currentDate = new Date();
-          SimpleDateFormat dateFormatter = new SimpleDateFormat(format , Locale.getDefault());
-
-          String currentDateString = dateFormatter.format(currentDate);
-          SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
-                                                                                                  PREFERENCE_NAME);
-
-          JSONObject pData = new JSONObject();
-          JSONObject newData = new JSONObject();
-          if(sharedPref.contains(key)){
-              String pDataString = sharedPref.getString(key, "{}");
-              pData = new JSONObject(pDataString);
-          }
-
-          //Get the data previously stored for today
-          if (pData.has(currentDateString)) {
-              newData = pData.getJSONObject(currentDateString);
-              offset = newData.getInt(PEDOMETER_DATA_OFFSET);
-              oldSteps = newData.getInt(PEDOMETER_DATA_STEPS);
-
-              if (newData.has(PEDOMETER_DATA_DAILY_BUFFER)) //Backward compatibility check!
-                  buffer = newData.getInt(PEDOMETER_DATA_DAILY_BUFFER);
-
-              //Data validation/correction and normalization...
-              int delta = (steps - offset + buffer) - oldSteps;
-              if(delta < 0) {
-                  //We didn't save day's buffer properly!
-                  Log.w("StepCounterHelper", "STEP_ANOMALY: Negative delta detected. sensor=" + steps +
-                        " offset=" + offset + " buffer=" + buffer + " oldSteps=" + oldSteps +
-                        " delta=" + delta + " date=" + currentDateString);
-                  buffer += (Math.abs(delta) + 1);
-              }
-
-          } else {
-              // New day/hour started
-              Calendar calendar = getPreviousDate(key);
-              String previousDateString = dateFormatter.format(calendar.getTime());
-
-              if(pData.has(previousDateString)) {
-                  //Try to fetch the offset from previous data, if any....
-                  JSONObject previousData = pData.getJSONObject(previousDateString);
-                  offset = previousData.getInt(PEDOMETER_DATA_OFFSET) +
-                              previousData.getInt(PEDOMETER_DATA_STEPS);
-
-                  if (previousData.has(PEDOMETER_DATA_DAILY_BUFFER))
-                      buffer = previousData.getInt(PEDOMETER_DATA_DAILY_BUFFER);
-
-                  Log.d("StepCounterHelper", "NEW_PERIOD: Starting new period. sensor=" + steps +
-                        " inheritedOffset=" + offset + " inheritedBuffer=" + buffer +
-                        " prev=" + previousDateString + " current=" + currentDateString);
-              }
-              else {
-                  //Change offset for current count...
-                  offset = steps - oldSteps;
-                  Log.d("StepCounterHelper", "FIRST_RUN: No previous data. sensor=" + steps +
-                        " calculatedOffset=" + offset);
-              }
-          }
-
-          //Calculate the new steps ....
-          newSteps = steps - offset + buffer;
-
-          if(newSteps < 0) {
-              Log.e("StepCounterHelper", "STEP_NEGATIVE: Calculated negative steps. sensor=" + steps +
-                    " offset=" + offset + " buffer=" + buffer + " result=" + newSteps +
-                    " returning=" + oldSteps + " date=" + currentDateString);
-              return oldSteps; // Return old value but don't save anything
-          }
-
-          //Calculate the total steps...
-          int stepsCounted = getTotalCount(context);
-          int stepDelta = newSteps - oldSteps;
-          stepsCounted += stepDelta;
-
-          boolean totalSaveSuccess = setTotalCount(context, stepsCounted);
-          if (!totalSaveSuccess) {
-              Log.e("StepCounterHelper", "SAVE_FAILED: Failed to save total count. total=" + stepsCounted +
-                    " delta=" + stepDelta + " sensor=" + steps);
-          }
-
-          //Save calculated values to SharedPreferences
-          newData.put(PEDOMETER_DATA_STEPS, newSteps);
-          newData.put(PEDOMETER_DATA_OFFSET, offset);
-          newData.put(PEDOMETER_DATA_DAILY_BUFFER, buffer);
-          pData.put(currentDateString, newData);
-
-          // Only proceed if SharedPreferences save is successful
-          SharedPreferences.Editor editor = sharedPref.edit();
-          editor.putString(key, pData.toString());
-          boolean saveSuccess = editor.commit(); // Use commit() for multi-process synchronization
-
-          if (!saveSuccess) {
-              Log.e("StepCounterHelper", "SAVE_FAILED: Failed to save step data. sensor=" + steps +
-                    " newSteps=" + newSteps + " offset=" + offset + " buffer=" + buffer +
-                    " date=" + currentDateString);
-              return oldSteps; // Return old persisted value if save failed
-          }
-
-          Log.d("StepCounterHelper", "STEP_SAVED: sensor=" + steps + " daily=" + newSteps +
-                " total=" + stepsCounted + " delta=" + stepDelta + " date=" + currentDateString);
-          return newSteps; // Only return new value if successfully saved
-
-      } catch (Exception ex) {
-          Log.e("StepCounterHelper", "Exception in cacheSteps: " + ex.getMessage(), ex);
-          // Return the old persisted value if any error occurs
-          return oldSteps;
-      }
+    /**
+     * Applies a sensor value to the in-memory state (today, the current hour and the total). Nothing
+     * is written to disk here, except when a new day/hour starts while the previous one still has
+     * unsaved steps: those are flushed first, so every period ends up in the journal.
+     * @param timeMillis when the steps were taken (see StepTimeAttribution), the value is counted into
+     *                   that hour and day. Times before the hour currently counted into are counted
+     *                   into that hour, periods never go back.
+     * @return today's steps, see getLastResult() for how the value was counted
+     */
+    static synchronized int saveSteps(float sensorValue, long timeMillis, @NonNull Context context) {
+        int steps = Math.round(sensorValue);
+        try {
+            StepJournal stepJournal = getJournal(context, true);
+            boolean newHour = ACCOUNTING.moveTo(stepJournal, timeMillis);
+            if (STATE.isDirty() && ACCOUNTING.isNewPeriod())
+                flushSteps(context);
+
+            //Roll up the history that left its retention window, at most once per hour...
+            if (newHour) {
+                Calendar hour = StepRetention.calendarOf(ACCOUNTING.getHourKey() / 100);
+                hour.set(Calendar.HOUR_OF_DAY, ACCOUNTING.getHourKey() % 100);
+                applyRetention(stepJournal, hour);
+            }
+
+            int result = ACCOUNTING.apply(stepJournal, steps);
+            lastResult = result;
+            if ((result & StepAccounting.RESULT_COUNTED) != 0)
+                addToMinutes(context, STATE.day.delta, timeMillis);
+
+            if ((result & StepAccounting.RESULT_NEGATIVE_DELTA) != 0)
+                StepLog.w(TAG, "STEP_ANOMALY: Counter reset, buffer grown. sensor=%d daily=%d/%d+%d hourly=%d/%d+%d " +
+                          "date=%d", steps, STATE.day.steps, STATE.day.offset, STATE.day.buffer, STATE.hour.steps,
+                          STATE.hour.offset, STATE.hour.buffer, ACCOUNTING.getHourKey());
+            if ((result & StepAccounting.RESULT_REJECTED) != 0)
+                StepLog.e(TAG, null, "STEP_NEGATIVE: Calculated negative steps, value ignored. sensor=%d " +
+                          "daily=%d/%d+%d hourly=%d/%d+%d date=%d", steps, STATE.day.steps, STATE.day.offset,
+                          STATE.day.buffer, STATE.hour.steps, STATE.hour.offset, STATE.hour.buffer,
+                          ACCOUNTING.getHourKey());
+            if ((result & StepAccounting.RESULT_CLOCK_WENT_BACK) != 0)
+                StepLog.w(TAG, "CLOCK_WENT_BACK: Clock went back behind the last hour counted, counting moved to " +
+                          "the current time. sensor=%d daily=%d hourly=%d date=%d", steps, STATE.day.steps,
+                          STATE.hour.steps, ACCOUNTING.getHourKey());
+            if ((result & StepAccounting.RESULT_NEW_PERIOD) != 0 && StepLog.isLoggable(StepLog.DEBUG))
+                StepLog.d(TAG, "NEW_PERIOD: sensor=%d dailyOffset=%d hourlyOffset=%d buffer=%d date=%d", steps,
+                          STATE.day.offset, STATE.hour.offset, STATE.hour.buffer, ACCOUNTING.getHourKey());
+
+            if (StepLog.isLoggable(StepLog.DEBUG) && STEP_COUNTED_SAMPLER.sample())
+                StepLog.d(TAG, "STEP_COUNTED: sensor=%d daily=%d hourly=%d total=%d unflushed=%d date=%d", steps,
+                          STATE.day.steps, STATE.hour.steps, STATE.total, STATE.unflushedSteps, STATE.hour.key);
+            return ACCOUNTING.getTodaySteps();
+
+        } catch (Exception ex) {
+            StepLog.e(TAG, ex, "Exception in saveSteps");
+            return STATE.day.steps;
+        }
     }
 
-    static int saveSteps(float sensorValue, @NonNull Context context) {
+    /**
+     * @return the last counter value counted into the latest day, 0 if there is none or it was
+     *         saved as a buffer (saveDailyBuffer()). The software step counter continues from it.
+     */
+    static synchronized int getLastCounterValue(@NonNull Context context) {
         try {
-            int steps = Math.round(sensorValue);
-            int daySteps = cacheSteps(steps, DEFAULT_DATE_PATTERN, PREF_KEY_PEDOMETER_DATA, context);
-            cacheSteps(steps, DEFAULT_DATE_HISTORY_PATTERN, PREF_KEY_PEDOMETER_HISTORY_DATA, context);
-            return daySteps;
+            StepJournal.Bucket day = null;
+            if (STATE.day.key < 0) {
+                StepJournal stepJournal = getJournal(context, true);
+                int lastDayKey = stepJournal.lastKey(StepJournal.KIND_DAY);
+                day = lastDayKey >= 0 ? stepJournal.get(StepJournal.KIND_DAY, lastDayKey) : null;
+                if (day == null)
+                    return 0;
+            }
+
+            //A period's steps are value - offset + buffer...
+            int value = day != null ? day.steps + day.offset - day.buffer
+                                    : STATE.day.steps + STATE.day.offset - STATE.day.buffer;
+            return Math.max(0, value);
         }
-        catch (Exception ex) {
-            ex.printStackTrace();
+        catch (IOException ex) {
+            StepLog.e(TAG, ex, "Failed to read the last counter value");
+            return 0;
         }
+    }
 
-        return 0;
+    /**
+     * @return the StepAccounting.RESULT_* flags of the last value saveSteps() applied
+     */
+    static synchronized int getLastResult() {
+        return lastResult;
     }
 
-    static int getTodaySteps(@NonNull Context context){
-        Date currentDate = new Date();
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(DEFAULT_DATE_PATTERN, Locale.getDefault());
+    /* Spreads the steps over the minutes since the previous value, at most over the report latency. */
+    private static void addToMinutes(@NonNull Context context, int steps, long timeMillis) {
+        long spreadMs = Math.max(StepCounterConfig.getMaxReportLatencyMs(), MIN_MINUTE_SPREAD_MS);
+        long fromMillis = Math.max(lastCountedMillis, timeMillis - spreadMs);
+        lastCountedMillis = timeMillis;
+        getMinuteRing(context, false).add(fromMillis, timeMillis, steps);
+    }
 
-        String currentDateString = dateFormatter.format(currentDate);
-        SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
-                                                                                                PREFERENCE_NAME);
+    /**
+     * Returns the process wide minute ring, read from its file on first use.
+     * @param reload re-read the file, for processes that don't count the steps themselves
+     */
+    private static StepMinuteRing getMinuteRing(@NonNull Context context, boolean reload) {
+        if (minuteRing != null && !reload)
+            return minuteRing;
 
-        if(sharedPref.contains(PREF_KEY_PEDOMETER_DATA)){
-            String pDataString = sharedPref.getString(PREF_KEY_PEDOMETER_DATA,"{}");
-            try{
-                JSONObject pData = new JSONObject(pDataString);
-                //Get the information previously stored for today...
-                if(pData.has(currentDateString))
-                    return pData.getJSONObject(currentDateString).getInt(PEDOMETER_DATA_STEPS);
-            }
-            catch (Exception ex){
-                ex.printStackTrace();
+        StepMinuteRing ring = new StepMinuteRing();
+        try {
+            ring.load(new File(context.getFilesDir(), MINUTES_FILE_NAME));
+        }
+        catch (IOException ex) {
+            StepLog.w(TAG, "Failed to read the step minutes: %s", ex.getMessage());
+        }
+        minuteRing = ring;
+        return ring;
+    }
+
+    private static void applyRetention(@NonNull StepJournal stepJournal, @NonNull Calendar now) {
+        try {
+            int count = StepRetention.apply(stepJournal, now, StepCounterConfig.getHourlyRetentionDays(),
+                                            StepCounterConfig.getDailyRetentionDays(),
+                                            StepCounterConfig.getWeeklyRetentionWeeks());
+            if (count > 0)
+                StepLog.i(TAG, "RETENTION: Rolled up %d buckets. remaining=%d", count, stepJournal.size());
+        }
+        catch (IOException ex) {
+            StepLog.e(TAG, ex, "RETENTION: Failed to roll up history");
+        }
+    }
+
+    /**
+     * @return the number of counted steps which are not on disk yet
+     */
+    static synchronized int getUnflushedSteps() {
+        return STATE.unflushedSteps;
+    }
+
+    /**
+     * Writes the dirty parts of the in-memory state (day, hour and total) to the journal as one
+     * transaction (one write, one sync), so they can never disagree after a crash.
+     * @return the time the commit took in nanoseconds, 0 if there was nothing to write, -1 on failure
+     */
+    static synchronized long flushSteps(@NonNull Context context) {
+        if (!STATE.isDirty())
+            return 0;
+
+        try {
+            StepJournal stepJournal = getJournal(context, true);
+            StepSummary.ensureBuilt(stepJournal);
+            if (STATE.day.dirty) {
+                stepJournal.stage(StepJournal.KIND_DAY, STATE.day.key, STATE.day.steps, STATE.day.offset,
+                                  STATE.day.buffer);
+                StepSummary.stageDelta(stepJournal, STATE.day.key, STATE.day.steps - STATE.day.flushedSteps);
             }
+            if (STATE.hour.dirty)
+                stepJournal.stage(StepJournal.KIND_HOUR, STATE.hour.key, STATE.hour.steps, STATE.hour.offset,
+                                  STATE.hour.buffer);
+            if (STATE.totalDirty)
+                stepJournal.stage(StepJournal.KIND_TOTAL, 0, STATE.total, 0, 0);
+
+            int flushedSteps = STATE.unflushedSteps;
+            long commitNanos = stepJournal.commit(true);
+            STATE.markFlushed(System.currentTimeMillis());
+            if (minuteRing != null)
+                minuteRing.save(new File(context.getFilesDir(), MINUTES_FILE_NAME));
+
+            if (StepLog.isLoggable(StepLog.DEBUG))
+                StepLog.d(TAG, "STEP_SAVED: daily=%d hourly=%d total=%d flushedSteps=%d date=%d commitUs=%d " +
+                          "avgCommitUs=%d", STATE.day.steps, STATE.hour.steps, STATE.total, flushedSteps,
+                          STATE.hour.key, commitNanos / 1000,
+                          stepJournal.getTotalCommitNanos() / stepJournal.getCommitCount() / 1000);
+            return commitNanos;
+
+        } catch (Exception ex) {
+            StepLog.e(TAG, ex, "SAVE_FAILED: Failed to save step data. daily=%d hourly=%d total=%d",
+                      STATE.day.steps, STATE.hour.steps, STATE.total);
+            return -1;
+        }
+    }
+
+    /**
+     * @return today's steps, or -1 if nothing has been recorded for today yet
+     */
+    static synchronized int getTodaySteps(@NonNull Context context){
+        int todayKey = dayKey(Calendar.getInstance());
+        if (STATE.day.key == todayKey)
+            return STATE.day.steps;
+
+        try {
+            StepJournal.Bucket today = getJournal(context, false).get(StepJournal.KIND_DAY, todayKey);
+            if (today != null)
+                return today.steps;
+        }
+        catch (Exception ex){
+            StepLog.e(TAG, ex, "Failed to read today's steps");
+        }
+
+        return -1;
+    }
+
+    static synchronized int getTotalCount(@NonNull Context context){
+        if (STATE.totalLoaded)
+            return STATE.total;
+
+        try {
+            StepJournal.Bucket total = getJournal(context, false).get(StepJournal.KIND_TOTAL, 0);
+            if (total != null)
+                return total.steps;
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Failed to read the total steps");
         }
 
         return 0;
     }
 
-    static int getTotalCount(@NonNull Context context){
-        int totalCount = 0;
-        SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
-                                                                                                PREFERENCE_NAME);
+    /**
+     * @return today's steps (-1 if none yet) and the total steps, taken under one lock so a sensor
+     *         update can't fall between the two
+     */
+    static synchronized int[] getSteps(@NonNull Context context) {
+        return new int[] { getTodaySteps(context), getTotalCount(context) };
+    }
 
-        if(sharedPref.contains("PEDOMETER_TOTAL_COUNT_PREF"))
-            totalCount = sharedPref.getInt("PEDOMETER_TOTAL_COUNT_PREF", 0);
+    /**
+     * Renders the history in the JSON format getHistory() has always returned, oldest first:
+     * {"yyyy-MM-dd HH": {"steps": X, "offset": Y, "buffer": Z}, ...}
+     * Only the hours within the hourly retention window, what is rolled up is in getHistoryRange().
+     */
+    static synchronized String getHistoryJson(@NonNull Context context) {
+        try {
+            flushSteps(context);
+            return StepHistoryQuery.historyJson(getJournal(context, false));
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Failed to read step history");
+        }
 
-        return totalCount;
+        return "{}";
     }
 
-    private static boolean setTotalCount(@NonNull Context context, Integer newValue){
-        SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
-                                                                                                PREFERENCE_NAME);
+    /**
+     * Returns the buckets changed since the cursor of an earlier call with the new cursor, for an
+     * incremental sync, see StepHistoryQuery.changesJson().
+     */
+    static synchronized String getChangesJson(@NonNull Context context, long cursor) {
+        try {
+            flushSteps(context);
+            return StepHistoryQuery.changesJson(getJournal(context, false), cursor);
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Failed to read step changes");
+        }
+
+        return null;
+    }
+
+    /**
+     * Answers the total of the day, ISO week, month or year that contains timeMillis with one bucket
+     * lookup, including the steps not written to disk yet.
+     * @return the summary as JSON, see StepSummary.toJson()
+     */
+    static synchronized String getSummaryJson(@NonNull Context context, int period, long timeMillis) {
+        int dayKey = StepSummary.dayKeyOf(timeMillis);
+        int key = StepSummary.periodKey(period, dayKey);
+        int steps = 0;
+        try {
+            StepJournal stepJournal = getJournal(context, false);
+            if (stepJournal.isWritable())
+                StepSummary.ensureBuilt(stepJournal);
+            StepJournal.Bucket bucket = stepJournal.get(StepSummary.kindOf(period), key);
+            if (bucket != null)
+                steps = bucket.steps;
+
+            //The service's day in memory may be ahead of the journal...
+            if (STATE.day.key >= 0 && StepSummary.periodKey(period, STATE.day.key) == key)
+                steps += STATE.day.steps - STATE.day.flushedSteps;
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Failed to read step summary");
+        }
 
-        SharedPreferences.Editor sharedPrefEditor = sharedPref.edit();
-        sharedPrefEditor.putInt("PEDOMETER_TOTAL_COUNT_PREF", newValue);
-        return sharedPrefEditor.commit(); // Use commit() for multi-process synchronization
+        return StepSummary.toJson(period, key, steps);
     }
 
-    static void saveDailyBuffer(@NonNull Context context) {
+    /**
+     * Returns the steps per minute of the last "minutes" minutes (at most 24 hours) up to toMillis
+     * with the cadence derived from them, see StepMinuteRing.toJson().
+     */
+    static synchronized String getMinutesJson(@NonNull Context context, long toMillis, int minutes) {
+        boolean counting = false;
+        try {
+            counting = getJournal(context, false).isWritable();
+        }
+        catch (IOException ex) {
+            StepLog.w(TAG, "Failed to open the step journal: %s", ex.getMessage());
+        }
+        return getMinuteRing(context, !counting).toJson(toMillis, minutes);
+    }
+
+    /**
+     * Sums up the history between fromMillis (inclusive) and toMillis (exclusive) per hour, day,
+     * week or month, see StepHistoryQuery.
+     */
+    static synchronized String getHistoryRangeJson(@NonNull Context context, long fromMillis, long toMillis,
+                                                   int granularity) {
+        try {
+            flushSteps(context);
+            StepJournal stepJournal = getJournal(context, false);
+            Calendar from = Calendar.getInstance();
+            from.setTimeInMillis(fromMillis);
+            Calendar to = Calendar.getInstance();
+            to.setTimeInMillis(toMillis);
+            return StepHistoryQuery.queryJson(stepJournal, from, to, granularity);
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Failed to query step history");
+        }
+
+        return "{}";
+    }
+
+    static synchronized void saveDailyBuffer(@NonNull Context context) {
         try {
             //NOTE: this method MUST be used, in case of phone shutdown/reboot...
-            Date currentDate = new Date();
-            SimpleDateFormat dateFormatter = new SimpleDateFormat(DEFAULT_DATE_PATTERN, Locale.getDefault());
-
-            String currentDateString = dateFormatter.format(currentDate);
-            SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
-                                                                                                    PREFERENCE_NAME);
-
-            SharedPreferences.Editor editor = sharedPref.edit();
-
-            if(sharedPref.contains(PREF_KEY_PEDOMETER_DATA)){
-                JSONObject data = new JSONObject(sharedPref.getString(PREF_KEY_PEDOMETER_DATA,"{}"));
-                if (data.has(currentDateString)) {
-                    JSONObject dayData = data.getJSONObject(currentDateString);
-                    int steps = dayData.getInt(PEDOMETER_DATA_STEPS);
-
-                    if(steps >= 0) {
-                        //Save calculated values to the private preferences ...
-                        dayData.put(PEDOMETER_DATA_STEPS, steps);
-                        dayData.put(PEDOMETER_DATA_OFFSET, 0);
-                        dayData.put(PEDOMETER_DATA_DAILY_BUFFER, steps);
-                        data.put(currentDateString, dayData);
-
-                        editor.putString(PREF_KEY_PEDOMETER_DATA, data.toString());
-                        boolean dayBufferSaved = editor.commit(); // Use commit() for multi-process synchronization
-                        if (!dayBufferSaved) {
-                            Log.e("StepCounterHelper", "BUFFER_SAVE_FAILED: Failed to save daily buffer. steps=" +
-                                  steps + " date=" + currentDateString);
-                        } else {
-                            Log.i("StepCounterHelper", "BUFFER_SAVED: Daily buffer saved. steps=" + steps +
-                                  " date=" + currentDateString);
-                        }
-                    }
-                }
+            flushSteps(context);
+
+            StepJournal stepJournal = getJournal(context, true);
+            Calendar calendar = Calendar.getInstance();
+            int currentDayKey = dayKey(calendar);
+            int currentHourKey = hourKey(calendar);
+
+            //Day and hour buffers go into the same transaction, like the regular step updates...
+            StepJournal.Bucket dayData = stepJournal.get(StepJournal.KIND_DAY, currentDayKey);
+            int daySteps = dayData != null ? dayData.steps : -1;
+            if (daySteps >= 0)
+                stepJournal.stage(StepJournal.KIND_DAY, currentDayKey, daySteps, 0, daySteps);
+
+            StepJournal.Bucket historyData = stepJournal.get(StepJournal.KIND_HOUR, currentHourKey);
+            int hourSteps = historyData != null ? historyData.steps : -1;
+            if (hourSteps >= 0)
+                stepJournal.stage(StepJournal.KIND_HOUR, currentHourKey, hourSteps, 0, hourSteps);
+
+            try {
+                long commitNanos = stepJournal.commit(true);
+                StepLog.i(TAG, "BUFFER_SAVED: Daily buffer saved. steps=%d hourSteps=%d date=%d commitUs=%d",
+                          daySteps, hourSteps, currentHourKey, commitNanos / 1000);
+            } catch (IOException ex) {
+                StepLog.e(TAG, ex, "BUFFER_SAVE_FAILED: Failed to save daily buffer. steps=%d hourSteps=%d date=%d",
+                          daySteps, hourSteps, currentHourKey);
             }
 
-            if(sharedPref.contains(PREF_KEY_PEDOMETER_HISTORY_DATA)){
-                JSONObject data = new JSONObject(sharedPref.getString(PREF_KEY_PEDOMETER_HISTORY_DATA,"{}"));
-                if (data.has(currentDateString)) {
-                    JSONObject historyData = data.getJSONObject(currentDateString);
-                    int steps = historyData.getInt(PEDOMETER_DATA_STEPS);
-
-                    if(steps >= 0) {
-                        //Save calculated values to the private preferences ...
-                        historyData.put(PEDOMETER_DATA_STEPS, steps);
-                        historyData.put(PEDOMETER_DATA_OFFSET, 0);
-                        historyData.put(PEDOMETER_DATA_DAILY_BUFFER, steps);
-                        data.put(currentDateString, historyData);
-
-                        editor.putString(PREF_KEY_PEDOMETER_HISTORY_DATA, data.toString());
-                        boolean historyBufferSaved = editor.commit(); // Use commit() for multi-process synchronization
-                        if (!historyBufferSaved) {
-                            Log.e("StepCounterHelper", "BUFFER_SAVE_FAILED: Failed to save history buffer. steps=" +
-                                  steps + " date=" + currentDateString);
-                        }
-                    }
-                }
-            }
+            //The buckets changed under the in-memory state, reload them on the next sensor event...
+            STATE.invalidate();
         }
         catch (Exception ex) {
-            ex.printStackTrace();
+            StepLog.e(TAG, ex, "BUFFER_SAVE_FAILED: Failed to save daily buffer");
         }
     }
 
+    //endregion
+
+    //region Legacy Migration
+
     /**
-     * Logs a message to SharedPreferences for persistent debugging
-     * @param context Application context
-     * @param level Log level (INFO, ERROR, WARN, DEBUG)
-     * @param tag Tag/component name
-     * @param message Log message
+     * One-time migration of the JSON blobs previously kept in the "UserData" SharedPreferences.
+     * The JSON is streamed into a replacement journal, in transactions as large as possible and
+     * without syncing them: it only becomes the journal once it is complete and synced (once), the
+     * legacy keys are removed afterwards. An interrupted migration starts over.
      */
-    static void logToPrefs(@NonNull Context context, String level, String tag, String message) {
+    private static void migrateLegacyData(@NonNull Context context, @NonNull File file) throws IOException {
+        SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context,
+                                                                                                PREFERENCE_NAME);
+        int days;
+        int hours;
+        StepJournal target = StepJournal.openReplacement(file);
         try {
-            SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context, PREFERENCE_NAME);
-
-            // Get existing logs
-            JSONArray logs;
-            if (sharedPref.contains(PREF_KEY_DEBUG_LOGS)) {
-                String logsString = sharedPref.getString(PREF_KEY_DEBUG_LOGS, "[]");
-                logs = new JSONArray(logsString);
-            } else {
-                logs = new JSONArray();
+            days = migrateLegacyKey(sharedPref, PREF_KEY_PEDOMETER_DATA, StepJournal.KIND_DAY, target);
+            hours = migrateLegacyKey(sharedPref, PREF_KEY_PEDOMETER_HISTORY_DATA, StepJournal.KIND_HOUR, target);
+            if (sharedPref.contains(PREF_KEY_TOTAL_COUNT)) {
+                if (target.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                    target.commit(false);
+                target.stage(StepJournal.KIND_TOTAL, 0, sharedPref.getInt(PREF_KEY_TOTAL_COUNT, 0), 0, 0);
             }
+        }
+        catch (IOException | RuntimeException ex) {
+            target.close();
+            throw ex;
+        }
+        target.install(file);
+
+        //The journal is now the source of truth, don't keep reloading the old blobs with UserData...
+        sharedPref.edit()
+                  .remove(PREF_KEY_PEDOMETER_DATA)
+                  .remove(PREF_KEY_PEDOMETER_HISTORY_DATA)
+                  .remove(PREF_KEY_TOTAL_COUNT)
+                  .commit();
+
+        StepLog.i(TAG, "MIGRATION: Step journal created. days=%d hours=%d", days, hours);
+    }
+
+    private static int migrateLegacyKey(@NonNull SharedPreferences sharedPref, @NonNull String key, int kind,
+                                        @NonNull StepJournal target) throws IOException {
+        String json = sharedPref.getString(key, null);
+        if (json == null)
+            return 0;
 
-            // Create new log entry
-            JSONObject logEntry = new JSONObject();
-            SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
-            logEntry.put("timestamp", dateFormatter.format(new Date()));
-            logEntry.put("level", level);
-            logEntry.put("tag", tag);
-            logEntry.put("message", message);
-
-            // Add to logs array
-            logs.put(logEntry);
-
-            // Keep only last MAX_LOG_ENTRIES
-            if (logs.length() > MAX_LOG_ENTRIES) {
-                JSONArray trimmedLogs = new JSONArray();
-                int startIndex = logs.length() - MAX_LOG_ENTRIES;
-                for (int i = startIndex; i < logs.length(); i++) {
-                    trimmedLogs.put(logs.get(i));
+        int count = 0;
+        boolean writing = false;
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int bucketKey = parseLegacyKey(reader.nextName(), kind);
+                int steps = 0;
+                int offset = 0;
+                int buffer = 0;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String field = reader.nextName();
+                    if (PEDOMETER_DATA_STEPS.equals(field))
+                        steps = reader.nextInt();
+                    else if (PEDOMETER_DATA_OFFSET.equals(field))
+                        offset = reader.nextInt();
+                    else if (PEDOMETER_DATA_DAILY_BUFFER.equals(field))
+                        buffer = reader.nextInt();
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+
+                if (bucketKey > 0) {
+                    writing = true;
+                    if (target.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                        target.commit(false);
+                    target.stage(kind, bucketKey, steps, offset, buffer);
+                    writing = false;
+                    count++;
                 }
-                logs = trimmedLogs;
             }
+            reader.endObject();
+        }
+        catch (IOException | RuntimeException ex) {
+            //A failed write fails the migration, it is retried from scratch on the next start
+            if (writing)
+                throw ex;
 
-            // Save back to SharedPreferences
-            SharedPreferences.Editor editor = sharedPref.edit();
-            editor.putString(PREF_KEY_DEBUG_LOGS, logs.toString());
-            editor.commit();
+            //Keep whatever was readable, the legacy code couldn't parse a corrupt blob either...
+            StepLog.e(TAG, ex, "MIGRATION: Failed to parse %s after %d entries", key, count);
+        }
+        finally {
+            reader.close();
+        }
 
-            // Also log to Android logcat
-            Log.d(tag, "[" + level + "] " + message);
+        return count;
+    }
 
-        } catch (Exception ex) {
-            Log.e("StepCounterHelper", "Failed to write to persistent log: " + ex.getMessage(), ex);
+    /**
+     * Converts a legacy "yyyy-MM-dd" / "yyyy-MM-dd HH" key (formatted with the default locale, so
+     * the digits are not necessarily ASCII) to its numeric bucket key, or -1 if it doesn't fit.
+     */
+    private static int parseLegacyKey(@NonNull String key, int kind) {
+        int value = 0;
+        int digits = 0;
+        for (int i = 0; i < key.length(); i++) {
+            int digit = Character.digit(key.charAt(i), 10);
+            if (digit >= 0) {
+                value = value * 10 + digit;
+                digits++;
+            }
         }
+
+        int expectedDigits = kind == StepJournal.KIND_HOUR ? 10 : 8;
+        return digits == expectedDigits ? value : -1;
+    }
+
+    //endregion
+
+    //region Persistent Logs
+
+    /**
+     * Logs a message to logcat and the persistent log (see StepLog, the entry is written asynchronously)
+     * @param context Application context
+     * @param level Log level (INFO, ERROR, WARN, DEBUG)
+     * @param tag Tag/component name
+     * @param message Log message
+     */
+    static void logToPrefs(@NonNull Context context, String level, String tag, String message) {
+        int messageLevel = StepLog.parseLevel(level);
+        if (!StepLog.isLoggable(messageLevel < 0 ? StepLog.INFO : messageLevel))
+            return;
+
+        StepLog.init(context);
+        StepLog.log(messageLevel < 0 ? StepLog.INFO : messageLevel, tag, null, message);
     }
 
     /**
-     * Retrieves all logs from SharedPreferences
+     * Retrieves all logs from the log ring
      * @param context Application context
      * @return JSON string of all logs
      */
     static String getLogs(@NonNull Context context) {
         try {
-            SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context, PREFERENCE_NAME);
-            if (sharedPref.contains(PREF_KEY_DEBUG_LOGS)) {
-                return sharedPref.getString(PREF_KEY_DEBUG_LOGS, "[]");
-            }
+            return StepLog.readJson(context);
         } catch (Exception ex) {
-            Log.e("StepCounterHelper", "Failed to read persistent logs: " + ex.getMessage(), ex);
+            StepLog.e(TAG, ex, "Failed to read persistent logs");
         }
         return "[]";
     }
 
     /**
-     * Clears all logs from SharedPreferences
+     * Clears all logs from the log ring
      * @param context Application context
      */
     static void clearLogs(@NonNull Context context) {
         try {
-            SharedPreferences sharedPref = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(context, PREFERENCE_NAME);
-            SharedPreferences.Editor editor = sharedPref.edit();
-            editor.remove(PREF_KEY_DEBUG_LOGS);
-            editor.commit();
-            Log.d("StepCounterHelper", "Persistent logs cleared");
+            StepLog.clear(context);
+            StepLog.d(TAG, "Persistent logs cleared");
         } catch (Exception ex) {
-            Log.e("StepCounterHelper", "Failed to clear persistent logs: " + ex.getMessage(), ex);
+            StepLog.e(TAG, ex, "Failed to clear persistent logs");
         }
     }
 
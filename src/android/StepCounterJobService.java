@@ -50,7 +50,7 @@ public class StepCounterJobService extends JobService {
         }
 
         // Check if device supports step counting
-        if (!deviceHasStepCounter(getPackageManager())) {
+        if (!StepSensorManager.canCountSteps(getPackageManager())) {
             Log.w(TAG, "Device does not support step counting, skipping restart");
             prefs.edit().putBoolean("service_was_running", false).apply();
             jobFinished(params, false);
@@ -80,10 +80,6 @@ public class StepCounterJobService extends JobService {
         jobFinished(params, false);
     }
 
-    private static boolean deviceHasStepCounter(PackageManager pm) {
-        return Build.VERSION.SDK_INT >= 19 && pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_COUNTER);
-    }
-
     /**
      * Schedule a job to restart the step counter service after boot
      */
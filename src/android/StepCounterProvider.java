@@ -0,0 +1,330 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+/**
+ * Runs in the step counter process (see plugin.xml) and gives the UI process a synchronous channel
+ * into it. Reads are answered from the service's in-memory state under the same lock the sensor
+ * updates take, so the UI never has to reload files and never sees half of an update.
+ * Only {@link #call(String, String, Bundle)} is used, there is no table to query.
+ */
+public class StepCounterProvider extends ContentProvider {
+
+    //region Constants
+
+    private static final String TAG = "StepCounterProvider";
+    private static final String AUTHORITY_SUFFIX = ".cordovapluginstepcounter";
+
+    static final String METHOD_CONFIGURE = "configure";
+    static final String METHOD_WATCH = "watch";
+    static final String METHOD_GET_STEPS = "get_steps";
+    static final String METHOD_GET_HISTORY = "get_history";
+    static final String METHOD_GET_HISTORY_RANGE = "get_history_range";
+    static final String METHOD_GET_SUMMARY = "get_summary";
+    static final String METHOD_GET_MINUTES = "get_minutes";
+    static final String METHOD_GET_CHANGES = "get_changes";
+    static final String METHOD_GET_METRICS = "get_metrics";
+    static final String METHOD_RESET_METRICS = "reset_metrics";
+
+    static final String KEY_TODAY_STEPS = "todaySteps";
+    static final String KEY_TOTAL_STEPS = "totalSteps";
+    static final String KEY_JSON = "json";
+    static final String KEY_SAVED = "saved";
+    static final String KEY_FROM = "from";
+    static final String KEY_TO = "to";
+    static final String KEY_GRANULARITY = "granularity";
+    static final String KEY_FLUSH_TIMEOUT_MS = "flushTimeoutMs";
+    static final String KEY_FLUSHED = "flushed";
+    static final String KEY_FOREGROUND = "foreground";
+    static final String KEY_PERIOD = "period";
+    static final String KEY_TIME = "time";
+    static final String KEY_MINUTES = "minutes";
+    static final String KEY_CURSOR = "cursor";
+
+    private static final long MAX_FLUSH_TIMEOUT_MS = 5000;
+
+    //endregion
+
+    //region Static Methods
+
+    static Uri getUri(@NonNull Context context) {
+        return Uri.parse("content://" + context.getPackageName() + AUTHORITY_SUFFIX);
+    }
+
+    /**
+     * Calls into the step counter process. Failures are logged, the caller falls back to whatever is
+     * already on disk.
+     * @return the result bundle, or null if the call failed
+     */
+    static Bundle callService(@NonNull Context context, @NonNull String method) {
+        return callService(context, method, null);
+    }
+
+    static Bundle callService(@NonNull Context context, @NonNull String method, String arg) {
+        return callService(context, method, arg, null);
+    }
+
+    static Bundle callService(@NonNull Context context, @NonNull String method, String arg, Bundle extras) {
+        try {
+            return context.getContentResolver().call(getUri(context), method, arg, extras);
+        }
+        catch (Exception ex) {
+            Log.w(TAG, "Call " + method + " failed: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return today's steps (-1 if none yet) and the total steps, as one consistent snapshot
+     */
+    static int[] getSteps(@NonNull Context context) {
+        return getSteps(context, 0);
+    }
+
+    /**
+     * @param flushTimeoutMs if positive, the step sensor is flushed first (see StepSensorManager.flushAndWait)
+     *                       and the answer waits up to this long for the steps the sensor held back
+     */
+    static int[] getSteps(@NonNull Context context, long flushTimeoutMs) {
+        Bundle extras = new Bundle();
+        extras.putLong(KEY_FLUSH_TIMEOUT_MS, flushTimeoutMs);
+
+        Bundle result = callService(context, METHOD_GET_STEPS, null, extras);
+        if (result != null)
+            return new int[] { result.getInt(KEY_TODAY_STEPS, -1), result.getInt(KEY_TOTAL_STEPS, 0) };
+
+        //The step counter process can't be reached, what is on disk is the best we have...
+        return StepCounterHelper.getSteps(context);
+    }
+
+    static String getHistoryJson(@NonNull Context context) {
+        Bundle result = callService(context, METHOD_GET_HISTORY);
+        if (result != null && result.containsKey(KEY_JSON))
+            return result.getString(KEY_JSON);
+        return StepCounterHelper.getHistoryJson(context);
+    }
+
+    static String getHistoryRangeJson(@NonNull Context context, long fromMillis, long toMillis, int granularity) {
+        Bundle extras = new Bundle();
+        extras.putLong(KEY_FROM, fromMillis);
+        extras.putLong(KEY_TO, toMillis);
+        extras.putInt(KEY_GRANULARITY, granularity);
+
+        Bundle result = callService(context, METHOD_GET_HISTORY_RANGE, null, extras);
+        if (result != null && result.containsKey(KEY_JSON))
+            return result.getString(KEY_JSON);
+        return StepCounterHelper.getHistoryRangeJson(context, fromMillis, toMillis, granularity);
+    }
+
+    static String getSummaryJson(@NonNull Context context, int period, long timeMillis) {
+        Bundle extras = new Bundle();
+        extras.putInt(KEY_PERIOD, period);
+        extras.putLong(KEY_TIME, timeMillis);
+
+        Bundle result = callService(context, METHOD_GET_SUMMARY, null, extras);
+        if (result != null && result.containsKey(KEY_JSON))
+            return result.getString(KEY_JSON);
+        return StepCounterHelper.getSummaryJson(context, period, timeMillis);
+    }
+
+    static String getMinutesJson(@NonNull Context context, long toMillis, int minutes) {
+        Bundle extras = new Bundle();
+        extras.putLong(KEY_TO, toMillis);
+        extras.putInt(KEY_MINUTES, minutes);
+
+        Bundle result = callService(context, METHOD_GET_MINUTES, null, extras);
+        if (result != null && result.containsKey(KEY_JSON))
+            return result.getString(KEY_JSON);
+        return StepCounterHelper.getMinutesJson(context, toMillis, minutes);
+    }
+
+    /**
+     * @return the buckets changed since the cursor, null if the journal could not be read
+     */
+    static String getChangesJson(@NonNull Context context, long cursor) {
+        Bundle extras = new Bundle();
+        extras.putLong(KEY_CURSOR, cursor);
+
+        Bundle result = callService(context, METHOD_GET_CHANGES, null, extras);
+        if (result != null && result.containsKey(KEY_JSON))
+            return result.getString(KEY_JSON);
+        return StepCounterHelper.getChangesJson(context, cursor);
+    }
+
+    /**
+     * @return the metrics of the step counter process (see StepMetrics.toJson()), null if it can't be reached
+     */
+    static String getMetricsJson(@NonNull Context context) {
+        Bundle result = callService(context, METHOD_GET_METRICS);
+        return result != null ? result.getString(KEY_JSON) : null;
+    }
+
+    /**
+     * @return false if the step counter process can't be reached
+     */
+    static boolean resetMetrics(@NonNull Context context) {
+        return callService(context, METHOD_RESET_METRICS) != null;
+    }
+
+    /**
+     * Stores the options in the step counter process, which owns the config.
+     * @return false if the options could not be saved
+     */
+    static boolean configure(@NonNull Context context, @NonNull JSONObject options) {
+        Bundle result = callService(context, METHOD_CONFIGURE, options.toString());
+        return result != null && result.getBoolean(KEY_SAVED, false);
+    }
+
+    //endregion
+
+    //region ContentProvider
+
+    @Override
+    public boolean onCreate() {
+        Context context = getContext();
+        if (context != null) {
+            StepLog.init(context);
+            StepCounterConfig.reload(context);
+        }
+        return true;
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        Context context = getContext();
+        if (context == null)
+            return null;
+
+        Bundle result = new Bundle();
+        if (METHOD_GET_STEPS.equals(method)) {
+            long flushTimeoutMs = extras != null ? Math.min(extras.getLong(KEY_FLUSH_TIMEOUT_MS), MAX_FLUSH_TIMEOUT_MS) : 0;
+            if (flushTimeoutMs > 0)
+                result.putBoolean(KEY_FLUSHED, flushSensor(flushTimeoutMs));
+
+            int[] steps = StepCounterHelper.getSteps(context);
+            result.putInt(KEY_TODAY_STEPS, steps[0]);
+            result.putInt(KEY_TOTAL_STEPS, steps[1]);
+        }
+        else if (METHOD_GET_HISTORY.equals(method)) {
+            result.putString(KEY_JSON, StepCounterHelper.getHistoryJson(context));
+        }
+        else if (METHOD_GET_HISTORY_RANGE.equals(method)) {
+            if (extras == null)
+                return null;
+            result.putString(KEY_JSON, StepCounterHelper.getHistoryRangeJson(context, extras.getLong(KEY_FROM),
+                                                                             extras.getLong(KEY_TO),
+                                                                             extras.getInt(KEY_GRANULARITY)));
+        }
+        else if (METHOD_GET_SUMMARY.equals(method)) {
+            if (extras == null)
+                return null;
+            result.putString(KEY_JSON, StepCounterHelper.getSummaryJson(context, extras.getInt(KEY_PERIOD),
+                                                                        extras.getLong(KEY_TIME)));
+        }
+        else if (METHOD_GET_MINUTES.equals(method)) {
+            if (extras == null)
+                return null;
+            result.putString(KEY_JSON, StepCounterHelper.getMinutesJson(context, extras.getLong(KEY_TO),
+                                                                        extras.getInt(KEY_MINUTES)));
+        }
+        else if (METHOD_GET_CHANGES.equals(method)) {
+            if (extras == null)
+                return null;
+            result.putString(KEY_JSON, StepCounterHelper.getChangesJson(context, extras.getLong(KEY_CURSOR)));
+        }
+        else if (METHOD_GET_METRICS.equals(method)) {
+            result.putString(KEY_JSON, StepMetrics.toJson());
+        }
+        else if (METHOD_RESET_METRICS.equals(method)) {
+            StepMetrics.reset();
+        }
+        else if (METHOD_CONFIGURE.equals(method)) {
+            try {
+                result.putBoolean(KEY_SAVED, StepCounterConfig.save(context, new JSONObject(arg)));
+            }
+            catch (Exception ex) {
+                Log.w(TAG, "Invalid configuration: " + arg);
+                result.putBoolean(KEY_SAVED, false);
+            }
+        }
+        else if (METHOD_WATCH.equals(method)) {
+            //arg: the smallest update interval of the app's watches, -1 when there are none left
+            try {
+                long minIntervalMs = arg != null ? Long.parseLong(arg) : -1;
+                StepUpdateBroadcaster.setMinIntervalMs(minIntervalMs);
+                //The step detector only runs for watches of the app in the foreground
+                StepCounterService.setLiveRequested(minIntervalMs >= 0 &&
+                                                    (extras == null || extras.getBoolean(KEY_FOREGROUND, true)));
+            }
+            catch (NumberFormatException ex) {
+                Log.w(TAG, "Invalid watch interval: " + arg);
+                return null;
+            }
+        }
+        else {
+            Log.w(TAG, "Unknown method: " + method);
+            return null;
+        }
+
+        return result;
+    }
+
+    /* Pulls the steps the sensor holds back in its FIFO into the in-memory state, waiting up to the timeout. */
+    private static boolean flushSensor(long timeoutMs) {
+        StepSensorManager sensorManager = StepCounterService.getActiveSensorManager();
+        if (sensorManager == null)
+            return false;
+
+        long start = System.nanoTime();
+        try {
+            //The flushed events go through the service's writer before they are counted...
+            boolean flushed = sensorManager.flushAndWait(timeoutMs) &&
+                              StepCounterService.awaitQueuedSteps(
+                                      Math.max(1, timeoutMs - (System.nanoTime() - start) / 1000000));
+            StepLog.d(TAG, "Sensor flush %s after %dus", flushed ? "completed" : "timed out",
+                      (System.nanoTime() - start) / 1000);
+            return flushed;
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(@NonNull Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    //endregion
+}
@@ -24,42 +24,118 @@ package com.mctechnologies.cordovapluginstepcounter;
 
  */
 
-import android.annotation.SuppressLint;
 import android.app.AlarmManager;
 import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
-import androidx.core.app.NotificationCompat;
 import android.util.Log;
-import android.widget.RemoteViews;
 
-import java.util.Locale;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class StepCounterService extends Service implements StepChangeListener {
 
     //region Constants
 
     private static final int NOTIFICATION_ID = 777;
+    private static final String TRACE_FILE_NAME = "pedometer.trace";
     //endregion
 
     //region Variables
 
-    private final String TAG = "StepCounterService";
+    private static final String TAG = "StepCounterService";
+    private final StepLog.Sampler STEP_UPDATE_SAMPLER = new StepLog.Sampler();
     private static boolean isRunning = false;
+    //The running service's sensor, for the provider's on-demand flush
+    private static volatile StepSensorManager activeSensorManager;
+    //Whether the app watches the steps in the foreground, live mode also needs to be configured
+    private static volatile boolean liveRequested;
     private StepSensorManager stepSensorManager;
-    private NotificationCompat.Builder builder;
+    private boolean recordingTrace;
+    private StepNotificationRenderer notificationRenderer;
     private StepCounterShutdownReceiver stepCounterShutdownReceiver;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    //Single writer: sensor values are counted and flushed here, never on the main or sensor thread
+    private static volatile ScheduledThreadPoolExecutor activeWriter;
+    private ScheduledThreadPoolExecutor writer;
+    private ScheduledFuture<?> scheduledFlush;
+    private final AtomicBoolean stepsQueued = new AtomicBoolean();
+    private final Object latestLock = new Object();
+    private final StepValueQueue latestValues = new StepValueQueue();
+    private final float[] queuedValues = new float[StepValueQueue.CAPACITY];
+    private final long[] queuedTimestamps = new long[StepValueQueue.CAPACITY];
+    private final StepTimeAttribution timeAttribution = new StepTimeAttribution();
+    private final float[] attributedValues = new float[StepTimeAttribution.MAX_POINTS];
+    private final long[] attributedTimes = new long[StepTimeAttribution.MAX_POINTS];
+    private final Runnable saveLatestSteps = new Runnable() {
+        @Override
+        public void run() {
+            //Values that came in meanwhile were coalesced, the latest (cumulative) one of each hour counts
+            int count;
+            synchronized (latestLock) {
+                stepsQueued.set(false);
+                count = latestValues.drainTo(queuedValues, queuedTimestamps);
+            }
+            for (int i = 0; i < count; i++)
+                saveSteps(queuedValues[i], queuedTimestamps[i]);
+        }
+    };
+    //Main thread: the last counted steps and what the watches were shown, provisional steps included
+    private int lastSavedSteps = -1;
+    private int lastTotalSteps;
+    private int lastShownSavedSteps = -1;
+    private int lastShownSteps;
+
+    //Writer thread: the next sensor value isn't spread back over the time before it
+    private final Runnable resetTimeAttributionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            timeAttribution.reset();
+        }
+    };
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduledFlush = null;
+            StepCounterHelper.flushSteps(StepCounterService.this);
+        }
+    };
+
+    //configure() reloads the config on a binder thread, the sensor is re-registered on the main thread
+    private final Runnable configChangeListener = new Runnable() {
+        @Override
+        public void run() {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    int maxReportLatencyUs = (int) (StepCounterConfig.getMaxReportLatencyMs() * 1000);
+                    if (stepSensorManager != null && stepSensorManager.setMaxReportLatencyUs(maxReportLatencyUs))
+                        resetTimeAttribution();
+                    applyLiveMode();
+                    applyTraceRecording();
+                }
+            });
+        }
+    };
 
     //endregion
 
@@ -75,6 +151,7 @@ public class StepCounterService extends Service implements StepChangeListener {
     @Override
     public void onCreate() {
         super.onCreate();
+        StepLog.init(this);
         Log.i(TAG, "StepCounterService: onCreate() is called!");
         StepCounterHelper.logToPrefs(this, "INFO", TAG, "onCreate called, isRunning=" + isRunning);
 
@@ -114,8 +191,18 @@ public class StepCounterService extends Service implements StepChangeListener {
             Log.i(TAG, "StepCounterService: Registering STEP_DETECTOR sensor...");
             StepCounterHelper.logToPrefs(this, "INFO", TAG, "doInit: Registering step sensor");
 
+            StepCounterConfig.reload(this);
+            StepCounterConfig.setChangeListener(configChangeListener);
+
+            startWriter();
+            resetTimeAttribution();
+
             stepSensorManager = new StepSensorManager();
-            stepSensorManager.start(this, this, SensorManager.SENSOR_DELAY_NORMAL);
+            stepSensorManager.start(this, this, SensorManager.SENSOR_DELAY_NORMAL,
+                                    (int) (StepCounterConfig.getMaxReportLatencyMs() * 1000));
+            activeSensorManager = stepSensorManager;
+            applyLiveMode();
+            applyTraceRecording();
 
             //Start foreground service with an sticky notification...
             startForegroundService();
@@ -159,6 +246,12 @@ public class StepCounterService extends Service implements StepChangeListener {
             //Stop listening to events when stop() is called
             if(stepSensorManager != null)
                 stepSensorManager.stop();
+            activeSensorManager = null;
+            StepCounterConfig.setChangeListener(null);
+
+            //Count the queued sensor values and write the steps still kept in memory...
+            stopWriter();
+            StepCounterHelper.flushSteps(this);
 
             //Unregister shutdown/reboot broadcast receiver!
             if(stepCounterShutdownReceiver != null) {
@@ -196,6 +289,13 @@ public class StepCounterService extends Service implements StepChangeListener {
     @Override
     public void onDestroy(){
         Log.i(TAG, "StepCounterService: onDestroy() is called!");
+        if (stepSensorManager != null)
+            stepSensorManager.stop();
+        stopWriter();
+        StepCounterHelper.flushSteps(this);
+        if (notificationRenderer != null)
+            notificationRenderer.stop();
+        StepLog.flush();
         super.onDestroy();
     }
 
@@ -203,112 +303,252 @@ public class StepCounterService extends Service implements StepChangeListener {
 
     //region Methods
 
-    /* Used to build and start foreground service. */
-    @SuppressLint("DiscouragedApi")
-    private void startForegroundService()
-    {
-        Log.d(TAG, "StepCounterService: Starting the foreground service...");
-        PackageManager pm = getPackageManager();
-        ApplicationInfo appInfo = getApplicationInfo();
-        String appName = pm.getApplicationLabel(appInfo).toString();
-        int appIconRes = getResources().getIdentifier("ic_notification", "drawable", getPackageName());
-        int baseFlags = PendingIntent.FLAG_UPDATE_CURRENT;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-          baseFlags |= PendingIntent.FLAG_IMMUTABLE;
+    /**
+     * @return the step sensor of the running service in this process, or null
+     */
+    static StepSensorManager getActiveSensorManager() {
+        return activeSensorManager;
+    }
+
+    /**
+     * Turns the step detector on while the app watches the steps in the foreground (and live step
+     * detection is configured), off otherwise. Called from the provider on a binder thread.
+     */
+    static void setLiveRequested(boolean requested) {
+        liveRequested = requested;
+        applyLiveMode();
+    }
+
+    private static void applyLiveMode() {
+        StepSensorManager sensorManager = activeSensorManager;
+        if (sensorManager != null)
+            sensorManager.setLiveMode(liveRequested && StepCounterConfig.isLiveStepDetection());
+    }
+
+    /* Main thread: starts or stops recording the sensor trace as configured. */
+    private void applyTraceRecording() {
+        if (stepSensorManager == null)
+            return;
+
+        boolean record = StepCounterConfig.isRecordSensorTrace();
+        if (record == recordingTrace)
+            return;
+        recordingTrace = record;
+        stepSensorManager.setTraceFile(record ? new File(getFilesDir(), TRACE_FILE_NAME) : null);
+    }
+
+    /**
+     * Main thread, on shutdown: unregisters the sensor and lets the writer count the values queued so
+     * far before it stops. Nothing is counted afterwards, while saveDailyBuffer() moves the day's steps
+     * into the buffer (offset 0) a late value would add the whole counter value to the day.
+     */
+    static void stopCounting() {
+        StepSensorManager sensorManager = activeSensorManager;
+        activeSensorManager = null;
+        if (sensorManager != null)
+            sensorManager.stop();
+
+        ScheduledThreadPoolExecutor executor = activeWriter;
+        activeWriter = null;
+        if (executor == null)
+            return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(2, TimeUnit.SECONDS))
+                Log.w(TAG, "stopCounting: Writer did not finish in time");
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
-        builder = new NotificationCompat.Builder(this, createChannel())
-          .setSmallIcon(appIconRes)
-          .setContentTitle(appName)   // shown if the system decides not to use your custom RemoteViews
-          .setContentText("")
-          .setOngoing(true)
-          .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
-          .setPriority(NotificationCompat.PRIORITY_MAX)
-          .setContentIntent(
-            PendingIntent.getActivity(
-              this, 1110,
-              getPackageManager().getLaunchIntentForPackage(getPackageName()),
-              baseFlags
-            )
-          );
-
-        //custom notification UI...
-        RemoteViews views = new RemoteViews(getPackageName(), getResources().getIdentifier( "sticky_notification",
-                                                                                            "layout",
-                                                                                            getPackageName()));
-      int id = getResources().getIdentifier("mct_sc_notification_steps", "string", getPackageName());
-      String stepsText = String.format(getString(id), 0);
-      views.setTextViewText(getResources().getIdentifier( "tvSteps",
-        "id",
-        getPackageName()), stepsText);
-      builder
-        .setCustomContentView(views)
-        .setCustomBigContentView(views)
-        .setStyle(new NotificationCompat.DecoratedCustomViewStyle());
-
-      Notification notification = builder.build();
-
-      // Start foreground service...
-      startForeground(NOTIFICATION_ID, notification);
     }
 
-    @SuppressLint("DiscouragedApi")
-    private void updateNotification(int steps){
-        Log.d(TAG, "StepCounterService: Updating the notification ...");
-        RemoteViews views = new RemoteViews(getPackageName(), getResources().getIdentifier( "sticky_notification",
-                                                                                            "layout",
-                                                                                            getPackageName()));
-      int id = getResources().getIdentifier("mct_sc_notification_steps", "string", getPackageName());
-      String stepsText = String.format(getString(id), steps);
-      views.setTextViewText(getResources().getIdentifier( "tvSteps",
-        "id",
-        getPackageName()), stepsText);
-      builder
-        .setCustomContentView(views)
-        .setCustomBigContentView(views)
-        .setStyle(new NotificationCompat.DecoratedCustomViewStyle());
-
-        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        if(manager != null)
-            manager.notify(NOTIFICATION_ID, builder.build());
+    /**
+     * Waits until the sensor values queued so far were counted into the in-memory state.
+     * @return false if there is no running service or the timeout elapsed
+     */
+    static boolean awaitQueuedSteps(long timeoutMs) throws InterruptedException {
+        ScheduledThreadPoolExecutor executor = activeWriter;
+        if (executor == null)
+            return false;
+
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (ExecutionException | TimeoutException | RejectedExecutionException ex) {
+            return false;
+        }
     }
 
-    @NonNull
-    private String createChannel() {
-      String channelId   = getPackageName() + ".steps";
-      String channelName = "Step Counter Updates";
-
-      NotificationManager mgr =
-        (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-
-      if (mgr != null) {
-        NotificationChannel channel = new NotificationChannel(
-          channelId,
-          channelName,
-          NotificationManager.IMPORTANCE_HIGH    // ← HIGH for heads-up
-        );
-        channel.enableLights(false);
-        channel.setVibrationPattern(new long[]{0});
-        channel.enableVibration(false);
-        channel.setSound(null, null);
-        channel.setShowBadge(false);
-        mgr.createNotificationChannel(channel);
-      }
-
-      return channelId;
+    private void startWriter() {
+        if (writer != null && !writer.isShutdown())
+            return;
+
+        writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                return new Thread(runnable, "StepCounterWriter");
+            }
+        });
+        //On shutdown the queued values are counted, the delayed flush is replaced by the final one
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        activeWriter = writer;
     }
 
+    /* Main thread: resets the time attribution on the writer, after the values queued so far. */
+    private void resetTimeAttribution() {
+        ScheduledThreadPoolExecutor executor = writer;
+        if (executor == null)
+            return;
+        try {
+            executor.execute(resetTimeAttributionRunnable);
+        }
+        catch (RejectedExecutionException ignored) {
+            //Stopping, the next start resets it again
+        }
+    }
+
+    /* Lets the writer count the queued sensor values and stops it. */
+    private void stopWriter() {
+        if (writer == null)
+            return;
+
+        if (activeWriter == writer)
+            activeWriter = null;
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(2, TimeUnit.SECONDS))
+                Log.w(TAG, "StepCounterService: Writer did not finish in time");
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        scheduledFlush = null;
+    }
+
+    /*
+     * Writer thread: counts a sensor value into the hour(s) its steps were taken in and hands the
+     * result to the main thread for the UI.
+     */
+    private void saveSteps(float steps, long timestamp) {
+        long timeMillis = StepTimeAttribution.toWallClock(timestamp, System.currentTimeMillis(),
+                                                          SystemClock.elapsedRealtimeNanos());
+        int points = timeAttribution.attribute(steps, timeMillis, attributedValues, attributedTimes);
+        int saved = 0;
+        for (int i = 0; i < points; i++)
+            saved = StepCounterHelper.saveSteps(attributedValues[i], attributedTimes[i], this);
+        //The counter was reset or the clock went back: the steps since the previous value can't be spread
+        if ((StepCounterHelper.getLastResult() & (StepAccounting.RESULT_NEGATIVE_DELTA |
+                                                  StepAccounting.RESULT_COUNTER_RESET |
+                                                  StepAccounting.RESULT_CLOCK_WENT_BACK)) != 0)
+            timeAttribution.reset(steps, timeMillis);
+        if (points > 1 && StepLog.isLoggable(StepLog.DEBUG))
+            StepLog.d(TAG, "Steps up to %s spread over %d hours, event age %dms", steps, points,
+                      System.currentTimeMillis() - timeMillis);
+
+        final int savedSteps = saved;
+        final int totalSteps = StepCounterHelper.getTotalCount(this);
+        scheduleFlush();
+        if (StepLog.isLoggable(StepLog.INFO) && STEP_UPDATE_SAMPLER.sample())
+            StepLog.i(TAG, "onChanged: Sensor=%s Daily=%d", steps, savedSteps);
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                lastSavedSteps = savedSteps;
+                lastTotalSteps = totalSteps;
+                StepSensorManager sensorManager = stepSensorManager;
+                showSteps(savedSteps, totalSteps, sensorManager != null ? sensorManager.getProvisionalSteps() : 0);
+                if (notificationRenderer != null)
+                    notificationRenderer.update(savedSteps);
+            }
+        });
+    }
+
+    /*
+     * Main thread: pushes the counted steps plus the provisional ones to the watches. The counter
+     * reports the steps the detector already showed a bit later, the shown count doesn't go back
+     * meanwhile (only on a new day, when the counted steps drop).
+     */
+    private void showSteps(int savedSteps, int totalSteps, int provisionalSteps) {
+        int shown = savedSteps + provisionalSteps;
+        if (savedSteps >= lastShownSavedSteps && shown < lastShownSteps)
+            shown = lastShownSteps;
+        lastShownSavedSteps = savedSteps;
+        lastShownSteps = shown;
+        StepUpdateBroadcaster.onStepsChanged(this, shown, totalSteps + (shown - savedSteps));
+    }
+
+    /* Writer thread: flushes once enough steps are pending, otherwise makes sure a delayed flush is scheduled. */
+    private void scheduleFlush() {
+        if (StepCounterHelper.getUnflushedSteps() >= StepCounterConfig.getFlushStepThreshold()) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            StepCounterHelper.flushSteps(this);
+        }
+        else if (scheduledFlush == null) {
+            scheduledFlush = writer.schedule(flushRunnable, StepCounterConfig.getFlushIntervalMs(),
+                                             TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /* Used to build and start foreground service. */
+    private void startForegroundService()
+    {
+        Log.d(TAG, "StepCounterService: Starting the foreground service...");
+        notificationRenderer = new StepNotificationRenderer(this, NOTIFICATION_ID);
+        Notification notification = notificationRenderer.start();
+
+        // Start foreground service...
+        startForeground(NOTIFICATION_ID, notification);
+    }
 
   //endregion
 
     //region Sensor Event Handlers
 
     @Override
-    public void onChanged(float steps) {
-        //Step history changed, let's save it...
-        int savedSteps = StepCounterHelper.saveSteps(steps, this);
-        Log.i(TAG, "STEP_UPDATE: Sensor=" + steps + " Daily=" + savedSteps);
-        StepCounterHelper.logToPrefs(this, "INFO", TAG, "onChanged: Sensor=" + steps + " Daily=" + savedSteps);
-        updateNotification(savedSteps);
+    public void onChanged(float steps, long timestamp) {
+        //Sensor thread: hand the value to the writer, values that come in before it ran are coalesced...
+        boolean queue;
+        boolean coalesced;
+        synchronized (latestLock) {
+            coalesced = latestValues.add(steps, timestamp, System.currentTimeMillis(),
+                                         SystemClock.elapsedRealtimeNanos());
+            queue = stepsQueued.compareAndSet(false, true);
+        }
+        if (coalesced)
+            StepMetrics.count(StepMetrics.EVENTS_COALESCED);
+        if (!queue)
+            return;
+
+        ScheduledThreadPoolExecutor executor = writer;
+        try {
+            if (executor == null)
+                throw new RejectedExecutionException("Writer not started");
+            executor.execute(saveLatestSteps);
+        }
+        catch (RejectedExecutionException ex) {
+            stepsQueued.set(false);
+        }
+    }
+
+    @Override
+    public void onProvisionalSteps(final int steps) {
+        //Sensor thread: only shown to the watches, the next counter value counts them...
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (lastSavedSteps >= 0)
+                    showSteps(lastSavedSteps, lastTotalSteps, steps);
+            }
+        });
     }
 
     //endregion
@@ -17,10 +17,14 @@ public class StepCounterShutdownReceiver extends BroadcastReceiver {
         Log.i(TAG, "Device shutdown detected");
         StepCounterHelper.logToPrefs(context, "INFO", TAG, "Device shutdown detected, saving buffer");
 
-        //Stop sensor manager to prevent race condition ...
-        context.stopService(new Intent(context, StepCounterService.class));
+        //Nothing may be counted between the buffer and the power going, stop the sensor and the writer now...
+        StepCounterService.stopCounting();
 
-        //Let's save today's step buffer...
+        //Let's save today's step buffer (the steps the service still keeps in memory are written first)...
         StepCounterHelper.saveDailyBuffer(context);
+        context.stopService(new Intent(context, StepCounterService.class));
+
+        //The log writer is a daemon thread, write what it hasn't yet before the power goes...
+        StepLog.flush();
     }
 }
\ No newline at end of file
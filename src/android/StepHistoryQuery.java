@@ -0,0 +1,257 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Answers history range queries straight from the journal's key-ordered indexes: only the buckets
+ * that overlap the requested window are visited, and they are summed up natively per hour, day,
+ * ISO week or month.
+ *
+ * Buckets that were already rolled up by StepRetention are counted whole when they overlap the
+ * window, and can't be split into a finer granularity (e.g. a rolled up week has no days): they are
+ * returned at their own granularity instead, so the steps of a window always add up.
+ */
+final class StepHistoryQuery {
+
+    //region Constants
+
+    static final int GRANULARITY_HOUR = 0;
+    static final int GRANULARITY_DAY = 1;
+    static final int GRANULARITY_WEEK = 2;
+    static final int GRANULARITY_MONTH = 3;
+
+    private static final String[] GRANULARITY_NAMES = { "hour", "day", "week", "month" };
+    private static final int[] LABEL_KINDS = {
+            StepJournal.KIND_HOUR, StepJournal.KIND_HISTORY_DAY, StepJournal.KIND_HISTORY_WEEK,
+            StepJournal.KIND_HISTORY_MONTH
+    };
+
+    //endregion
+
+    //region Variables
+
+    private final int granularity;
+    //Totals by the granularity they are returned at, the requested one or a coarser one...
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final TreeMap<Integer, int[]>[] totals = new TreeMap[GRANULARITY_MONTH + 1];
+
+    //Hours and days of the same week come in runs, so the week of the last day is remembered...
+    private int lastDayKey = -1;
+    private int lastWeekKey = -1;
+
+    //endregion
+
+    private StepHistoryQuery(int granularity) {
+        this.granularity = granularity;
+        for (int i = granularity; i <= GRANULARITY_MONTH; i++)
+            totals[i] = new TreeMap<>();
+    }
+
+    //region Static Methods
+
+    /**
+     * @return the granularity constant for "hour", "day", "week" or "month", or -1 if unknown
+     */
+    static int parseGranularity(String granularity) {
+        for (int i = 0; i < GRANULARITY_NAMES.length; i++) {
+            if (GRANULARITY_NAMES[i].equals(granularity))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Sums up the steps between from (inclusive) and to (exclusive) and renders them as
+     * {"label": {"steps": X}, ...} in chronological order, labelled like changesJson() does. Rolled
+     * up buckets coarser than the granularity come first, e.g. "2024-W05": {"steps": X,
+     * "granularity": "week"} in a query per day.
+     */
+    static String queryJson(@NonNull StepJournal journal, @NonNull Calendar from, @NonNull Calendar to,
+                            int granularity) {
+        StepHistoryQuery query = new StepHistoryQuery(granularity);
+        query.aggregate(journal, from, to);
+        return query.toJson();
+    }
+
+    /**
+     * Renders the hours as getHistory() returns them, with their offset and buffer. The rolled up
+     * history is left out, queryJson() returns it.
+     */
+    static String historyJson(@NonNull StepJournal journal) {
+        StringBuilder json = new StringBuilder(journal.size(StepJournal.KIND_HOUR) * 56 + 2);
+        json.append('{');
+        for (StepJournal.Bucket bucket : journal.range(StepJournal.KIND_HOUR, 0, Integer.MAX_VALUE).values()) {
+            if (json.length() > 1)
+                json.append(',');
+            json.append('"');
+            appendPeriodKey(json, StepJournal.KIND_HOUR, bucket.key);
+            json.append("\":{\"steps\":").append(bucket.steps)
+                .append(",\"offset\":").append(bucket.offset)
+                .append(",\"buffer\":").append(bucket.buffer).append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Renders the buckets changed after the cursor (a sequence number a previous call returned, 0 for
+     * everything) as
+     * {"cursor": N, "reset": false, "hours": {"yyyy-MM-dd HH": {"steps": X}, ...}, "days": {...},
+     *  "weeks": {...}, "months": {...}}
+     * with the new cursor. Days are the counted days, weeks and months what retention rolled up.
+     * Buckets retention removed are not reported, the app keeps what it synced. A cursor ahead of the
+     * journal (its data was cleared) returns everything with "reset": true.
+     *
+     * The payload is proportional to the changes, finding them is one pass over the buckets (a few
+     * thousand at most) without allocating any per bucket.
+     */
+    static String changesJson(@NonNull StepJournal journal, long cursor) {
+        boolean reset = cursor > journal.getSeq();
+        if (reset)
+            cursor = 0;
+
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"cursor\":").append(journal.getSeq()).append(",\"reset\":").append(reset);
+        appendChanges(json, "hours", journal, StepJournal.KIND_HOUR, cursor);
+        appendChanges(json, "days", journal, StepJournal.KIND_DAY, cursor);
+        appendChanges(json, "weeks", journal, StepJournal.KIND_HISTORY_WEEK, cursor);
+        appendChanges(json, "months", journal, StepJournal.KIND_HISTORY_MONTH, cursor);
+        return json.append('}').toString();
+    }
+
+    /**
+     * Appends a bucket key formatted as "yyyy-MM-dd HH" (hours), "yyyy-MM-dd" (days), "yyyy-Www"
+     * (weeks) or "yyyy-MM" (months).
+     */
+    static void appendPeriodKey(@NonNull StringBuilder target, int kind, int key) {
+        if (kind == StepJournal.KIND_HISTORY_WEEK) {
+            StepRetention.appendWeekLabel(target, key);
+            return;
+        }
+        if (kind == StepJournal.KIND_HISTORY_MONTH) {
+            target.append(key / 100).append('-');
+            appendTwoDigits(target, key % 100);
+            return;
+        }
+
+        int dayKey = kind == StepJournal.KIND_HOUR ? key / 100 : key;
+        target.append(dayKey / 10000).append('-');
+        appendTwoDigits(target, (dayKey / 100) % 100);
+        target.append('-');
+        appendTwoDigits(target, dayKey % 100);
+        if (kind == StepJournal.KIND_HOUR) {
+            target.append(' ');
+            appendTwoDigits(target, key % 100);
+        }
+    }
+
+    private static void appendChanges(@NonNull StringBuilder json, @NonNull String name,
+                                      @NonNull StepJournal journal, int kind, long cursor) {
+        json.append(",\"").append(name).append("\":{");
+        boolean first = true;
+        for (StepJournal.Bucket bucket : journal.range(kind, 0, Integer.MAX_VALUE).values()) {
+            if (bucket.seq <= cursor)
+                continue;
+            if (!first)
+                json.append(',');
+            first = false;
+            json.append('"');
+            appendPeriodKey(json, kind, bucket.key);
+            json.append("\":{\"steps\":").append(bucket.steps).append('}');
+        }
+        json.append('}');
+    }
+
+    private static void appendTwoDigits(@NonNull StringBuilder target, int value) {
+        if (value < 10)
+            target.append('0');
+        target.append(value);
+    }
+
+    //endregion
+
+    //region Methods
+
+    private void aggregate(@NonNull StepJournal journal, @NonNull Calendar from, @NonNull Calendar to) {
+        Calendar last = (Calendar) to.clone();
+        last.add(Calendar.MILLISECOND, -1);
+
+        int fromDay = StepAccounting.dayKey(from);
+        int toDay = StepAccounting.dayKey(last) + 1;
+        int fromMonth = fromDay / 100;
+        int toMonth = toDay / 100 + 1;
+
+        add(journal, StepJournal.KIND_HOUR, GRANULARITY_HOUR, StepAccounting.hourKey(from),
+            StepAccounting.hourKey(last) + 1);
+        add(journal, StepJournal.KIND_HISTORY_DAY, GRANULARITY_DAY, fromDay, toDay);
+        add(journal, StepJournal.KIND_HISTORY_WEEK, GRANULARITY_WEEK, StepRetention.weekKey(fromDay), toDay);
+        add(journal, StepJournal.KIND_HISTORY_MONTH, GRANULARITY_MONTH, fromMonth, toMonth);
+    }
+
+    private void add(@NonNull StepJournal journal, int kind, int kindGranularity, int fromKey, int toKey) {
+        int target = Math.max(granularity, kindGranularity);
+        for (StepJournal.Bucket bucket : journal.range(kind, fromKey, toKey).values()) {
+            int groupKey = groupKey(kind, bucket.key, target);
+            int[] total = totals[target].get(groupKey);
+            if (total == null) {
+                total = new int[1];
+                totals[target].put(groupKey, total);
+            }
+            total[0] += bucket.steps;
+        }
+    }
+
+    private int groupKey(int kind, int key, int target) {
+        if (kind == StepJournal.KIND_HOUR) {
+            if (target == GRANULARITY_HOUR)
+                return key;
+            key /= 100;
+            kind = StepJournal.KIND_HISTORY_DAY;
+        }
+
+        switch (target) {
+            case GRANULARITY_DAY:
+                return key;
+            case GRANULARITY_WEEK:
+                return kind == StepJournal.KIND_HISTORY_WEEK ? key : weekOf(key);
+            default:
+                if (kind == StepJournal.KIND_HISTORY_MONTH)
+                    return key;
+                if (kind == StepJournal.KIND_HISTORY_WEEK)
+                    return StepRetention.monthKey(key);
+                return key / 100;
+        }
+    }
+
+    private int weekOf(int dayKey) {
+        if (dayKey != lastDayKey) {
+            lastDayKey = dayKey;
+            lastWeekKey = StepRetention.weekKey(dayKey);
+        }
+        return lastWeekKey;
+    }
+
+    private String toJson() {
+        StringBuilder json = new StringBuilder(totals[granularity].size() * 32 + 2);
+        json.append('{');
+        //Retention rolls up the oldest buckets first, so coarser ones come first in time too...
+        for (int target = GRANULARITY_MONTH; target >= granularity; target--) {
+            for (Map.Entry<Integer, int[]> entry : totals[target].entrySet()) {
+                if (json.length() > 1)
+                    json.append(',');
+                json.append('"');
+                appendPeriodKey(json, LABEL_KINDS[target], entry.getKey());
+                json.append("\":{\"steps\":").append(entry.getValue()[0]);
+                if (target != granularity)
+                    json.append(",\"granularity\":\"").append(GRANULARITY_NAMES[target]).append('"');
+                json.append('}');
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    //endregion
+}
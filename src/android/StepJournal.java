@@ -0,0 +1,614 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, fixed-record binary journal holding the pedometer buckets (day, hour, total and the
+ * rolled up history tiers).
+ *
+ * Every update appends one 32 byte record, so its cost does not depend on the size of the history.
+ * Records are grouped into transactions: the last record of a transaction carries a commit flag and
+ * a transaction is written with a single write and a single sync. Replay only applies complete
+ * transactions, so a crash can never leave e.g. the day bucket updated without the total.
+ *
+ * Every record carries a sequence number one higher than the record before it, and a bucket keeps
+ * the one of its last update, so the buckets changed since a point in time can be found (see
+ * StepHistoryQuery.changesJson).
+ *
+ * The journal is replayed into memory on open and compacted (rewritten with one record per live
+ * bucket) once it grows well past the number of live buckets. Each record carries a CRC, a torn
+ * tail left by a crash is ignored on replay and truncated by the writer.
+ */
+final class StepJournal implements StepStore {
+
+    //region Constants
+
+    static final int KIND_DAY = 1;
+    static final int KIND_HOUR = 2;
+    static final int KIND_TOTAL = 3;
+    static final int KIND_HISTORY_DAY = 4;
+    static final int KIND_HISTORY_WEEK = 5;
+    static final int KIND_HISTORY_MONTH = 6;
+    //Running totals per ISO week (keyed by its Monday), month (yyyyMM) and year, see StepSummary
+    static final int KIND_SUMMARY_WEEK = 7;
+    static final int KIND_SUMMARY_MONTH = 8;
+    static final int KIND_SUMMARY_YEAR = 9;
+    private static final int KIND_MAX = KIND_SUMMARY_YEAR;
+
+    static final int RECORD_SIZE = 32;
+    static final int MAX_TRANSACTION_RECORDS = 64;
+
+    private static final int MAGIC = 0x53544A31; // "STJ1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int COMPACT_MIN_RECORDS = 4096;
+    private static final int COMPACT_RATIO = 4;
+    private static final int READ_CHUNK_RECORDS = 2048;
+    private static final int FLAG_COMMIT = 0x01;
+    private static final int FLAG_DELETE = 0x02;
+
+    //endregion
+
+    //region Types
+
+    static final class Bucket {
+        final int kind;
+        final int key;
+        int steps;
+        int offset;
+        int buffer;
+        long seq;
+
+        Bucket(int kind, int key) {
+            this.kind = kind;
+            this.key = key;
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final File file;
+    private final boolean writable;
+    //One index per kind, ordered by key (which is chronological for every kind)...
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final TreeMap<Integer, Bucket>[] buckets = new TreeMap[KIND_MAX + 1];
+    private final ByteBuffer transactionBuffer = ByteBuffer.allocate(RECORD_SIZE * MAX_TRANSACTION_RECORDS);
+    private final CRC32 crc = new CRC32();
+
+    //Records of the transaction being staged (writer) or replayed (reader), applied on commit...
+    private final int[] pendingKinds = new int[MAX_TRANSACTION_RECORDS];
+    private final int[] pendingKeys = new int[MAX_TRANSACTION_RECORDS];
+    private final int[] pendingSteps = new int[MAX_TRANSACTION_RECORDS];
+    private final int[] pendingOffsets = new int[MAX_TRANSACTION_RECORDS];
+    private final int[] pendingBuffers = new int[MAX_TRANSACTION_RECORDS];
+    private final long[] pendingSeqs = new long[MAX_TRANSACTION_RECORDS];
+    private final boolean[] pendingDeletes = new boolean[MAX_TRANSACTION_RECORDS];
+    private int pendingCount;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long generation;
+    private long position = HEADER_SIZE;
+    private int recordCount;
+    private long seq;
+
+    private long lastCommitNanos;
+    private long totalCommitNanos;
+    private long commitCount;
+
+    //endregion
+
+    //region Construction
+
+    private StepJournal(File file, boolean writable) {
+        this.file = file;
+        this.writable = writable;
+        for (int kind = 0; kind <= KIND_MAX; kind++)
+            buckets[kind] = new TreeMap<>();
+    }
+
+    /**
+     * Opens the journal. A writable journal creates the file if needed and truncates any torn tail,
+     * a read-only one just replays whatever is valid (the file may not exist yet).
+     */
+    static StepJournal open(File file, boolean writable) throws IOException {
+        StepJournal journal = new StepJournal(file, writable);
+        if (writable) {
+            journal.openWriter();
+        } else {
+            journal.refresh();
+        }
+        return journal;
+    }
+
+    /**
+     * Opens an empty journal next to the given file, to be filled and then put in its place with
+     * {@link #install(File)}. Whatever an interrupted earlier attempt left there is discarded.
+     */
+    static StepJournal openReplacement(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".new");
+        if (tmp.exists() && !tmp.delete())
+            throw new IOException("Could not delete stale journal " + tmp);
+        return open(tmp, true);
+    }
+
+    /**
+     * Commits what is staged, syncs the journal once and atomically moves it to the given file. The
+     * journal is closed afterwards. Until the move the file is untouched, a crash before it leaves
+     * only the replacement behind, which the next openReplacement() discards.
+     */
+    void install(File target) throws IOException {
+        try {
+            commit(false);
+            sync();
+        }
+        finally {
+            close();
+        }
+
+        if (!file.renameTo(target))
+            throw new IOException("Could not move journal to " + target);
+    }
+
+    private void openWriter() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader(channel, 0);
+            channel.force(true);
+        }
+        replay(channel, true);
+        if (channel.size() > position) {
+            //Drop the torn/corrupt tail so new appends are reachable on replay...
+            channel.truncate(position);
+            channel.force(true);
+        }
+    }
+
+    void close() {
+        try {
+            if (raf != null)
+                raf.close();
+        }
+        catch (IOException ignored) {
+        }
+        raf = null;
+        channel = null;
+    }
+
+    //endregion
+
+    //region Queries
+
+    File getFile() {
+        return file;
+    }
+
+    boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public Bucket get(int kind, int key) {
+        return buckets[kind].get(key);
+    }
+
+    int size() {
+        int size = 0;
+        for (TreeMap<Integer, Bucket> index : buckets)
+            size += index.size();
+        return size;
+    }
+
+    int size(int kind) {
+        return buckets[kind].size();
+    }
+
+    /**
+     * @return the oldest key of the given kind, or -1 if there is no bucket of that kind
+     */
+    int firstKey(int kind) {
+        return buckets[kind].isEmpty() ? -1 : buckets[kind].firstKey();
+    }
+
+    /**
+     * @return the newest key of the given kind, or -1 if there is no bucket of that kind
+     */
+    @Override
+    public int lastKey(int kind) {
+        return buckets[kind].isEmpty() ? -1 : buckets[kind].lastKey();
+    }
+
+    /**
+     * @return a view of the buckets of a kind with fromKey <= key < toKey, in key order. The view
+     *         must not be modified, and not be used after the next update of the journal.
+     */
+    NavigableMap<Integer, Bucket> range(int kind, int fromKey, int toKey) {
+        return buckets[kind].subMap(fromKey, true, toKey, false);
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    long getSizeBytes() {
+        return position;
+    }
+
+    /**
+     * @return the time the last commit spent writing and syncing, in nanoseconds
+     */
+    long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    long getTotalCommitNanos() {
+        return totalCommitNanos;
+    }
+
+    long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * @return the sequence number of the last committed record, never lower than one handed out before
+     */
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return the keys of all buckets of the given kind, in ascending (chronological) order
+     */
+    int[] keys(int kind) {
+        int[] keys = new int[buckets[kind].size()];
+        int count = 0;
+        for (Integer key : buckets[kind].keySet())
+            keys[count++] = key;
+        return keys;
+    }
+
+    //endregion
+
+    //region Updates
+
+    /**
+     * Updates a single bucket, as a transaction of its own.
+     * @param sync force the record to disk before returning
+     */
+    void put(int kind, int key, int steps, int offset, int buffer, boolean sync) throws IOException {
+        stage(kind, key, steps, offset, buffer);
+        commit(sync);
+    }
+
+    /**
+     * Adds a bucket update to the current transaction. Nothing is visible (in memory or on disk)
+     * until {@link #commit(boolean)} succeeds.
+     */
+    void stage(int kind, int key, int steps, int offset, int buffer) throws IOException {
+        stage(kind, key, steps, offset, buffer, false);
+    }
+
+    /**
+     * Adds the removal of a bucket to the current transaction.
+     */
+    void stageDelete(int kind, int key) throws IOException {
+        stage(kind, key, 0, 0, 0, true);
+    }
+
+    private void stage(int kind, int key, int steps, int offset, int buffer, boolean delete) throws IOException {
+        if (!writable)
+            throw new IOException("Journal is opened read-only");
+        if (pendingCount == MAX_TRANSACTION_RECORDS)
+            throw new IOException("Too many records in one transaction");
+
+        pendingKinds[pendingCount] = kind;
+        pendingKeys[pendingCount] = key;
+        pendingSteps[pendingCount] = steps;
+        pendingOffsets[pendingCount] = offset;
+        pendingBuffers[pendingCount] = buffer;
+        pendingSeqs[pendingCount] = seq + pendingCount + 1;
+        pendingDeletes[pendingCount] = delete;
+        pendingCount++;
+    }
+
+    int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Appends the staged records with a single write (and a single sync), then applies them to the
+     * in-memory buckets. If the write fails nothing is applied and the transaction is discarded.
+     * @param sync force the transaction to disk before returning
+     * @return the time spent writing (and syncing) the transaction, in nanoseconds
+     */
+    long commit(boolean sync) throws IOException {
+        if (pendingCount == 0)
+            return 0;
+
+        try {
+            long start = System.nanoTime();
+
+            transactionBuffer.clear();
+            for (int i = 0; i < pendingCount; i++) {
+                int flags = (i == pendingCount - 1 ? FLAG_COMMIT : 0) | (pendingDeletes[i] ? FLAG_DELETE : 0);
+                encode(transactionBuffer, pendingKinds[i], flags, pendingKeys[i], pendingSteps[i],
+                       pendingOffsets[i], pendingBuffers[i], pendingSeqs[i]);
+            }
+            transactionBuffer.flip();
+            while (transactionBuffer.hasRemaining())
+                channel.write(transactionBuffer, position + transactionBuffer.position());
+
+            if (sync)
+                channel.force(false);
+
+            lastCommitNanos = System.nanoTime() - start;
+            totalCommitNanos += lastCommitNanos;
+            commitCount++;
+            StepMetrics.COMMITS.record(lastCommitNanos);
+            StepMetrics.recordWrite((long) pendingCount * RECORD_SIZE);
+
+            position += (long) pendingCount * RECORD_SIZE;
+            recordCount += pendingCount;
+            applyPending();
+        }
+        finally {
+            pendingCount = 0;
+        }
+
+        try {
+            maybeCompact();
+        } catch (IOException ignored) {
+            //The transaction is already safe in the journal, compaction is retried on a later commit.
+        }
+
+        return lastCommitNanos;
+    }
+
+    void sync() throws IOException {
+        if (channel != null)
+            channel.force(false);
+    }
+
+    /**
+     * Rewrites the journal with a single record per live bucket. The new file is fully written and
+     * synced before it atomically replaces the old one, so a crash leaves either file intact.
+     */
+    void compact() throws IOException {
+        if (!writable)
+            return;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        long newGeneration = generation + 1;
+        long newPosition = HEADER_SIZE;
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            FileChannel outChannel = out.getChannel();
+            outChannel.truncate(0);
+            writeHeader(outChannel, newGeneration);
+
+            ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * READ_CHUNK_RECORDS);
+            for (TreeMap<Integer, Bucket> index : buckets) {
+                for (Bucket bucket : index.values()) {
+                    if (chunk.remaining() < RECORD_SIZE)
+                        newPosition += flushChunk(outChannel, chunk, newPosition);
+                    encode(chunk, bucket.kind, FLAG_COMMIT, bucket.key, bucket.steps, bucket.offset, bucket.buffer,
+                           bucket.seq);
+                }
+            }
+            //The last records may have been removals, a no-op removal keeps the sequence from going back
+            if (chunk.remaining() < RECORD_SIZE)
+                newPosition += flushChunk(outChannel, chunk, newPosition);
+            encode(chunk, KIND_TOTAL, FLAG_COMMIT | FLAG_DELETE, -1, 0, 0, 0, seq);
+            newPosition += flushChunk(outChannel, chunk, newPosition);
+            outChannel.force(true);
+        }
+        StepMetrics.recordWrite(newPosition);
+
+        close();
+        boolean replaced = tmp.renameTo(file);
+
+        //Keep appending to whichever file is now in place...
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        if (!replaced)
+            throw new IOException("Could not replace journal " + file);
+
+        generation = newGeneration;
+        position = newPosition;
+        recordCount = size() + 1;
+    }
+
+    private void maybeCompact() throws IOException {
+        if (recordCount >= COMPACT_MIN_RECORDS && recordCount > COMPACT_RATIO * size())
+            compact();
+    }
+
+    //endregion
+
+    //region Replay
+
+    /**
+     * Brings a read-only journal up to date with what the writer process has appended since the last
+     * call. Only new records are read, unless the writer compacted the file in the meantime.
+     */
+    void refresh() throws IOException {
+        if (writable || !file.exists())
+            return;
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            FileChannel inChannel = in.getChannel();
+            if (inChannel.size() < HEADER_SIZE)
+                return;
+
+            long fileGeneration = readGeneration(inChannel);
+            if (fileGeneration < 0)
+                return;
+
+            if (fileGeneration != generation || inChannel.size() < position) {
+                for (TreeMap<Integer, Bucket> index : buckets)
+                    index.clear();
+                position = HEADER_SIZE;
+                recordCount = 0;
+                seq = 0;
+            }
+            replay(inChannel, false);
+        }
+    }
+
+    private void replay(FileChannel source, boolean checkHeader) throws IOException {
+        long fileGeneration = readGeneration(source);
+        if (checkHeader && fileGeneration < 0)
+            throw new IOException("Not a step journal: " + file);
+        generation = fileGeneration;
+
+        //Only complete transactions move the position, a partial one is re-read next time...
+        pendingCount = 0;
+        long cursor = position;
+        ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * READ_CHUNK_RECORDS);
+        long size = source.size();
+        while (cursor + RECORD_SIZE <= size) {
+            chunk.clear();
+            int read = source.read(chunk, cursor);
+            if (read < RECORD_SIZE)
+                break;
+
+            chunk.flip();
+            while (chunk.remaining() >= RECORD_SIZE) {
+                int flags = decode(chunk);
+                if (flags < 0) {
+                    pendingCount = 0;
+                    return;
+                }
+                cursor += RECORD_SIZE;
+
+                if ((flags & FLAG_COMMIT) != 0) {
+                    recordCount += pendingCount;
+                    applyPending();
+                    pendingCount = 0;
+                    position = cursor;
+                }
+            }
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Decodes one record into the pending transaction.
+     * @return the record flags, or -1 if the record is torn or corrupt
+     */
+    private int decode(ByteBuffer chunk) {
+        int start = chunk.position();
+        crc.reset();
+        crc.update(chunk.array(), chunk.arrayOffset() + start, RECORD_SIZE - 4);
+
+        int kind = chunk.get(start);
+        int flags = chunk.get(start + 1);
+        int checksum = chunk.getInt(start + 28);
+
+        if (checksum != (int) crc.getValue() || kind < KIND_DAY || kind > KIND_MAX ||
+            pendingCount == MAX_TRANSACTION_RECORDS)
+            return -1;
+
+        pendingKinds[pendingCount] = kind;
+        pendingKeys[pendingCount] = chunk.getInt(start + 4);
+        pendingSteps[pendingCount] = chunk.getInt(start + 8);
+        pendingOffsets[pendingCount] = chunk.getInt(start + 12);
+        pendingBuffers[pendingCount] = chunk.getInt(start + 16);
+        pendingSeqs[pendingCount] = chunk.getLong(start + 20);
+        pendingDeletes[pendingCount] = (flags & FLAG_DELETE) != 0;
+        pendingCount++;
+
+        chunk.position(start + RECORD_SIZE);
+        return flags;
+    }
+
+    private void applyPending() {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingSeqs[i] > seq)
+                seq = pendingSeqs[i];
+            if (pendingDeletes[i]) {
+                buckets[pendingKinds[i]].remove(pendingKeys[i]);
+                continue;
+            }
+
+            Bucket bucket = getOrCreate(pendingKinds[i], pendingKeys[i]);
+            bucket.steps = pendingSteps[i];
+            bucket.offset = pendingOffsets[i];
+            bucket.buffer = pendingBuffers[i];
+            bucket.seq = pendingSeqs[i];
+        }
+    }
+
+    //endregion
+
+    //region Helpers
+
+    private Bucket getOrCreate(int kind, int key) {
+        Bucket bucket = buckets[kind].get(key);
+        if (bucket == null) {
+            bucket = new Bucket(kind, key);
+            buckets[kind].put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private void encode(ByteBuffer target, int kind, int flags, int key, int steps, int offset, int buffer,
+                        long recordSeq) {
+        int start = target.position();
+        target.put((byte) kind);
+        target.put((byte) flags);
+        target.put((byte) 0).put((byte) 0);
+        target.putInt(key);
+        target.putInt(steps);
+        target.putInt(offset);
+        target.putInt(buffer);
+        target.putLong(recordSeq);
+
+        crc.reset();
+        crc.update(target.array(), target.arrayOffset() + start, RECORD_SIZE - 4);
+        target.putInt((int) crc.getValue());
+    }
+
+    private static int flushChunk(FileChannel target, ByteBuffer chunk, long at) throws IOException {
+        chunk.flip();
+        int written = 0;
+        while (chunk.hasRemaining())
+            written += target.write(chunk, at + written);
+        chunk.clear();
+        return written;
+    }
+
+    private static void writeHeader(FileChannel target, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation);
+        header.flip();
+        while (header.hasRemaining())
+            target.write(header, header.position());
+    }
+
+    /**
+     * @return the compaction generation stored in the header, or -1 if the header is invalid
+     */
+    private static long readGeneration(FileChannel source) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (source.read(header, header.position()) < 0)
+                return -1;
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            return -1;
+        return header.getLong();
+    }
+
+    //endregion
+}
@@ -0,0 +1,334 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Level-filtered, asynchronous logging to logcat and the persistent log ring (StepLogRing).
+ *
+ * A call below the configured level returns after a single volatile read, before anything is
+ * formatted. Accepted entries are queued with their format and arguments (lock-free, the caller
+ * only wakes the writer up if it is idle), and one background writer formats and persists them in
+ * batches, so the calling thread (e.g. the sensor thread) never waits for the disk or a lock. When
+ * the queue is full, entries are dropped (warnings and errors replace the oldest queued entry
+ * instead) and the number of dropped entries is logged once there is room again. {@link #flush()}
+ * persists what is queued before the process may go away.
+ *
+ * Hot paths should guard their calls with {@link #isLoggable(int)} (which also avoids boxing the
+ * arguments) and may thin them out with a {@link Sampler}.
+ */
+final class StepLog {
+
+    //region Constants
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int WARN = 2;
+    static final int ERROR = 3;
+    static final int NONE = 4;
+
+    private static final String TAG = "StepLog";
+    private static final String[] LEVEL_NAMES = { "DEBUG", "INFO", "WARN", "ERROR" };
+    private static final int[] LOGCAT_PRIORITIES = { Log.DEBUG, Log.INFO, Log.WARN, Log.ERROR };
+    private static final String LOG_FILE_NAME = "pedometer.log";
+    private static final String LEGACY_PREFERENCE_NAME = "UserData";
+    private static final String LEGACY_PREF_KEY_DEBUG_LOGS = "pedometerDebugLogs";
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH = 64;
+    private static final int MAX_SAMPLE_RATE = 10000;
+
+    //endregion
+
+    //region Types
+
+    /**
+     * Lets one out of every "logSampleRate" calls of a call site through. Meant for messages logged on
+     * every sensor event, the rate is set through configure().
+     */
+    static final class Sampler {
+        private int count;
+
+        boolean sample() {
+            int rate = sampleRate;
+            return rate <= 1 || count++ % rate == 0;
+        }
+    }
+
+    private static final class Record extends StepLogRing.Entry {
+        int priority;
+        String format;
+        Object[] args;
+        Throwable throwable;
+    }
+
+    //endregion
+
+    //region Variables
+
+    private static volatile int level = INFO;
+    private static volatile int sampleRate = 1;
+
+    private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    //Entries in the queue, bounded by QUEUE_CAPACITY
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicInteger dropped = new AtomicInteger();
+    //Held while entries are persisted, so readers see everything that was queued before them
+    private static final Object WRITE_LOCK = new Object();
+    private static final ArrayList<Record> batch = new ArrayList<>(MAX_BATCH);
+    private static volatile Context appContext;
+    private static volatile Thread writer;
+    //Set by the writer before it parks on an empty queue, cleared by whoever unparks it
+    private static final AtomicBoolean writerIdle = new AtomicBoolean();
+    private static StepLogRing ring;
+
+    //endregion
+
+    private StepLog() {
+    }
+
+    //region Static Methods
+
+    /**
+     * Gives the logger the context it needs to open the log ring. Entries logged before this only go
+     * to logcat.
+     */
+    static void init(@NonNull Context context) {
+        if (appContext == null)
+            appContext = context.getApplicationContext();
+    }
+
+    static boolean isLoggable(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    /**
+     * @param name "DEBUG", "INFO", "WARN", "ERROR" or "NONE", unknown names are ignored
+     */
+    static void setLevel(String name) {
+        int parsed = parseLevel(name);
+        if (parsed >= 0)
+            level = parsed;
+    }
+
+    static String getLevelName() {
+        int current = level;
+        return current < LEVEL_NAMES.length ? LEVEL_NAMES[current] : "NONE";
+    }
+
+    static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, Math.min(MAX_SAMPLE_RATE, rate));
+    }
+
+    /**
+     * @return the level constant for a level name, or -1 if unknown
+     */
+    static int parseLevel(String name) {
+        if (name == null)
+            return -1;
+        if ("NONE".equalsIgnoreCase(name))
+            return NONE;
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    static void d(String tag, String format, Object... args) {
+        log(DEBUG, tag, null, format, args);
+    }
+
+    static void i(String tag, String format, Object... args) {
+        log(INFO, tag, null, format, args);
+    }
+
+    static void w(String tag, String format, Object... args) {
+        log(WARN, tag, null, format, args);
+    }
+
+    static void e(String tag, Throwable throwable, String format, Object... args) {
+        log(ERROR, tag, throwable, format, args);
+    }
+
+    /**
+     * Queues an entry. The message is only formatted (String.format, if there are arguments) on the
+     * writer thread.
+     */
+    static void log(int messageLevel, String tag, Throwable throwable, String format, Object... args) {
+        if (messageLevel < level || messageLevel >= NONE)
+            return;
+
+        Record record = new Record();
+        record.timestamp = System.currentTimeMillis();
+        record.priority = messageLevel;
+        record.level = LEVEL_NAMES[messageLevel];
+        record.tag = tag;
+        record.format = format;
+        record.args = args;
+        record.throwable = throwable;
+
+        if (queued.incrementAndGet() > QUEUE_CAPACITY) {
+            //Warnings and errors make room by dropping the oldest queued entry instead...
+            boolean replaced = messageLevel >= WARN && queue.poll() != null;
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            if (!replaced)
+                return;
+        }
+        queue.offer(record);
+
+        Thread thread = writer;
+        if (thread == null)
+            thread = startWriter();
+        if (writerIdle.get() && writerIdle.compareAndSet(true, false))
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Persists the queued entries on the calling thread, e.g. before the service is destroyed or the
+     * device shuts down: the writer is a daemon thread and doesn't get to finish when the process
+     * goes away.
+     */
+    static void flush() {
+        synchronized (WRITE_LOCK) {
+            writePending();
+        }
+    }
+
+    /**
+     * @return the persisted entries as JSON, see StepLogRing.readJson()
+     */
+    static String readJson(@NonNull Context context) throws IOException {
+        init(context);
+        synchronized (WRITE_LOCK) {
+            writePending();
+            return getRing().readJson();
+        }
+    }
+
+    static void clear(@NonNull Context context) throws IOException {
+        init(context);
+        synchronized (WRITE_LOCK) {
+            writePending();
+            getRing().clear();
+        }
+    }
+
+    /* Starts the writer on the first entry, later calls only read the volatile field. */
+    private static synchronized Thread startWriter() {
+        if (writer != null)
+            return writer;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    if (queue.isEmpty()) {
+                        //Entries queued after the idle flag is set unpark the writer, so the queue
+                        //is checked once more before parking...
+                        writerIdle.set(true);
+                        if (queue.isEmpty())
+                            LockSupport.park();
+                        writerIdle.set(false);
+                        continue;
+                    }
+                    synchronized (WRITE_LOCK) {
+                        writePending();
+                    }
+                }
+            }
+        }, "StepCounterLog");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        writer = thread;
+        return thread;
+    }
+
+    /* Formats and persists the queued entries, in batches. Must hold WRITE_LOCK. */
+    private static void writePending() {
+        while (true) {
+            Record queuedRecord;
+            while (batch.size() < MAX_BATCH && (queuedRecord = queue.poll()) != null) {
+                queued.decrementAndGet();
+                batch.add(queuedRecord);
+            }
+            if (batch.isEmpty())
+                return;
+
+            int droppedCount = dropped.getAndSet(0);
+            if (droppedCount > 0) {
+                Record record = new Record();
+                record.timestamp = System.currentTimeMillis();
+                record.priority = WARN;
+                record.level = LEVEL_NAMES[WARN];
+                record.tag = TAG;
+                record.format = "Log queue full, dropped " + droppedCount + " entries";
+                batch.add(0, record);
+            }
+
+            for (Record record : batch) {
+                record.message = format(record);
+                if (record.throwable != null)
+                    Log.println(LOGCAT_PRIORITIES[record.priority], record.tag,
+                                record.message + '\n' + Log.getStackTraceString(record.throwable));
+                else
+                    Log.println(LOGCAT_PRIORITIES[record.priority], record.tag, record.message);
+            }
+
+            try {
+                StepLogRing logRing = getRing();
+                if (logRing != null)
+                    logRing.appendAll(batch);
+            }
+            catch (Exception ex) {
+                Log.e(TAG, "Failed to write to persistent log: " + ex.getMessage(), ex);
+            }
+            batch.clear();
+        }
+    }
+
+    private static String format(@NonNull Record record) {
+        String message;
+        try {
+            message = record.args == null || record.args.length == 0 ? record.format
+                    : String.format(Locale.US, record.format, record.args);
+        }
+        catch (Exception ex) {
+            message = record.format;
+        }
+        return record.throwable != null ? message + ": " + record.throwable.getMessage() : message;
+    }
+
+    /**
+     * Returns the process wide log ring, null until init() was called. The JSON log formerly kept in
+     * the "UserData" SharedPreferences is dropped when the ring is created.
+     */
+    private static StepLogRing getRing() throws IOException {
+        Context context = appContext;
+        if (ring == null && context != null) {
+            File file = new File(context.getFilesDir(), LOG_FILE_NAME);
+            boolean created = !file.exists();
+            ring = StepLogRing.open(file, StepLogRing.DEFAULT_SLOTS);
+            if (created) {
+                SharedPreferences legacy = CordovaStepCounter.getDefaultSharedPreferencesMultiProcess(
+                        context, LEGACY_PREFERENCE_NAME);
+                legacy.edit().remove(LEGACY_PREF_KEY_DEBUG_LOGS).apply();
+            }
+        }
+        return ring;
+    }
+
+    //endregion
+}
@@ -0,0 +1,289 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Fixed-size ring buffer file holding the persistent debug log.
+ *
+ * Each entry goes into one 256 byte slot, written in place with a positional write: an append costs
+ * the same whether the log is empty or full and never rewrites the other entries. The header keeps
+ * the sequence number of the next and of the first visible entry, so clearing the log only rewrites
+ * the header. Both processes write to the same file, every access holds a lock on the header.
+ *
+ * Header (32 bytes): magic, version, slot count, reserved, next seq, first seq.
+ * Slot (256 bytes): seq, timestamp, level/tag/message lengths, crc, then the UTF-8 level, tag and
+ * message. Messages that don't fit are truncated.
+ */
+final class StepLogRing {
+
+    //region Constants
+
+    static final int SLOT_SIZE = 256;
+    static final int DEFAULT_SLOTS = 1024;
+
+    private static final int MAGIC = 0x53544C31; // "STL1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int NEXT_SEQ_POSITION = 16;
+    private static final int SLOT_HEADER_SIZE = 24;
+    private static final int MAX_PAYLOAD = SLOT_SIZE - SLOT_HEADER_SIZE;
+    private static final int MAX_LEVEL_LENGTH = 16;
+    private static final int MAX_TAG_LENGTH = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //endregion
+
+    //region Types
+
+    static class Entry {
+        long timestamp;
+        String level;
+        String tag;
+        String message;
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final int slots;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    //endregion
+
+    private StepLogRing(@NonNull RandomAccessFile randomAccessFile, int slots) {
+        this.randomAccessFile = randomAccessFile;
+        this.channel = randomAccessFile.getChannel();
+        this.slots = slots;
+    }
+
+    //region Static Methods
+
+    /**
+     * Opens the ring, creating it (or recreating it, if the file is not a valid ring) with the given
+     * number of slots.
+     */
+    static StepLogRing open(@NonNull File file, int slots) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        StepLogRing ring = new StepLogRing(randomAccessFile, slots);
+        try (FileLock ignored = ring.channel.lock(0, HEADER_SIZE, false)) {
+            if (!ring.readHeader()) {
+                ring.channel.truncate(0);
+                ring.writeHeader(0, 0);
+            }
+        }
+        catch (IOException ex) {
+            randomAccessFile.close();
+            throw ex;
+        }
+        return ring;
+    }
+
+    //endregion
+
+    //region Methods
+
+    synchronized void append(long timestamp, String level, String tag, String message) throws IOException {
+        try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+            readHeader();
+            long seq = header.getLong(NEXT_SEQ_POSITION);
+            long first = header.getLong(NEXT_SEQ_POSITION + 8);
+            writeSlot(seq, timestamp, level, tag, message);
+            writeHeader(seq + 1, first);
+        }
+    }
+
+    /**
+     * Appends a batch of entries under one lock and with one header update.
+     */
+    synchronized void appendAll(@NonNull List<? extends Entry> entries) throws IOException {
+        if (entries.isEmpty())
+            return;
+
+        try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+            readHeader();
+            long seq = header.getLong(NEXT_SEQ_POSITION);
+            long first = header.getLong(NEXT_SEQ_POSITION + 8);
+            for (Entry entry : entries)
+                writeSlot(seq++, entry.timestamp, entry.level, entry.tag, entry.message);
+            writeHeader(seq, first);
+        }
+    }
+
+    /**
+     * @return the visible entries, oldest first, in the JSON format getLogs() has always returned:
+     *         [{"timestamp": "yyyy-MM-dd HH:mm:ss.SSS", "level": L, "tag": T, "message": M}, ...]
+     */
+    synchronized String readJson() throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append('[');
+
+        try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+            readHeader();
+            long next = header.getLong(NEXT_SEQ_POSITION);
+            long first = Math.max(header.getLong(NEXT_SEQ_POSITION + 8), next - slots);
+
+            SimpleDateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
+            Date date = new Date();
+            for (long seq = first; seq < next; seq++) {
+                slot.clear();
+                while (slot.hasRemaining() && channel.read(slot, slotPosition(seq) + slot.position()) > 0) {
+                    //read the whole slot
+                }
+
+                int levelLength = slot.get(16) & 0xFF;
+                int tagLength = slot.get(17) & 0xFF;
+                int messageLength = slot.getShort(18) & 0xFFFF;
+                int end = SLOT_HEADER_SIZE + levelLength + tagLength + messageLength;
+                if (slot.position() < SLOT_SIZE || slot.getLong(0) != seq || end > SLOT_SIZE ||
+                    slot.getInt(20) != checksum(end))
+                    continue;
+
+                byte[] bytes = slot.array();
+                date.setTime(slot.getLong(8));
+                if (json.length() > 1)
+                    json.append(',');
+                json.append("{\"timestamp\":");
+                appendQuoted(json, dateFormatter.format(date));
+                json.append(",\"level\":");
+                appendQuoted(json, new String(bytes, SLOT_HEADER_SIZE, levelLength, UTF_8));
+                json.append(",\"tag\":");
+                appendQuoted(json, new String(bytes, SLOT_HEADER_SIZE + levelLength, tagLength, UTF_8));
+                json.append(",\"message\":");
+                appendQuoted(json, new String(bytes, SLOT_HEADER_SIZE + levelLength + tagLength, messageLength,
+                                              UTF_8));
+                json.append('}');
+            }
+        }
+
+        return json.append(']').toString();
+    }
+
+    /**
+     * Hides every entry written so far, only the header is rewritten.
+     */
+    synchronized void clear() throws IOException {
+        try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+            readHeader();
+            long next = header.getLong(NEXT_SEQ_POSITION);
+            writeHeader(next, next);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    private void writeSlot(long seq, long timestamp, String level, String tag, String message) throws IOException {
+        byte[] levelBytes = truncate(String.valueOf(level).getBytes(UTF_8), MAX_LEVEL_LENGTH);
+        byte[] tagBytes = truncate(String.valueOf(tag).getBytes(UTF_8), MAX_TAG_LENGTH);
+        byte[] messageBytes = truncate(String.valueOf(message).getBytes(UTF_8),
+                                       MAX_PAYLOAD - levelBytes.length - tagBytes.length);
+
+        slot.clear();
+        slot.putLong(seq);
+        slot.putLong(timestamp);
+        slot.put((byte) levelBytes.length);
+        slot.put((byte) tagBytes.length);
+        slot.putShort((short) messageBytes.length);
+        slot.putInt(0);
+        slot.put(levelBytes).put(tagBytes).put(messageBytes);
+        slot.putInt(20, checksum(slot.position()));
+        //Always the whole slot, so the file has its full size once the ring went around...
+        Arrays.fill(slot.array(), slot.position(), SLOT_SIZE, (byte) 0);
+        slot.clear();
+        channel.write(slot, slotPosition(seq));
+    }
+
+    private long slotPosition(long seq) {
+        return HEADER_SIZE + (seq % slots) * SLOT_SIZE;
+    }
+
+    /* Reads the header into the header buffer, returns false if it is missing or doesn't match this ring. */
+    private boolean readHeader() throws IOException {
+        header.clear();
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            //read the whole header
+        }
+        return header.position() == HEADER_SIZE && header.getInt(0) == MAGIC && header.getInt(4) == VERSION &&
+               header.getInt(8) == slots;
+    }
+
+    private void writeHeader(long next, long first) throws IOException {
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(0).putLong(next).putLong(first);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private int checksum(int end) {
+        crc.reset();
+        crc.update(slot.array(), 0, 20);
+        crc.update(slot.array(), SLOT_HEADER_SIZE, end - SLOT_HEADER_SIZE);
+        return (int) crc.getValue();
+    }
+
+    /* Appends the value as a JSON string, so the ring doesn't need org.json (plain JVM benchmarks). */
+    private static void appendQuoted(@NonNull StringBuilder json, @NonNull String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        json.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /* Cuts UTF-8 bytes to the given length without splitting a character. */
+    private static byte[] truncate(@NonNull byte[] bytes, int maxLength) {
+        if (bytes.length <= maxLength)
+            return bytes;
+
+        int length = Math.max(0, maxLength);
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80)
+            length--;
+        byte[] truncated = new byte[length];
+        System.arraycopy(bytes, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    //endregion
+}
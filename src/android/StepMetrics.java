@@ -0,0 +1,227 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the hot paths, for the app to upload (getMetrics()) so the
+ * devices where the plugin is expensive can be found.
+ *
+ * Every process keeps its own: the step counter process counts the sensor events, the writes and
+ * the notifications, the app process the bridge calls. Recording is a few atomic increments and
+ * allocates nothing (except the first call of a new action), so it stays on in production.
+ * A reset is not atomic across the values, a value recorded meanwhile may survive it.
+ */
+final class StepMetrics {
+
+    //region Constants
+
+    /** Events delivered by the step counter, step detector or accelerometer. */
+    static final int SENSOR_EVENTS = 0;
+    /** Sensor values dropped because a newer one arrived before they were counted. */
+    static final int EVENTS_COALESCED = 1;
+    /** Journal transactions, compactions and minute ring saves. */
+    static final int WRITES = 2;
+    static final int BYTES_WRITTEN = 3;
+    /** Step counts handed to the notification, most are throttled or unchanged. */
+    static final int NOTIFICATION_REQUESTS = 4;
+    /** Notifications posted to the NotificationManager. */
+    static final int NOTIFICATION_UPDATES = 5;
+
+    private static final String[] COUNTER_NAMES = {
+            "sensorEvents", "eventsCoalesced", "writes", "bytesWritten", "notificationRequests",
+            "notificationUpdates"
+    };
+
+    //endregion
+
+    //region Variables
+
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(COUNTER_NAMES.length);
+    private static final AtomicLong SINCE = new AtomicLong(System.currentTimeMillis());
+
+    /** Durations of StepJournal.commit(), write and sync. */
+    static final Histogram COMMITS = new Histogram();
+
+    //Queue wait and run time of each plugin action, by action
+    private static final Map<String, Histogram[]> ACTIONS = new LinkedHashMap<>();
+
+    //endregion
+
+    private StepMetrics() {
+    }
+
+    //region Static Methods
+
+    static void count(int counter) {
+        COUNTERS.incrementAndGet(counter);
+    }
+
+    static void count(int counter, long amount) {
+        COUNTERS.addAndGet(counter, amount);
+    }
+
+    static long get(int counter) {
+        return COUNTERS.get(counter);
+    }
+
+    static void recordWrite(long bytes) {
+        COUNTERS.incrementAndGet(WRITES);
+        COUNTERS.addAndGet(BYTES_WRITTEN, bytes);
+    }
+
+    /**
+     * Records a plugin action.
+     * @return the run time histogram of the action
+     */
+    static Histogram recordAction(@NonNull String action, long queuedNanos, long runNanos) {
+        Histogram[] histograms;
+        synchronized (ACTIONS) {
+            histograms = ACTIONS.get(action);
+            if (histograms == null) {
+                histograms = new Histogram[] { new Histogram(), new Histogram() };
+                ACTIONS.put(action, histograms);
+            }
+        }
+        histograms[0].record(queuedNanos);
+        histograms[1].record(runNanos);
+        return histograms[1];
+    }
+
+    static void reset() {
+        for (int i = 0; i < COUNTERS.length(); i++)
+            COUNTERS.set(i, 0);
+        COMMITS.reset();
+        synchronized (ACTIONS) {
+            ACTIONS.clear();
+        }
+        SINCE.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Renders the metrics of this process as
+     * {"since": epoch millis of the last reset, "sensorEvents": N, ... (the counters), "commits": histogram,
+     *  "actions": {"get_history": {"wait": histogram, "run": histogram}, ...}}
+     * where a histogram is {"count", "avgUs", "p50Us", "p90Us", "p99Us", "maxUs", "buckets"}. Bucket i
+     * counts the durations below 2^i microseconds and at least half of that, the percentiles are the
+     * upper bounds of their buckets.
+     */
+    static String toJson() {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\"since\":").append(SINCE.get());
+        for (int i = 0; i < COUNTER_NAMES.length; i++)
+            json.append(",\"").append(COUNTER_NAMES[i]).append("\":").append(COUNTERS.get(i));
+        json.append(",\"commits\":");
+        COMMITS.appendJson(json);
+
+        json.append(",\"actions\":{");
+        synchronized (ACTIONS) {
+            boolean first = true;
+            for (Map.Entry<String, Histogram[]> action : ACTIONS.entrySet()) {
+                if (!first)
+                    json.append(',');
+                first = false;
+                //Action names are the plugin's own constants, no escaping needed
+                json.append('"').append(action.getKey()).append("\":{\"wait\":");
+                action.getValue()[0].appendJson(json);
+                json.append(",\"run\":");
+                action.getValue()[1].appendJson(json);
+                json.append('}');
+            }
+        }
+        return json.append("}}").toString();
+    }
+
+    //endregion
+
+    /**
+     * Durations in power of two buckets of microseconds, from below 1us to 2^(BUCKETS - 2)us and above.
+     */
+    static final class Histogram {
+
+        static final int BUCKETS = 24;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            count.incrementAndGet();
+            sumMicros.addAndGet(micros);
+
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros))
+                max = maxMicros.get();
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getAverageMicros() {
+            long n = count.get();
+            return n > 0 ? sumMicros.get() / n : 0;
+        }
+
+        long getMaxMicros() {
+            return maxMicros.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket the given percentile (0-100) falls into, in
+         *         microseconds (the maximum for the last bucket), 0 if nothing was recorded
+         */
+        long getPercentileMicros(int percentile) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                n += counts.get(i);
+            if (n == 0)
+                return 0;
+
+            long rank = Math.max(1, (n * percentile + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return i < BUCKETS - 1 ? Math.min(1L << i, Math.max(1, maxMicros.get())) : maxMicros.get();
+            }
+            return maxMicros.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+            count.set(0);
+            sumMicros.set(0);
+            maxMicros.set(0);
+        }
+
+        void appendJson(@NonNull StringBuilder json) {
+            json.append("{\"count\":").append(getCount())
+                .append(",\"avgUs\":").append(getAverageMicros())
+                .append(",\"p50Us\":").append(getPercentileMicros(50))
+                .append(",\"p90Us\":").append(getPercentileMicros(90))
+                .append(",\"p99Us\":").append(getPercentileMicros(99))
+                .append(",\"maxUs\":").append(getMaxMicros())
+                .append(",\"buckets\":[");
+
+            //Trailing empty buckets are left out
+            int last = BUCKETS - 1;
+            while (last > 0 && counts.get(last) == 0)
+                last--;
+            for (int i = 0; i <= last; i++) {
+                if (i > 0)
+                    json.append(',');
+                json.append(counts.get(i));
+            }
+            json.append("]}");
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Steps per minute for the last 24 hours, for cadence and active minutes, which the hourly history
+ * is too coarse for.
+ *
+ * One short per minute in a ring of 1440 slots, indexed by the minute since the epoch. Moving to a
+ * newer minute clears the slots in between, so the ring holds the 1440 minutes up to the latest one
+ * it saw. Adding steps allocates nothing. The ring is written to its own small file as one block
+ * (header plus the raw slots) when the service flushes, and read back on start.
+ *
+ * Written by the service's writer thread, queried from binder threads, all methods synchronize.
+ */
+final class StepMinuteRing {
+
+    //region Constants
+
+    static final int MINUTES = 24 * 60;
+    static final long MINUTE_MS = 60 * 1000L;
+    //A minute with at least this many steps counts as active (brisk walking is about 100)
+    static final int ACTIVE_MINUTE_STEPS = 60;
+
+    private static final int MAGIC = 0x53544D31; // "STM1"
+    private static final int HEADER_SIZE = 16;
+    private static final int FILE_SIZE = HEADER_SIZE + MINUTES * 2;
+
+    //endregion
+
+    //region Variables
+
+    private final short[] slots = new short[MINUTES];
+    //Minute since the epoch of the newest slot, -1 while empty
+    private long lastMinute = -1;
+    private boolean dirty;
+    private final ByteBuffer buffer = ByteBuffer.allocate(FILE_SIZE);
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * Adds steps taken between fromMillis and toMillis, spread evenly over the minutes in between
+     * (the sensor may report minutes of steps at once).
+     */
+    synchronized void add(long fromMillis, long toMillis, int steps) {
+        if (steps <= 0)
+            return;
+
+        long fromMinute = Math.max(fromMillis, toMillis - MINUTES * MINUTE_MS) / MINUTE_MS;
+        long toMinute = toMillis / MINUTE_MS;
+        if (fromMinute >= toMinute) {
+            addToMinute(toMinute, steps);
+            return;
+        }
+
+        //Proportional to the time spent in each minute, the rounding error goes to the last one
+        double stepsPerMilli = steps / (double) (toMillis - Math.max(fromMillis, fromMinute * MINUTE_MS));
+        int added = 0;
+        for (long minute = fromMinute; minute < toMinute; minute++) {
+            long start = Math.max(fromMillis, minute * MINUTE_MS);
+            int share = (int) Math.round(stepsPerMilli * ((minute + 1) * MINUTE_MS - start));
+            share = Math.min(share, steps - added);
+            addToMinute(minute, share);
+            added += share;
+        }
+        addToMinute(toMinute, steps - added);
+    }
+
+    /**
+     * Copies the steps of the minutes ending with the one containing toMillis into target, oldest
+     * first. Minutes outside the ring are 0.
+     * @return the minute (since the epoch) of target[0]
+     */
+    synchronized long getMinutes(long toMillis, @NonNull int[] target) {
+        long toMinute = toMillis / MINUTE_MS;
+        long firstMinute = toMinute - target.length + 1;
+        for (int i = 0; i < target.length; i++) {
+            long minute = firstMinute + i;
+            target[i] = isInRing(minute) ? slots[slotOf(minute)] : 0;
+        }
+        return firstMinute;
+    }
+
+    /**
+     * Renders the last "minutes" minutes up to toMillis as
+     * {"start": epoch millis of the first minute, "steps": [per minute, oldest first],
+     *  "activeMinutes": N, "cadence": average steps per active minute, "peakCadence": max steps in a minute}
+     */
+    synchronized String toJson(long toMillis, int minutes) {
+        minutes = Math.max(1, Math.min(MINUTES, minutes));
+        long firstMinute = toMillis / MINUTE_MS - minutes + 1;
+
+        StringBuilder json = new StringBuilder(64 + minutes * 4);
+        json.append("{\"start\":").append(firstMinute * MINUTE_MS).append(",\"steps\":[");
+        int activeMinutes = 0;
+        int activeSteps = 0;
+        int peak = 0;
+        for (int i = 0; i < minutes; i++) {
+            long minute = firstMinute + i;
+            int steps = isInRing(minute) ? slots[slotOf(minute)] : 0;
+            if (i > 0)
+                json.append(',');
+            json.append(steps);
+            if (steps >= ACTIVE_MINUTE_STEPS) {
+                activeMinutes++;
+                activeSteps += steps;
+            }
+            peak = Math.max(peak, steps);
+        }
+        return json.append("],\"activeMinutes\":").append(activeMinutes)
+                   .append(",\"cadence\":").append(activeMinutes > 0 ? activeSteps / activeMinutes : 0)
+                   .append(",\"peakCadence\":").append(peak).append('}').toString();
+    }
+
+    /**
+     * Writes the ring to the file if it changed since the last write.
+     */
+    synchronized void save(@NonNull File file) throws IOException {
+        if (!dirty)
+            return;
+
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(MINUTES).putLong(lastMinute);
+        for (short slot : slots)
+            buffer.putShort(slot);
+        buffer.flip();
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            while (buffer.hasRemaining())
+                channel.write(buffer, buffer.position());
+            channel.truncate(FILE_SIZE);
+        }
+        StepMetrics.recordWrite(FILE_SIZE);
+        dirty = false;
+    }
+
+    /**
+     * Reads the ring back from the file, a missing or invalid file leaves it empty.
+     */
+    synchronized void load(@NonNull File file) throws IOException {
+        if (!file.exists() || file.length() != FILE_SIZE)
+            return;
+
+        buffer.clear();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                //read the whole file
+            }
+        }
+        buffer.flip();
+        if (buffer.remaining() != FILE_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != MINUTES)
+            return;
+
+        lastMinute = buffer.getLong();
+        for (int i = 0; i < MINUTES; i++)
+            slots[i] = buffer.getShort();
+        dirty = false;
+    }
+
+    private void addToMinute(long minute, int steps) {
+        if (steps <= 0)
+            return;
+
+        if (minute > lastMinute) {
+            //Clear the minutes the ring moves past, at most once around
+            long clearFrom = Math.max(lastMinute + 1, minute - MINUTES + 1);
+            for (long cleared = clearFrom; cleared <= minute; cleared++)
+                slots[slotOf(cleared)] = 0;
+            lastMinute = minute;
+        }
+        else if (!isInRing(minute)) {
+            return;
+        }
+
+        int slot = slotOf(minute);
+        slots[slot] = (short) Math.min(Short.MAX_VALUE, slots[slot] + steps);
+        dirty = true;
+    }
+
+    private boolean isInRing(long minute) {
+        return lastMinute >= 0 && minute <= lastMinute && minute > lastMinute - MINUTES;
+    }
+
+    private static int slotOf(long minute) {
+        return (int) (minute % MINUTES);
+    }
+
+    //endregion
+}
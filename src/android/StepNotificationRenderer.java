@@ -0,0 +1,229 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationCompat;
+import android.util.Log;
+import android.widget.RemoteViews;
+
+/**
+ * Renders the step count into the service's sticky notification.
+ *
+ * The resource ids are looked up once. An update only reaches the NotificationManager if the text
+ * changed, at most once per "notificationIntervalMs" (the last count is always shown, trailing edge)
+ * and never while the screen is off: nobody can see the notification then, the latest count is
+ * rendered when the screen comes back on.
+ *
+ * Main thread only.
+ */
+final class StepNotificationRenderer {
+
+    //region Constants
+
+    private static final String TAG = "StepNotification";
+
+    //endregion
+
+    //region Variables
+
+    private final Context context;
+    private final int notificationId;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private NotificationCompat.Builder builder;
+    private NotificationManager notificationManager;
+
+    //Resource ids, looked up once
+    private int layoutId;
+    private int stepsTextId;
+    private int stepsViewId;
+    private String stepsFormat;
+
+    private String renderedText;
+    private long lastRenderedAt;
+    private boolean screenOn = true;
+    private boolean pending;
+    private int pendingSteps;
+    private BroadcastReceiver screenReceiver;
+
+    private final Runnable renderPending = new Runnable() {
+        @Override
+        public void run() {
+            if (pending)
+                render(pendingSteps);
+        }
+    };
+
+    //endregion
+
+    StepNotificationRenderer(@NonNull Context context, int notificationId) {
+        this.context = context;
+        this.notificationId = notificationId;
+    }
+
+    //region Methods
+
+    /**
+     * Builds the notification the service is started in the foreground with and starts following
+     * the screen state.
+     */
+    @SuppressLint("DiscouragedApi")
+    Notification start() {
+        Log.d(TAG, "Building the notification...");
+        String packageName = context.getPackageName();
+        layoutId = context.getResources().getIdentifier("sticky_notification", "layout", packageName);
+        stepsTextId = context.getResources().getIdentifier("mct_sc_notification_steps", "string", packageName);
+        stepsViewId = context.getResources().getIdentifier("tvSteps", "id", packageName);
+        stepsFormat = context.getString(stepsTextId);
+        notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        PackageManager pm = context.getPackageManager();
+        ApplicationInfo appInfo = context.getApplicationInfo();
+        String appName = pm.getApplicationLabel(appInfo).toString();
+        int appIconRes = context.getResources().getIdentifier("ic_notification", "drawable", packageName);
+        int baseFlags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            baseFlags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        builder = new NotificationCompat.Builder(context, createChannel())
+            .setSmallIcon(appIconRes)
+            .setContentTitle(appName)   // shown if the system decides not to use your custom RemoteViews
+            .setContentText("")
+            .setOngoing(true)
+            .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+            .setPriority(NotificationCompat.PRIORITY_MAX)
+            .setContentIntent(
+                PendingIntent.getActivity(
+                    context, 1110,
+                    pm.getLaunchIntentForPackage(packageName),
+                    baseFlags
+                )
+            );
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        screenOn = powerManager == null || powerManager.isInteractive();
+        registerScreenReceiver();
+
+        renderedText = String.format(stepsFormat, 0);
+        lastRenderedAt = SystemClock.elapsedRealtime();
+        return buildNotification(renderedText);
+    }
+
+    /**
+     * Shows the given count, throttled (see the class comment).
+     */
+    void update(int steps) {
+        StepMetrics.count(StepMetrics.NOTIFICATION_REQUESTS);
+        pending = true;
+        pendingSteps = steps;
+        if (!screenOn || builder == null)
+            return;
+
+        long wait = lastRenderedAt + StepCounterConfig.getNotificationIntervalMs() - SystemClock.elapsedRealtime();
+        handler.removeCallbacks(renderPending);
+        if (wait <= 0)
+            render(steps);
+        else
+            handler.postDelayed(renderPending, wait);
+    }
+
+    void stop() {
+        handler.removeCallbacks(renderPending);
+        pending = false;
+        if (screenReceiver != null) {
+            try {
+                context.unregisterReceiver(screenReceiver);
+            }
+            catch (IllegalArgumentException ex) {
+                Log.w(TAG, "Screen receiver was not registered: " + ex.getMessage());
+            }
+            screenReceiver = null;
+        }
+    }
+
+    private void render(int steps) {
+        pending = false;
+        String text = String.format(stepsFormat, steps);
+        if (text.equals(renderedText))
+            return;
+
+        renderedText = text;
+        lastRenderedAt = SystemClock.elapsedRealtime();
+        if (notificationManager != null) {
+            notificationManager.notify(notificationId, buildNotification(text));
+            StepMetrics.count(StepMetrics.NOTIFICATION_UPDATES);
+        }
+    }
+
+    private Notification buildNotification(@NonNull String stepsText) {
+        //custom notification UI...
+        RemoteViews views = new RemoteViews(context.getPackageName(), layoutId);
+        views.setTextViewText(stepsViewId, stepsText);
+        builder
+            .setCustomContentView(views)
+            .setCustomBigContentView(views)
+            .setStyle(new NotificationCompat.DecoratedCustomViewStyle());
+        return builder.build();
+    }
+
+    private void registerScreenReceiver() {
+        if (screenReceiver != null)
+            return;
+
+        screenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context receiverContext, Intent intent) {
+                screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+                if (!screenOn)
+                    handler.removeCallbacks(renderPending);
+                else if (pending)
+                    render(pendingSteps);
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        context.registerReceiver(screenReceiver, filter);
+    }
+
+    @NonNull
+    private String createChannel() {
+        String channelId   = context.getPackageName() + ".steps";
+        String channelName = "Step Counter Updates";
+
+        NotificationManager mgr =
+            (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        if (mgr != null) {
+            NotificationChannel channel = new NotificationChannel(
+                channelId,
+                channelName,
+                NotificationManager.IMPORTANCE_HIGH    // ← HIGH for heads-up
+            );
+            channel.enableLights(false);
+            channel.setVibrationPattern(new long[]{0});
+            channel.enableVibration(false);
+            channel.setSound(null, null);
+            channel.setShowBadge(false);
+            mgr.createNotificationChannel(channel);
+        }
+
+        return channelId;
+    }
+
+    //endregion
+}
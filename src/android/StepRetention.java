@@ -0,0 +1,156 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+/**
+ * Keeps the history bounded. Hourly buckets are kept for a configurable number of days, older ones
+ * are rolled up into daily buckets, daily ones into weekly buckets (ISO weeks, keyed by their Monday)
+ * and weekly ones into monthly buckets (a week belongs to the month of its Thursday, like in ISO 8601).
+ *
+ * Every rollup is one journal transaction: the aggregate plus the removal of the buckets it replaces.
+ * Only buckets which left their window are touched, so a run at the start of an hour usually does
+ * nothing, or rolls up a single day.
+ */
+final class StepRetention {
+
+    //region Constants
+
+    private static final int TARGET_DAY = 0;
+    private static final int TARGET_WEEK = 1;
+    private static final int TARGET_MONTH = 2;
+
+    //endregion
+
+    private StepRetention() {
+    }
+
+    //region Static Methods
+
+    /**
+     * @return the number of buckets that were rolled up or removed
+     */
+    static int apply(@NonNull StepJournal journal, @NonNull Calendar now, int hourlyRetentionDays,
+                     int dailyRetentionDays, int weeklyRetentionWeeks) throws IOException {
+        int hourCutoff = StepAccounting.dayKey(daysAgo(now, hourlyRetentionDays)) * 100;
+        int dayCutoff = StepAccounting.dayKey(daysAgo(now, dailyRetentionDays));
+        int weekCutoff = StepAccounting.dayKey(daysAgo(now, weeklyRetentionWeeks * 7));
+
+        int count = rollUp(journal, StepJournal.KIND_HOUR, StepJournal.KIND_HISTORY_DAY, hourCutoff, TARGET_DAY);
+        count += rollUp(journal, StepJournal.KIND_HISTORY_DAY, StepJournal.KIND_HISTORY_WEEK, dayCutoff, TARGET_WEEK);
+        count += rollUp(journal, StepJournal.KIND_HISTORY_WEEK, StepJournal.KIND_HISTORY_MONTH, weekCutoff,
+                        TARGET_MONTH);
+
+        //The day buckets the service counts into are only needed for today and yesterday...
+        count += prune(journal, StepJournal.KIND_DAY, dayCutoff);
+        return count;
+    }
+
+    /**
+     * @return the Monday (yyyyMMdd) of the ISO week a day belongs to
+     */
+    static int weekKey(int dayKey) {
+        Calendar calendar = calendarOf(dayKey);
+        int daysSinceMonday = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        calendar.add(Calendar.DATE, -daysSinceMonday);
+        return StepAccounting.dayKey(calendar);
+    }
+
+    /**
+     * @return the month (yyyyMM) a week belongs to, the one of its Thursday
+     */
+    static int monthKey(int weekKey) {
+        Calendar thursday = calendarOf(weekKey);
+        thursday.add(Calendar.DATE, 3);
+        return thursday.get(Calendar.YEAR) * 100 + thursday.get(Calendar.MONTH) + 1;
+    }
+
+    /**
+     * Appends the ISO 8601 label of a week, e.g. "2024-W05".
+     */
+    static void appendWeekLabel(@NonNull StringBuilder target, int weekKey) {
+        Calendar thursday = calendarOf(weekKey);
+        thursday.add(Calendar.DATE, 3);
+        int week = (thursday.get(Calendar.DAY_OF_YEAR) - 1) / 7 + 1;
+        target.append(thursday.get(Calendar.YEAR)).append("-W");
+        if (week < 10)
+            target.append('0');
+        target.append(week);
+    }
+
+    static Calendar calendarOf(int dayKey) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(dayKey / 10000, (dayKey / 100) % 100 - 1, dayKey % 100);
+        return calendar;
+    }
+
+    //endregion
+
+    //region Helpers
+
+    private static Calendar daysAgo(@NonNull Calendar now, int days) {
+        Calendar calendar = (Calendar) now.clone();
+        calendar.add(Calendar.DATE, -days);
+        return calendar;
+    }
+
+    private static int targetKey(int target, int key) {
+        switch (target) {
+            case TARGET_DAY:
+                return key / 100;
+            case TARGET_WEEK:
+                return weekKey(key);
+            default:
+                return monthKey(key);
+        }
+    }
+
+    private static int rollUp(@NonNull StepJournal journal, int fromKind, int toKind, int cutoffKey, int target)
+            throws IOException {
+        int count = 0;
+        while (true) {
+            int first = journal.firstKey(fromKind);
+            if (first < 0 || first >= cutoffKey)
+                return count;
+
+            //Buckets are ordered by key, so everything belonging to the same aggregate is contiguous...
+            int aggregateKey = targetKey(target, first);
+            int steps = 0;
+            for (StepJournal.Bucket bucket : journal.range(fromKind, first, cutoffKey).values()) {
+                if (targetKey(target, bucket.key) != aggregateKey ||
+                    journal.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS - 1)
+                    break;
+
+                steps += bucket.steps;
+                journal.stageDelete(fromKind, bucket.key);
+                count++;
+            }
+
+            StepJournal.Bucket aggregate = journal.get(toKind, aggregateKey);
+            journal.stage(toKind, aggregateKey, (aggregate != null ? aggregate.steps : 0) + steps, 0, 0);
+            journal.commit(true);
+        }
+    }
+
+    private static int prune(@NonNull StepJournal journal, int kind, int cutoffKey) throws IOException {
+        int count = 0;
+        while (true) {
+            int first = journal.firstKey(kind);
+            if (first < 0 || first >= cutoffKey)
+                return count;
+
+            for (StepJournal.Bucket bucket : journal.range(kind, first, cutoffKey).values()) {
+                if (journal.getPendingCount() == StepJournal.MAX_TRANSACTION_RECORDS)
+                    break;
+                journal.stageDelete(kind, bucket.key);
+                count++;
+            }
+            journal.commit(true);
+        }
+    }
+
+    //endregion
+}
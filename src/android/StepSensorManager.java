@@ -2,35 +2,167 @@ package com.mctechnologies.cordovapluginstepcounter;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import android.util.Log;
 
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 import static android.content.Context.SENSOR_SERVICE;
 
 /**
  * Created by Digitalsunray Media GmbH. On 20.07.2018.
+ *
+ * With a max report latency the step counter is registered in batch mode: the sensor hub keeps the
+ * events in its FIFO and wakes the application processor only when the latency is over (or the FIFO
+ * is full). The events of such a burst are delivered to the listener as one update with the latest
+ * (cumulative) value. {@link #flushAndWait(long)} pulls the held back steps out on demand.
+ *
+ * In live mode the step detector is registered as well: each detected step is a provisional step on
+ * top of the last counter value, reported right away for live display. Whenever the counter reports,
+ * the detected steps up to its timestamp are part of its value and stop being provisional.
+ *
+ * Devices without a step counter fall back to the accelerometer: the samples are batched in the
+ * sensor FIFO and run through an AccelerometerStepDetector on the sensor thread, whose step count
+ * (on top of the last value counted before the start) is reported like a counter value. The
+ * detector's CPU time is measured against the CPU_BUDGET. The wake-up accelerometer is used where
+ * there is one, its full FIFO wakes the device up. Without one, steps are only counted while the
+ * device is awake: the FIFO of a non wake-up sensor overflows while it sleeps.
+ *
+ * Everything the SensorManager delivers can be recorded into a trace (see StepTraceRecorder) for
+ * replaying it off the device.
  */
-public class StepSensorManager implements SensorEventListener {
+public class StepSensorManager implements SensorEventListener2 {
+
+    //region Constants
+
+    //50 Hz is plenty for walking and running cadences
+    private static final int ACCELEROMETER_SAMPLING_US = 20000;
+    //The accelerometer is always batched, waking up for every sample would drain the battery
+    private static final int MIN_ACCELEROMETER_LATENCY_US = 5 * 1000 * 1000;
+    //CPU time the software detector may take per second of samples, checked every REPORT_INTERVAL
+    private static final long CPU_BUDGET_NS_PER_SECOND = 200 * 1000;
+    private static final long CPU_REPORT_INTERVAL_NS = 10 * 60 * 1000000000L;
+
+    //endregion
 
     //region Variables
 
     private final  String TAG = "StepSensorManager";
-    private StepChangeListener listener;
+    private final StepLog.Sampler SENSOR_EVENT_SAMPLER = new StepLog.Sampler();
+    private volatile StepChangeListener listener;
     private SensorManager manager;
     private boolean isStarted;
     private float lastSensorValue = -1;
     private Context appContext;
+    private Sensor stepSensor;
+    //Only without a step counter
+    private Sensor accelerometer;
+    private final AccelerometerStepDetector softwareDetector = new AccelerometerStepDetector();
+    //The detector starts at 0 with every start, its steps continue from the last value counted (sensor thread)
+    private int detectorBase;
+    private long lastSampleTimestamp = -1;
+    private long sampleTimeNanos;
+    private long detectorCpuNanos;
+    private volatile long detectorCpuNanosPerSecond = -1;
+    private int samplingPeriodUs;
+    private int maxReportLatencyUs;
+    //Sensor events are delivered on their own thread, never on the main thread of the service
+    private HandlerThread sensorThread;
+    private Handler handler;
+
+    //Events of the current burst, delivered together once the burst is over (one value per hour)
+    private boolean deliveryPending;
+    private final StepValueQueue pendingValues = new StepValueQueue();
+    private final float[] deliveredValues = new float[StepValueQueue.CAPACITY];
+    private final long[] deliveredTimestamps = new long[StepValueQueue.CAPACITY];
+    private int pendingEvents;
+    private final Runnable deliverPending = new Runnable() {
+        @Override
+        public void run() {
+            deliveryPending = false;
+            int events = pendingEvents;
+            pendingEvents = 0;
+            int count = pendingValues.drainTo(deliveredValues, deliveredTimestamps);
+            if (listener == null)
+                return;
+
+            if (events > count) {
+                StepMetrics.count(StepMetrics.EVENTS_COALESCED, events - count);
+                if (StepLog.isLoggable(StepLog.DEBUG))
+                    StepLog.d(TAG, "SENSOR_BATCH: %d events coalesced into %d, value=%s", events, count,
+                              deliveredValues[count - 1]);
+            }
+            for (int i = 0; i < count; i++)
+                listener.onChanged(deliveredValues[i], deliveredTimestamps[i]);
+        }
+    };
+
+    //Sensor thread: the journal is read off the main thread, the accelerometer is registered once the base
+    //is known. The listener gets the base first, as the value the service starts at, or the first steps
+    //detected would become that value and not be counted
+    private final Runnable startSoftwareCounting = new Runnable() {
+        @Override
+        public void run() {
+            StepChangeListener startListener = listener;
+            if (startListener == null)
+                return;
+            detectorBase = StepCounterHelper.getLastCounterValue(appContext);
+            startListener.onChanged(detectorBase, SystemClock.elapsedRealtimeNanos());
+            register();
+        }
+    };
+
+    //Live mode: timestamps of the detected steps the counter has not reported yet (sensor thread only)
+    private static final int MAX_PROVISIONAL_STEPS = 256;
+    private Sensor detectorSensor;
+    private boolean liveMode;
+    private final long[] provisionalTimestamps = new long[MAX_PROVISIONAL_STEPS];
+    private int provisionalHead;
+    private int provisionalCount;
+    private volatile int provisionalSteps;
+
+    //Sensor thread only
+    private StepTraceRecorder traceRecorder;
+
+    //Released once the steps of the running flush() request were passed to the listener
+    private final Object flushLock = new Object();
+    private CountDownLatch pendingFlush;
+    private final Runnable completeFlush = new Runnable() {
+        @Override
+        public void run() {
+            CountDownLatch latch;
+            synchronized (flushLock) {
+                latch = pendingFlush;
+                pendingFlush = null;
+            }
+            if (latch != null)
+                latch.countDown();
+        }
+    };
 
     //endregion
 
     //region Methods
 
+    /**
+     * @param maxReportLatencyUs how long the sensor may hold events back in its FIFO, 0 to get every
+     *                           event right away
+     */
     @SuppressLint("InlinedApi")
-    public void start(@NonNull StepChangeListener listener, @NonNull Context context, int samplingPeriodUs) {
+    public void start(@NonNull StepChangeListener listener, @NonNull Context context, int samplingPeriodUs,
+                      int maxReportLatencyUs) {
         try {
             this.listener = listener;
             this.appContext = context.getApplicationContext();
@@ -44,11 +176,31 @@ public class StepSensorManager implements SensorEventListener {
             //Let's start the step detector sensor...
             manager = (SensorManager) context.getSystemService(SENSOR_SERVICE);
             if(manager != null) {
-                Sensor mStepSensor = manager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
-                manager.registerListener(this, mStepSensor, samplingPeriodUs);
+                this.stepSensor = manager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+                if (stepSensor == null) {
+                    accelerometer = findAccelerometer();
+                    softwareDetector.reset();
+                    StepCounterHelper.logToPrefs(appContext, "WARN", TAG, "start: No step counter, " +
+                                                 (accelerometer != null ? "counting with the accelerometer"
+                                                                        : "no accelerometer either"));
+                    if (accelerometer != null && !isWakeUp(accelerometer))
+                        StepLog.w(TAG, "ACCELEROMETER_NOT_WAKE_UP: No wake-up accelerometer, steps are only " +
+                                  "counted while the device is awake");
+                }
+                this.samplingPeriodUs = samplingPeriodUs;
+                this.maxReportLatencyUs = Math.max(0, maxReportLatencyUs);
+                sensorThread = new HandlerThread("StepCounterSensor", Process.THREAD_PRIORITY_BACKGROUND);
+                sensorThread.start();
+                this.handler = new Handler(sensorThread.getLooper());
+                if (accelerometer != null)
+                    handler.post(startSoftwareCounting);
+                else
+                    register();
 
                 isStarted = true;
-                StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "start: Sensor registered successfully");
+                StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "start: Sensor registered successfully" +
+                                             ", maxReportLatencyUs=" + this.maxReportLatencyUs +
+                                             (isBatching() ? " (batching)" : ""));
             }
             else {
                 Log.i(TAG, "Could not register TYPE_STEP_COUNTER sensor!");
@@ -63,6 +215,189 @@ public class StepSensorManager implements SensorEventListener {
         }
     }
 
+    /**
+     * Changes the max report latency of a started sensor, which is registered again for that.
+     * @return true if the sensor was registered again
+     */
+    boolean setMaxReportLatencyUs(int maxReportLatencyUs) {
+        maxReportLatencyUs = Math.max(0, maxReportLatencyUs);
+        if (!isStarted || manager == null || maxReportLatencyUs == this.maxReportLatencyUs)
+            return false;
+
+        this.maxReportLatencyUs = maxReportLatencyUs;
+        manager.unregisterListener(this, getCountingSensor());
+        register();
+        StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "Sensor registered again, maxReportLatencyUs=" +
+                                     maxReportLatencyUs + (isBatching() ? " (batching)" : ""));
+        return true;
+    }
+
+    /**
+     * @return true if the sensor has a FIFO and events may be held back in it
+     */
+    boolean isBatching() {
+        Sensor sensor = getCountingSensor();
+        return (maxReportLatencyUs > 0 || sensor == accelerometer) && sensor != null &&
+               sensor.getFifoMaxEventCount() > 0;
+    }
+
+    /**
+     * @return true if the steps are counted by the software detector on accelerometer samples
+     */
+    boolean isSoftwareCounting() {
+        return stepSensor == null && accelerometer != null;
+    }
+
+    /**
+     * @return the CPU time the software detector took per second of accelerometer samples over the
+     *         last report interval, -1 if not measured (yet)
+     */
+    long getDetectorCpuNanosPerSecond() {
+        return detectorCpuNanosPerSecond;
+    }
+
+    /**
+     * @return true if the device has a step counter, or at least an accelerometer to count steps with
+     */
+    static boolean canCountSteps(@NonNull PackageManager pm) {
+        return Build.VERSION.SDK_INT >= 19 && pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_COUNTER) ||
+               pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_ACCELEROMETER);
+    }
+
+    private Sensor getCountingSensor() {
+        return stepSensor != null ? stepSensor : accelerometer;
+    }
+
+    /* The wake-up accelerometer if there is one, it keeps counting while the device sleeps. */
+    private Sensor findAccelerometer() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Sensor wakeUp = manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER, true);
+            if (wakeUp != null)
+                return wakeUp;
+        }
+        return manager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    }
+
+    private static boolean isWakeUp(@NonNull Sensor sensor) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && sensor.isWakeUpSensor();
+    }
+
+    /**
+     * Registers (or drops) the step detector for live counting. Without a step detector this does
+     * nothing.
+     */
+    synchronized void setLiveMode(boolean enabled) {
+        if (!isStarted || manager == null || enabled == liveMode)
+            return;
+
+        if (enabled) {
+            detectorSensor = manager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR);
+            if (detectorSensor == null)
+                return;
+            manager.registerListener(this, detectorSensor, SensorManager.SENSOR_DELAY_FASTEST, handler);
+        }
+        else {
+            manager.unregisterListener(this, detectorSensor);
+            //The counter will report those steps anyway...
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    provisionalCount = 0;
+                    provisionalSteps = 0;
+                }
+            });
+        }
+
+        liveMode = enabled;
+        StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "Live step detection " + (enabled ? "on" : "off"));
+    }
+
+    /**
+     * @return the steps the step detector saw after the last counter value (0 outside live mode)
+     */
+    int getProvisionalSteps() {
+        return provisionalSteps;
+    }
+
+    /**
+     * Starts recording the sensor input into the given trace file (appending a new session), or stops
+     * recording if null.
+     */
+    void setTraceFile(final File file) {
+        Handler sensorHandler = handler;
+        if (!isStarted || sensorHandler == null)
+            return;
+
+        sensorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeTrace();
+                if (file == null)
+                    return;
+                try {
+                    traceRecorder = StepTraceRecorder.open(file, StepTraceRecorder.DEFAULT_MAX_BYTES,
+                                                           System.currentTimeMillis(),
+                                                           SystemClock.elapsedRealtimeNanos());
+                    StepLog.i(TAG, "Recording sensor trace to %s", file.getName());
+                }
+                catch (Exception ex) {
+                    StepLog.e(TAG, ex, "Could not start the sensor trace");
+                }
+            }
+        });
+    }
+
+    /* Sensor thread: writes out and closes the trace being recorded. */
+    private void closeTrace() {
+        if (traceRecorder == null)
+            return;
+        try {
+            traceRecorder.close();
+        }
+        catch (Exception ex) {
+            StepLog.w(TAG, "Could not close the sensor trace: %s", ex.getMessage());
+        }
+        traceRecorder = null;
+    }
+
+    /**
+     * Makes the sensor deliver the steps it holds back in its FIFO and waits until they reached the
+     * listener. Callers that come while a flush is running wait for that one. Must not be called on
+     * the thread the sensor events are delivered on.
+     * @return true if the flush completed within the timeout
+     */
+    boolean flushAndWait(long timeoutMs) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (flushLock) {
+            if (!isStarted || manager == null)
+                return false;
+
+            if (pendingFlush == null) {
+                pendingFlush = new CountDownLatch(1);
+                if (!manager.flush(this)) {
+                    pendingFlush = null;
+                    return false;
+                }
+            }
+            latch = pendingFlush;
+        }
+
+        return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void register() {
+        if (isSoftwareCounting()) {
+            manager.registerListener(this, accelerometer, ACCELEROMETER_SAMPLING_US,
+                                     Math.max(maxReportLatencyUs, MIN_ACCELEROMETER_LATENCY_US), handler);
+            return;
+        }
+
+        if (isBatching())
+            manager.registerListener(this, stepSensor, samplingPeriodUs, maxReportLatencyUs, handler);
+        else
+            manager.registerListener(this, stepSensor, samplingPeriodUs, handler);
+    }
+
     void stop() {
         try {
              /*
@@ -75,12 +410,33 @@ public class StepSensorManager implements SensorEventListener {
              */
 
             isStarted = false;
+            liveMode = false;
             listener = null;
+            if (handler != null) {
+                handler.removeCallbacks(startSoftwareCounting);
+                handler.removeCallbacks(deliverPending);
+            }
+            deliveryPending = false;
+            pendingEvents = 0;
+            pendingValues.clear();
+            completeFlush.run();
 
             //Let's stop the step detector sensor :(
             if(manager != null) {
                 manager.unregisterListener(this);
+                if (handler != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            closeTrace();
+                        }
+                    });
+                }
                 Log.i(TAG, "STEP_DETECTOR sensor is unregistered!");
+                if (sensorThread != null) {
+                    sensorThread.quitSafely();
+                    sensorThread = null;
+                }
                 if (appContext != null) {
                     StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "stop: Sensor unregistered");
                 }
@@ -100,29 +456,148 @@ public class StepSensorManager implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
+        StepMetrics.count(StepMetrics.SENSOR_EVENTS);
+        if (traceRecorder != null && event.sensor != null)
+            recordTrace(event);
+
+        if (event.sensor != null && event.sensor.getType() == Sensor.TYPE_STEP_DETECTOR) {
+            onStepDetected(event.timestamp);
+            return;
+        }
+        if (event.sensor != null && event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            onAccelerometerSample(event);
+            return;
+        }
+
         if(listener != null) {
             float sensorValue = event.values[0];
+            reconcileProvisionalSteps(event.timestamp);
 
             // Detect potential device reboot: sensor value decreased significantly
             if (lastSensorValue > 0 && sensorValue < lastSensorValue) {
-                Log.w(TAG, "SENSOR_RESET: Sensor value decreased. last=" + lastSensorValue +
-                      " current=" + sensorValue + " delta=" + (sensorValue - lastSensorValue) +
-                      " POSSIBLE_REBOOT");
-                if (appContext != null) {
-                    StepCounterHelper.logToPrefs(appContext, "WARN", TAG,
-                        "SENSOR_RESET: last=" + lastSensorValue + " current=" + sensorValue + " POSSIBLE_REBOOT");
-                }
+                StepLog.w(TAG, "SENSOR_RESET: Sensor value decreased. last=%s current=%s delta=%s POSSIBLE_REBOOT",
+                          lastSensorValue, sensorValue, sensorValue - lastSensorValue);
             }
 
             lastSensorValue = sensorValue;
-            Log.d(TAG, "SENSOR_EVENT: value=" + sensorValue + " timestamp=" + event.timestamp);
-            listener.onChanged(sensorValue);
+            if (StepLog.isLoggable(StepLog.DEBUG) && SENSOR_EVENT_SAMPLER.sample())
+                StepLog.d(TAG, "SENSOR_EVENT: value=%s timestamp=%d", sensorValue, event.timestamp);
+
+            queueValue(sensorValue, event.timestamp);
+        }
+    }
+
+    /* The events of a batch arrive back to back, only the last (cumulative) value of each hour is passed on... */
+    private void queueValue(float sensorValue, long timestamp) {
+        pendingValues.add(sensorValue, timestamp, System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+        pendingEvents++;
+        if (!deliveryPending) {
+            deliveryPending = true;
+            handler.post(deliverPending);
+        }
+    }
+
+    private void onAccelerometerSample(@NonNull SensorEvent event) {
+        long start = System.nanoTime();
+        boolean stepped = softwareDetector.onSample(event.timestamp, event.values[0], event.values[1],
+                                                    event.values[2]);
+        detectorCpuNanos += System.nanoTime() - start;
+
+        if (lastSampleTimestamp >= 0 && event.timestamp > lastSampleTimestamp)
+            sampleTimeNanos += Math.min(event.timestamp - lastSampleTimestamp, 1000000000L);
+        lastSampleTimestamp = event.timestamp;
+        if (sampleTimeNanos >= CPU_REPORT_INTERVAL_NS)
+            reportDetectorCpu();
+
+        if (stepped && listener != null)
+            queueValue(detectorBase + softwareDetector.getSteps(), event.timestamp);
+    }
+
+    private void reportDetectorCpu() {
+        long perSecond = detectorCpuNanos * 1000000000L / sampleTimeNanos;
+        detectorCpuNanosPerSecond = perSecond;
+        if (perSecond > CPU_BUDGET_NS_PER_SECOND)
+            StepLog.w(TAG, "DETECTOR_CPU: %dus per second of samples, over the budget of %dus", perSecond / 1000,
+                      CPU_BUDGET_NS_PER_SECOND / 1000);
+        else if (StepLog.isLoggable(StepLog.DEBUG))
+            StepLog.d(TAG, "DETECTOR_CPU: %dus per second of samples, steps=%d", perSecond / 1000,
+                      softwareDetector.getSteps());
+        detectorCpuNanos = 0;
+        sampleTimeNanos = 0;
+    }
+
+    private void recordTrace(@NonNull SensorEvent event) {
+        try {
+            traceRecorder.event(event.sensor.getType(), event.timestamp, event.values,
+                                SystemClock.elapsedRealtimeNanos());
+            if (traceRecorder.isFull()) {
+                StepLog.w(TAG, "Sensor trace is full, recording stopped");
+                closeTrace();
+            }
+        }
+        catch (Exception ex) {
+            StepLog.e(TAG, ex, "Sensor trace failed, recording stopped");
+            closeTrace();
+        }
+    }
+
+    private void onStepDetected(long timestamp) {
+        if (provisionalCount == MAX_PROVISIONAL_STEPS) {
+            provisionalHead = (provisionalHead + 1) % MAX_PROVISIONAL_STEPS;
+            provisionalCount--;
+        }
+        provisionalTimestamps[(provisionalHead + provisionalCount) % MAX_PROVISIONAL_STEPS] = timestamp;
+        provisionalCount++;
+        provisionalSteps = provisionalCount;
+
+        StepChangeListener stepChangeListener = listener;
+        if (stepChangeListener != null)
+            stepChangeListener.onProvisionalSteps(provisionalCount);
+    }
+
+    /* The counter value includes every step detected up to its timestamp. */
+    private void reconcileProvisionalSteps(long counterTimestamp) {
+        while (provisionalCount > 0 && provisionalTimestamps[provisionalHead] <= counterTimestamp) {
+            provisionalHead = (provisionalHead + 1) % MAX_PROVISIONAL_STEPS;
+            provisionalCount--;
+        }
+        provisionalSteps = provisionalCount;
+    }
+
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        if (traceRecorder != null && sensor != null) {
+            try {
+                traceRecorder.flushCompleted(sensor.getType(), SystemClock.elapsedRealtimeNanos());
+            }
+            catch (Exception ex) {
+                closeTrace();
+            }
         }
+
+        //The step detector is flushed along in live mode, only the counter's steps are waited for
+        if (sensor != null && sensor.getType() == Sensor.TYPE_STEP_DETECTOR)
+            return;
+
+        //Queued behind the delivery of the flushed events, so the waiters see them counted...
+        if (handler != null)
+            handler.post(completeFlush);
+        else
+            completeFlush.run();
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
         Log.i(TAG, "onAccuracyChanged: " + accuracy);
+        //Delivered on the sensor thread like the events
+        if (traceRecorder != null && sensor != null) {
+            try {
+                traceRecorder.accuracyChanged(sensor.getType(), accuracy, SystemClock.elapsedRealtimeNanos());
+            }
+            catch (Exception ex) {
+                closeTrace();
+            }
+        }
         if (appContext != null) {
             StepCounterHelper.logToPrefs(appContext, "INFO", TAG, "onAccuracyChanged: " + accuracy);
         }
@@ -0,0 +1,84 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+/**
+ * In-memory, authoritative copy of the buckets the service is currently counting into: today, the
+ * current hour and the total. Sensor events only update this object, StepCounterHelper writes the
+ * dirty parts to the journal in one transaction when the service decides to flush.
+ *
+ * Not thread-safe, it is only accessed under the StepCounterHelper lock.
+ */
+final class StepState {
+
+    //region Types
+
+    static final class Period {
+        int key = -1;
+        int steps;
+        int offset;
+        int buffer;
+        /** Steps added by the last sensor value applied to this period. */
+        int delta;
+        /** Steps of this period as in the journal, what the summaries already include. */
+        int flushedSteps;
+        boolean dirty;
+
+        void set(int key, int steps, int offset, int buffer) {
+            this.key = key;
+            this.steps = steps;
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+
+        void invalidate() {
+            key = -1;
+            dirty = false;
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    final Period day = new Period();
+    final Period hour = new Period();
+
+    int total;
+    boolean totalLoaded;
+    boolean totalDirty;
+
+    /** Steps counted since the last flush, used to decide when to flush early. */
+    int unflushedSteps;
+    long lastFlushMillis;
+
+    //endregion
+
+    //region Methods
+
+    boolean isDirty() {
+        return day.dirty || hour.dirty || totalDirty;
+    }
+
+    void markFlushed(long now) {
+        day.flushedSteps = day.steps;
+        hour.flushedSteps = hour.steps;
+        day.dirty = false;
+        hour.dirty = false;
+        totalDirty = false;
+        unflushedSteps = 0;
+        lastFlushMillis = now;
+    }
+
+    /**
+     * Forgets the cached buckets so they get reloaded from the journal, e.g. after they were changed
+     * there directly.
+     */
+    void invalidate() {
+        day.invalidate();
+        hour.invalidate();
+        totalLoaded = false;
+        totalDirty = false;
+        unflushedSteps = 0;
+    }
+
+    //endregion
+}
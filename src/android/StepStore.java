@@ -0,0 +1,19 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+/**
+ * The buckets StepAccounting reads when it moves to another day or hour: the stored state of the
+ * new period and of the one before it. The service reads them from the StepJournal, benchmarks and
+ * simulations can use anything that keeps buckets.
+ */
+interface StepStore {
+
+    /**
+     * @return the bucket, or null if there is none
+     */
+    StepJournal.Bucket get(int kind, int key);
+
+    /**
+     * @return the newest key of the given kind, or -1 if there is no bucket of that kind
+     */
+    int lastKey(int kind);
+}
@@ -0,0 +1,176 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Running step totals per ISO week, month and year, so a summary is a single bucket lookup instead
+ * of a scan of the history. The day is the day bucket the service counts into anyway.
+ *
+ * The totals are kept in the journal (KIND_SUMMARY_*) and updated incrementally: every flush adds
+ * the steps the day gained since the previous flush to its week, month and year, in the same
+ * transaction as the day itself, so they never disagree after a crash. Journals written before the
+ * totals existed get them built once from the day buckets that are still kept (see
+ * dailyRetentionDays), older days are not part of them.
+ */
+final class StepSummary {
+
+    //region Constants
+
+    static final int PERIOD_DAY = 0;
+    static final int PERIOD_WEEK = 1;
+    static final int PERIOD_MONTH = 2;
+    static final int PERIOD_YEAR = 3;
+
+    private static final String[] PERIOD_NAMES = { "day", "week", "month", "year" };
+
+    //Year bucket 0 marks a journal whose totals were built
+    private static final int BUILT_MARKER_KEY = 0;
+
+    //endregion
+
+    private StepSummary() {
+    }
+
+    //region Static Methods
+
+    /**
+     * @return the period constant for "day", "week", "month" or "year", or -1 if unknown
+     */
+    static int parsePeriod(String period) {
+        for (int i = 0; i < PERIOD_NAMES.length; i++) {
+            if (PERIOD_NAMES[i].equals(period))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the key of the period a day belongs to: the day itself, the Monday of its ISO week,
+     *         its month (yyyyMM) or its year
+     */
+    static int periodKey(int period, int dayKey) {
+        switch (period) {
+            case PERIOD_DAY:
+                return dayKey;
+            case PERIOD_WEEK:
+                return StepRetention.weekKey(dayKey);
+            case PERIOD_MONTH:
+                return dayKey / 100;
+            default:
+                return dayKey / 10000;
+        }
+    }
+
+    /**
+     * @return the journal kind holding the given period's totals
+     */
+    static int kindOf(int period) {
+        switch (period) {
+            case PERIOD_DAY:
+                return StepJournal.KIND_DAY;
+            case PERIOD_WEEK:
+                return StepJournal.KIND_SUMMARY_WEEK;
+            case PERIOD_MONTH:
+                return StepJournal.KIND_SUMMARY_MONTH;
+            default:
+                return StepJournal.KIND_SUMMARY_YEAR;
+        }
+    }
+
+    /**
+     * Stages the steps a day gained (or lost) into its week, month and year. Must be committed with
+     * the day bucket.
+     */
+    static void stageDelta(@NonNull StepJournal journal, int dayKey, int delta) throws IOException {
+        if (delta == 0)
+            return;
+
+        for (int period = PERIOD_WEEK; period <= PERIOD_YEAR; period++) {
+            int kind = kindOf(period);
+            int key = periodKey(period, dayKey);
+            StepJournal.Bucket bucket = journal.get(kind, key);
+            journal.stage(kind, key, (bucket != null ? bucket.steps : 0) + delta, 0, 0);
+        }
+    }
+
+    /**
+     * Builds the totals from the day buckets, once per journal.
+     * @return false if they were already built
+     */
+    static boolean ensureBuilt(@NonNull StepJournal journal) throws IOException {
+        if (journal.get(StepJournal.KIND_SUMMARY_YEAR, BUILT_MARKER_KEY) != null)
+            return false;
+
+        //Summed up in memory first, the journal stages at most a transaction's worth of records...
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TreeMap<Integer, Integer>[] totals = new TreeMap[PERIOD_YEAR + 1];
+        for (int period = PERIOD_WEEK; period <= PERIOD_YEAR; period++)
+            totals[period] = new TreeMap<>();
+        for (StepJournal.Bucket day : journal.range(StepJournal.KIND_DAY, 0, Integer.MAX_VALUE).values()) {
+            for (int period = PERIOD_WEEK; period <= PERIOD_YEAR; period++) {
+                int key = periodKey(period, day.key);
+                Integer steps = totals[period].get(key);
+                totals[period].put(key, (steps != null ? steps : 0) + day.steps);
+            }
+        }
+
+        for (int period = PERIOD_WEEK; period <= PERIOD_YEAR; period++) {
+            for (Map.Entry<Integer, Integer> total : totals[period].entrySet()) {
+                if (journal.getPendingCount() >= StepJournal.MAX_TRANSACTION_RECORDS - 1)
+                    journal.commit(false);
+                journal.stage(kindOf(period), total.getKey(), total.getValue(), 0, 0);
+            }
+        }
+        //The marker goes last, a crash before it just builds the totals again
+        journal.stage(StepJournal.KIND_SUMMARY_YEAR, BUILT_MARKER_KEY, 0, 0, 0);
+        journal.commit(true);
+        return true;
+    }
+
+    /**
+     * Renders a summary as {"period": "week", "label": "2024-W05", "steps": X}, with the labels
+     * getHistory() uses ("yyyy-MM-dd", "yyyy-Www", "yyyy-MM", "yyyy").
+     */
+    static String toJson(int period, int key, int steps) {
+        StringBuilder json = new StringBuilder(64);
+        json.append("{\"period\":\"").append(PERIOD_NAMES[period]).append("\",\"label\":\"");
+        switch (period) {
+            case PERIOD_DAY:
+                json.append(key / 10000).append('-');
+                appendTwoDigits(json, (key / 100) % 100);
+                json.append('-');
+                appendTwoDigits(json, key % 100);
+                break;
+            case PERIOD_WEEK:
+                StepRetention.appendWeekLabel(json, key);
+                break;
+            case PERIOD_MONTH:
+                json.append(key / 100).append('-');
+                appendTwoDigits(json, key % 100);
+                break;
+            default:
+                json.append(key);
+                break;
+        }
+        return json.append("\",\"steps\":").append(steps).append('}').toString();
+    }
+
+    static int dayKeyOf(long timeMillis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        return StepAccounting.dayKey(calendar);
+    }
+
+    private static void appendTwoDigits(@NonNull StringBuilder target, int value) {
+        if (value < 10)
+            target.append('0');
+        target.append(value);
+    }
+
+    //endregion
+}
@@ -0,0 +1,123 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.util.Calendar;
+
+/**
+ * Attributes step counter values to the time the steps were taken instead of the time they were
+ * processed, which can be much later with sensor batching or a dozing device.
+ *
+ * Sensor timestamps (elapsed realtime, nanoseconds) are converted to wall clock time. When the steps
+ * between two values span one or more hour boundaries, they are assumed to be evenly spread over that
+ * time and an interpolated value is emitted at each boundary, so every hour (and day) gets its share.
+ * The values come through a StepValueQueue, which keeps the first event of every hour of a batch, so
+ * only the steps of a single event's interval are spread across hours.
+ *
+ * Used on the service's writer thread only.
+ */
+final class StepTimeAttribution {
+
+    //region Constants
+
+    static final int MAX_POINTS = 64;
+
+    //Events that claim to be older than this are taken as processed now, the timestamp can't be trusted
+    private static final long MAX_EVENT_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    //endregion
+
+    //region Variables
+
+    private long lastTimeMillis = -1;
+    private float lastValue = -1;
+    private final Calendar calendar = Calendar.getInstance();
+
+    //endregion
+
+    //region Static Methods
+
+    /**
+     * @param eventTimestampNanos SensorEvent.timestamp, in the elapsedRealtimeNanos() time base
+     * @return the wall clock time of the event, never after nowMillis
+     */
+    static long toWallClock(long eventTimestampNanos, long nowMillis, long elapsedRealtimeNanos) {
+        long ageMillis = (elapsedRealtimeNanos - eventTimestampNanos) / 1000000L;
+        if (eventTimestampNanos <= 0 || ageMillis < 0 || ageMillis > MAX_EVENT_AGE_MS)
+            return nowMillis;
+        return nowMillis - ageMillis;
+    }
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * Splits the steps since the previous value at the hour boundaries in between.
+     * @param values receives the values to apply, in order, the last one is always the given value
+     * @param times receives the wall clock time of each value
+     * @return the number of points written (at most MAX_POINTS)
+     */
+    int attribute(float value, long timeMillis, float[] values, long[] times) {
+        //Time never goes back, values older than the previous one are counted with the previous one...
+        if (timeMillis < lastTimeMillis)
+            timeMillis = lastTimeMillis;
+
+        int count = 0;
+        if (lastTimeMillis >= 0 && value > lastValue && timeMillis > lastTimeMillis) {
+            calendar.setTimeInMillis(lastTimeMillis);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+
+            //Spread over too many hours (e.g. days without the service), the oldest hours share one point
+            long boundary = calendar.getTimeInMillis();
+            long hours = (timeMillis - boundary) / (60 * 60 * 1000L) + 1;
+            if (hours > MAX_POINTS - 1) {
+                calendar.setTimeInMillis(timeMillis);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                calendar.add(Calendar.HOUR_OF_DAY, -(MAX_POINTS - 2));
+                boundary = calendar.getTimeInMillis();
+            }
+
+            double stepsPerMilli = (value - lastValue) / (double) (timeMillis - lastTimeMillis);
+            while (boundary <= timeMillis && count < MAX_POINTS - 1) {
+                //The last millisecond of the hour that ends at the boundary...
+                values[count] = (float) (lastValue + stepsPerMilli * (boundary - lastTimeMillis));
+                times[count] = boundary - 1;
+                count++;
+
+                calendar.add(Calendar.HOUR_OF_DAY, 1);
+                boundary = calendar.getTimeInMillis();
+            }
+        }
+
+        values[count] = value;
+        times[count] = timeMillis;
+        count++;
+
+        lastValue = value;
+        lastTimeMillis = timeMillis;
+        return count;
+    }
+
+    /**
+     * Forgets the previous value, e.g. when the sensor is registered again.
+     */
+    void reset() {
+        lastTimeMillis = -1;
+        lastValue = -1;
+    }
+
+    /**
+     * Starts over from a value that was already applied, e.g. the first one after a counter reset:
+     * the steps up to it are not spread over the time before, the ones after it are.
+     */
+    void reset(float value, long timeMillis) {
+        lastValue = value;
+        lastTimeMillis = timeMillis;
+    }
+
+    //endregion
+}
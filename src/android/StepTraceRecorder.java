@@ -0,0 +1,190 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Records what StepSensorManager gets from the SensorManager (sensor events, accuracy changes and
+ * completed flushes) into a compact binary trace, which StepTraceReplay feeds back into the pipeline.
+ *
+ * File: magic, version, then records. Every record starts with its kind, the sensor type, a count
+ * byte and a timestamp (elapsedRealtimeNanos() time base):
+ * - SESSION: one per recording session (a reboot restarts the time base), followed by the wall clock
+ *   time in milliseconds at the timestamp.
+ * - DELIVERY: the time the events that follow were delivered, later than their own timestamps when
+ *   they were batched.
+ * - EVENT: followed by count float values.
+ * - ACCURACY: count is the new accuracy.
+ * - FLUSH: a flush completed.
+ *
+ * Writes are buffered, the trace stops growing at its size limit. Used on the sensor thread only.
+ */
+final class StepTraceRecorder {
+
+    //region Constants
+
+    static final int MAGIC = 0x53545452; // "STTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 11;
+
+    static final byte RECORD_SESSION = 1;
+    static final byte RECORD_DELIVERY = 2;
+    static final byte RECORD_EVENT = 3;
+    static final byte RECORD_ACCURACY = 4;
+    static final byte RECORD_FLUSH = 5;
+
+    static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_VALUES = 3;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    //Events delivered within this long of the last DELIVERY record share it
+    private static final long DELIVERY_RESOLUTION_NS = 50 * 1000000L;
+
+    //endregion
+
+    //region Variables
+
+    private final DataOutputStream out;
+    private final long maxBytes;
+    private long bytes;
+    private long lastDeliveryNs = -1;
+
+    //endregion
+
+    private StepTraceRecorder(@NonNull DataOutputStream out, long size, long maxBytes) {
+        this.out = out;
+        this.bytes = size;
+        this.maxBytes = maxBytes;
+    }
+
+    //region Static Methods
+
+    /**
+     * Opens a trace for appending a new session, a missing or invalid trace file is started over. A
+     * record cut off by the end of the previous session (the process was killed) is dropped.
+     */
+    static StepTraceRecorder open(@NonNull File file, long maxBytes, long wallClockMillis,
+                                  long elapsedRealtimeNanos) throws IOException {
+        long validLength = getValidLength(file);
+        boolean append = validLength >= HEADER_SIZE;
+        if (append && validLength < file.length()) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(validLength);
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append),
+                                                                             BUFFER_SIZE));
+        if (!append) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        StepTraceRecorder recorder = new StepTraceRecorder(out, append ? validLength : HEADER_SIZE, maxBytes);
+        if (recorder.reserve(RECORD_HEADER_SIZE + 8)) {
+            recorder.writeRecordHeader(RECORD_SESSION, 0, 0, elapsedRealtimeNanos);
+            out.writeLong(wallClockMillis);
+        }
+        return recorder;
+    }
+
+    /* Returns the length of the complete records of a trace file, -1 if it is no trace. */
+    private static long getValidLength(@NonNull File file) {
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return -1;
+
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return -1;
+
+            long position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= length) {
+                byte kind = in.readByte();
+                in.readByte();
+                int count = in.readUnsignedByte();
+                int payload = kind == RECORD_SESSION ? 8 : kind == RECORD_EVENT ? 4 * count : 0;
+                if (kind < RECORD_SESSION || kind > RECORD_FLUSH ||
+                    position + RECORD_HEADER_SIZE + payload > length)
+                    break;
+                in.skipBytes(8 + payload);
+                position += RECORD_HEADER_SIZE + payload;
+            }
+            return position;
+        }
+        catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * @param deliveredAtNs when the event reached the listener, elapsedRealtimeNanos()
+     */
+    void event(int sensorType, long timestampNs, @NonNull float[] values, long deliveredAtNs) throws IOException {
+        int count = Math.min(values.length, MAX_VALUES);
+        if (lastDeliveryNs < 0 || deliveredAtNs - lastDeliveryNs > DELIVERY_RESOLUTION_NS) {
+            if (!reserve(RECORD_HEADER_SIZE))
+                return;
+            writeRecordHeader(RECORD_DELIVERY, sensorType, 0, deliveredAtNs);
+            lastDeliveryNs = deliveredAtNs;
+        }
+
+        if (!reserve(RECORD_HEADER_SIZE + 4 * count))
+            return;
+        writeRecordHeader(RECORD_EVENT, sensorType, count, timestampNs);
+        for (int i = 0; i < count; i++)
+            out.writeFloat(values[i]);
+    }
+
+    void accuracyChanged(int sensorType, int accuracy, long elapsedRealtimeNanos) throws IOException {
+        if (reserve(RECORD_HEADER_SIZE))
+            writeRecordHeader(RECORD_ACCURACY, sensorType, accuracy, elapsedRealtimeNanos);
+    }
+
+    void flushCompleted(int sensorType, long elapsedRealtimeNanos) throws IOException {
+        if (reserve(RECORD_HEADER_SIZE))
+            writeRecordHeader(RECORD_FLUSH, sensorType, 0, elapsedRealtimeNanos);
+    }
+
+    /**
+     * @return true once the trace reached its size limit, later records are dropped
+     */
+    boolean isFull() {
+        return bytes >= maxBytes;
+    }
+
+    void close() throws IOException {
+        out.close();
+    }
+
+    private boolean reserve(int size) {
+        if (bytes + size > maxBytes) {
+            bytes = maxBytes;
+            return false;
+        }
+        bytes += size;
+        return true;
+    }
+
+    private void writeRecordHeader(byte kind, int sensorType, int count, long timestampNs) throws IOException {
+        out.writeByte(kind);
+        out.writeByte(sensorType);
+        out.writeByte(count);
+        out.writeLong(timestampNs);
+    }
+
+    //endregion
+}
@@ -0,0 +1,426 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Feeds a trace recorded by StepTraceRecorder into a StepChangeListener, as StepSensorManager would
+ * have: counter values (the last one of each delivered batch), step detector steps and, for devices
+ * without a step counter, the steps AccelerometerStepDetector finds in the accelerometer samples.
+ *
+ * The listener reads the time from a {@link SimulatedClock} that follows the trace: it stands at the
+ * delivery time of the events being replayed and restarts with every recorded session, like the
+ * elapsed realtime does after a reboot. The wall clock can be shifted, e.g. to move a trace across
+ * midnight or the end of a year. Replays run as fast as possible or at a multiple of real time.
+ *
+ * Pure Java, {@link #main(String[])} replays a trace on a plain JVM through the service's
+ * StepAccounting (with the buckets in a {@link MemoryStore}) and prints the steps per day.
+ */
+final class StepTraceReplay {
+
+    //region Constants
+
+    private static final int TYPE_ACCELEROMETER = 1;
+    private static final int TYPE_STEP_DETECTOR = 18;
+    private static final int TYPE_STEP_COUNTER = 19;
+
+    //endregion
+
+    //region Types
+
+    /**
+     * Clock of a replay, moved forward by the trace only.
+     */
+    static final class SimulatedClock implements StepClock {
+        private long wallClockShiftMillis;
+        private long sessionWallClockMillis;
+        private long sessionElapsedNanos;
+        private long elapsedNanos;
+
+        void setWallClockShiftMillis(long shiftMillis) {
+            wallClockShiftMillis = shiftMillis;
+        }
+
+        void startSession(long elapsedRealtimeNanos, long wallClockMillis) {
+            sessionElapsedNanos = elapsedRealtimeNanos;
+            sessionWallClockMillis = wallClockMillis;
+            elapsedNanos = elapsedRealtimeNanos;
+        }
+
+        /**
+         * @return how far the clock moved, 0 if the time is not after the current time
+         */
+        long advanceTo(long elapsedRealtimeNanos) {
+            if (elapsedRealtimeNanos <= elapsedNanos)
+                return 0;
+            long advanced = elapsedRealtimeNanos - elapsedNanos;
+            elapsedNanos = elapsedRealtimeNanos;
+            return advanced;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return sessionWallClockMillis + wallClockShiftMillis + (elapsedNanos - sessionElapsedNanos) / 1000000L;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    /**
+     * Buckets kept in memory instead of a journal, for replays and checks of StepAccounting.
+     */
+    static final class MemoryStore implements StepStore {
+        private final Map<Integer, TreeMap<Integer, StepJournal.Bucket>> buckets = new HashMap<>();
+
+        @Override
+        public StepJournal.Bucket get(int kind, int key) {
+            return index(kind).get(key);
+        }
+
+        @Override
+        public int lastKey(int kind) {
+            TreeMap<Integer, StepJournal.Bucket> index = index(kind);
+            return index.isEmpty() ? -1 : index.lastKey();
+        }
+
+        void put(int kind, int key, int steps, int offset, int buffer) {
+            StepJournal.Bucket bucket = index(kind).get(key);
+            if (bucket == null) {
+                bucket = new StepJournal.Bucket(kind, key);
+                index(kind).put(key, bucket);
+            }
+            bucket.steps = steps;
+            bucket.offset = offset;
+            bucket.buffer = buffer;
+        }
+
+        /**
+         * Writes the dirty parts of the state, like StepCounterHelper.flushSteps() does to the journal.
+         */
+        void flush(@NonNull StepState state) {
+            if (state.day.dirty)
+                put(StepJournal.KIND_DAY, state.day.key, state.day.steps, state.day.offset, state.day.buffer);
+            if (state.hour.dirty)
+                put(StepJournal.KIND_HOUR, state.hour.key, state.hour.steps, state.hour.offset, state.hour.buffer);
+            if (state.totalDirty)
+                put(StepJournal.KIND_TOTAL, 0, state.total, 0, 0);
+            state.markFlushed(0);
+        }
+
+        /**
+         * @return the buckets of a kind, by key
+         */
+        TreeMap<Integer, StepJournal.Bucket> index(int kind) {
+            TreeMap<Integer, StepJournal.Bucket> index = buckets.get(kind);
+            if (index == null) {
+                index = new TreeMap<>();
+                buckets.put(kind, index);
+            }
+            return index;
+        }
+    }
+
+    static final class Result {
+        int sessions;
+        int batches;
+        int counterEvents;
+        int detectorEvents;
+        int accelerometerSamples;
+        int accuracyChanges;
+        int flushes;
+        //Simulated time covered by the trace and real time the replay took
+        long simulatedNanos;
+        long replayNanos;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "sessions=%d batches=%d counterEvents=%d detectorEvents=%d " +
+                                 "accelerometerSamples=%d accuracyChanges=%d flushes=%d simulated=%ds replay=%dms (%.0fx)",
+                                 sessions, batches, counterEvents, detectorEvents, accelerometerSamples,
+                                 accuracyChanges, flushes, simulatedNanos / 1000000000L, replayNanos / 1000000L,
+                                 replayNanos > 0 ? simulatedNanos / (double) replayNanos : 0d);
+        }
+    }
+
+    //endregion
+
+    //region Variables
+
+    private final File file;
+    private final StepChangeListener listener;
+    private final SimulatedClock clock;
+    private final AccelerometerStepDetector softwareDetector = new AccelerometerStepDetector();
+    //Like StepSensorManager, the detector's steps continue from the previous session's
+    private int detectorBase;
+    //Whether the listener got the base value of this session yet
+    private boolean detectorStarted;
+
+    //The counter values of the batch being replayed, the last one of each hour
+    private final StepValueQueue pendingValues = new StepValueQueue();
+    private final float[] deliveredValues = new float[StepValueQueue.CAPACITY];
+    private final long[] deliveredTimestamps = new long[StepValueQueue.CAPACITY];
+    private int provisionalSteps;
+
+    //endregion
+
+    StepTraceReplay(@NonNull File file, @NonNull StepChangeListener listener, @NonNull SimulatedClock clock) {
+        this.file = file;
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    //region Methods
+
+    /**
+     * Replays the whole trace on the calling thread.
+     * @param speed multiple of real time, 0 to replay as fast as possible
+     */
+    Result replay(double speed) throws IOException, InterruptedException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        float[] values = new float[3];
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != StepTraceRecorder.MAGIC || in.readInt() != StepTraceRecorder.VERSION)
+                throw new IOException("Not a step trace: " + file);
+
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                }
+                catch (EOFException ex) {
+                    break;
+                }
+                int sensorType = in.readUnsignedByte();
+                int count = in.readUnsignedByte();
+                long timestamp = in.readLong();
+
+                switch (kind) {
+                    case StepTraceRecorder.RECORD_SESSION:
+                        deliverPending();
+                        clock.startSession(timestamp, in.readLong());
+                        detectorBase += softwareDetector.getSteps();
+                        softwareDetector.reset();
+                        detectorStarted = false;
+                        provisionalSteps = 0;
+                        result.sessions++;
+                        break;
+
+                    case StepTraceRecorder.RECORD_DELIVERY:
+                        deliverPending();
+                        long advanced = clock.advanceTo(timestamp);
+                        result.simulatedNanos += advanced;
+                        result.batches++;
+                        if (speed > 0)
+                            waitForRealTime(start, result.simulatedNanos, speed);
+                        break;
+
+                    case StepTraceRecorder.RECORD_EVENT:
+                        for (int i = 0; i < count; i++) {
+                            float value = in.readFloat();
+                            if (i < values.length)
+                                values[i] = value;
+                        }
+                        onEvent(sensorType, timestamp, values, result);
+                        break;
+
+                    case StepTraceRecorder.RECORD_ACCURACY:
+                        result.accuracyChanges++;
+                        break;
+
+                    case StepTraceRecorder.RECORD_FLUSH:
+                        result.flushes++;
+                        break;
+
+                    default:
+                        throw new IOException("Corrupt step trace, record kind " + kind);
+                }
+            }
+            deliverPending();
+        }
+
+        result.replayNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void onEvent(int sensorType, long timestamp, @NonNull float[] values, @NonNull Result result) {
+        if (sensorType == TYPE_STEP_COUNTER) {
+            result.counterEvents++;
+            queueValue(values[0], timestamp);
+            provisionalSteps = 0;
+        }
+        else if (sensorType == TYPE_STEP_DETECTOR) {
+            result.detectorEvents++;
+            listener.onProvisionalSteps(++provisionalSteps);
+        }
+        else if (sensorType == TYPE_ACCELEROMETER) {
+            result.accelerometerSamples++;
+            if (!detectorStarted) {
+                //Like StepSensorManager.start(): the listener starts at the detector's base value
+                detectorStarted = true;
+                deliverPending();
+                listener.onChanged(detectorBase, timestamp);
+            }
+            if (softwareDetector.onSample(timestamp, values[0], values[1], values[2]))
+                queueValue(detectorBase + softwareDetector.getSteps(), timestamp);
+        }
+    }
+
+    /* Like StepSensorManager: the values of a batch are coalesced, the listener gets the last one of each hour. */
+    private void queueValue(float value, long timestamp) {
+        pendingValues.add(value, timestamp, clock.currentTimeMillis(), clock.elapsedRealtimeNanos());
+    }
+
+    private void deliverPending() {
+        int count = pendingValues.drainTo(deliveredValues, deliveredTimestamps);
+        for (int i = 0; i < count; i++)
+            listener.onChanged(deliveredValues[i], deliveredTimestamps[i]);
+    }
+
+    private static void waitForRealTime(long start, long simulatedNanos, double speed) throws InterruptedException {
+        long aheadNanos = (long) (simulatedNanos / speed) - (System.nanoTime() - start);
+        if (aheadNanos > 0)
+            Thread.sleep(aheadNanos / 1000000L, (int) (aheadNanos % 1000000L));
+    }
+
+    //endregion
+
+    //region Main
+
+    /**
+     * Usage: StepTraceReplay trace-file [speed] [wall clock shift in hours] [--time-zone id]
+     *                        [--expect file]
+     *
+     * Replays the trace and prints the steps per day as the service counts them: attributed to the
+     * time they were taken (StepTimeAttribution) and applied by StepAccounting, which also handles the
+     * counter resets (reboots). The state is flushed after every value. Days are in the default time
+     * zone unless one is given.
+     *
+     * With --expect the printed lines ("yyyy-MM-dd steps" per day and "total steps") are compared to
+     * the lines of the file ('#' starts a comment). Exits with 1 on a difference, or if the trace or
+     * the file can't be read.
+     */
+    public static void main(String[] args) {
+        List<String> positional = new ArrayList<>();
+        String expectFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--expect".equals(args[i]) && i + 1 < args.length)
+                expectFile = args[++i];
+            else if ("--time-zone".equals(args[i]) && i + 1 < args.length)
+                TimeZone.setDefault(TimeZone.getTimeZone(args[++i]));
+            else
+                positional.add(args[i]);
+        }
+        if (positional.isEmpty()) {
+            System.err.println("Usage: StepTraceReplay <trace-file> [speed] [shift-hours] [--time-zone id] " +
+                               "[--expect file]");
+            System.exit(2);
+            return;
+        }
+
+        final SimulatedClock clock = new SimulatedClock();
+        if (positional.size() > 2)
+            clock.setWallClockShiftMillis((long) (Double.parseDouble(positional.get(2)) * 60 * 60 * 1000));
+        double speed = positional.size() > 1 ? Double.parseDouble(positional.get(1)) : 0;
+
+        final MemoryStore store = new MemoryStore();
+        StepChangeListener counter = new StepChangeListener() {
+            private final StepTimeAttribution attribution = new StepTimeAttribution();
+            private final float[] attributedValues = new float[StepTimeAttribution.MAX_POINTS];
+            private final long[] attributedTimes = new long[StepTimeAttribution.MAX_POINTS];
+            private final StepState state = new StepState();
+            private final StepAccounting accounting = new StepAccounting(state, clock);
+
+            @Override
+            public void onChanged(float steps, long timestamp) {
+                long timeMillis = StepTimeAttribution.toWallClock(timestamp, clock.currentTimeMillis(),
+                                                                  clock.elapsedRealtimeNanos());
+                int points = attribution.attribute(steps, timeMillis, attributedValues, attributedTimes);
+                int result = 0;
+                for (int i = 0; i < points; i++) {
+                    accounting.moveTo(store, attributedTimes[i]);
+                    if (state.isDirty() && accounting.isNewPeriod())
+                        store.flush(state);
+                    result = accounting.apply(store, Math.round(attributedValues[i]));
+                    store.flush(state);
+                }
+                if ((result & (StepAccounting.RESULT_NEGATIVE_DELTA | StepAccounting.RESULT_COUNTER_RESET |
+                               StepAccounting.RESULT_CLOCK_WENT_BACK)) != 0)
+                    attribution.reset(steps, timeMillis);
+            }
+
+            @Override
+            public void onProvisionalSteps(int steps) {
+            }
+        };
+
+        List<String> lines = new ArrayList<>();
+        try {
+            Result result = new StepTraceReplay(new File(positional.get(0)), counter, clock).replay(speed);
+            System.out.println(result);
+            long total = 0;
+            StringBuilder line = new StringBuilder();
+            for (StepJournal.Bucket day : store.index(StepJournal.KIND_DAY).values()) {
+                line.setLength(0);
+                StepHistoryQuery.appendPeriodKey(line, StepJournal.KIND_DAY, day.key);
+                lines.add(line.append(' ').append(day.steps).toString());
+                total += day.steps;
+            }
+            lines.add("total " + total);
+            for (String printed : lines)
+                System.out.println(printed);
+        }
+        catch (Exception ex) {
+            System.err.println("Replay failed: " + ex);
+            System.exit(1);
+            return;
+        }
+
+        if (expectFile == null)
+            return;
+        List<String> expected = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(expectFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                line = (comment >= 0 ? line.substring(0, comment) : line).trim();
+                if (!line.isEmpty())
+                    expected.add(line);
+            }
+        }
+        catch (IOException ex) {
+            System.err.println("Can't read " + expectFile + ": " + ex);
+            System.exit(1);
+            return;
+        }
+
+        if (!lines.equals(expected)) {
+            System.out.println("MISMATCH, expected:");
+            for (String line : expected)
+                System.out.println(line);
+            System.exit(1);
+        }
+        System.out.println("OK: as expected");
+    }
+
+    //endregion
+}
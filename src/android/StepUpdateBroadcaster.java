@@ -0,0 +1,103 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+
+/**
+ * Pushes step updates from the step counter process to the app process while the web app has
+ * watchSteps() subscriptions. Updates are coalesced to the smallest interval the watches asked for:
+ * the first change goes out right away, later ones at most once per interval, and the last one is
+ * always delivered (trailing edge). Nothing is sent while nobody is watching.
+ *
+ * Runs on the main thread of the step counter process, only the interval is set from binder threads.
+ */
+final class StepUpdateBroadcaster {
+
+    //region Constants
+
+    static final String ACTION_STEPS_CHANGED = "com.mctechnologies.cordovapluginstepcounter.STEPS_CHANGED";
+    static final String EXTRA_TODAY_STEPS = "todaySteps";
+    static final String EXTRA_TOTAL_STEPS = "totalSteps";
+    static final String EXTRA_TIMESTAMP = "timestamp";
+
+    //endregion
+
+    //region Variables
+
+    //Smallest interval requested by the watches, -1 while nobody is watching
+    private static volatile long minIntervalMs = -1;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static Context appContext;
+    private static long lastSentAt;
+    private static boolean pending;
+    private static int pendingToday;
+    private static int pendingTotal;
+    private static long pendingTimestamp;
+
+    private static final Runnable sendPending = new Runnable() {
+        @Override
+        public void run() {
+            if (pending && appContext != null)
+                send(appContext);
+        }
+    };
+
+    //endregion
+
+    private StepUpdateBroadcaster() {
+    }
+
+    //region Static Methods
+
+    /**
+     * @param intervalMs the smallest interval the app's watches asked for, or -1 to stop sending
+     */
+    static void setMinIntervalMs(long intervalMs) {
+        minIntervalMs = intervalMs;
+    }
+
+    static boolean isWatched() {
+        return minIntervalMs >= 0;
+    }
+
+    static void onStepsChanged(@NonNull Context context, int todaySteps, int totalSteps) {
+        long interval = minIntervalMs;
+        if (interval < 0)
+            return;
+
+        appContext = context.getApplicationContext();
+        pending = true;
+        pendingToday = todaySteps;
+        pendingTotal = totalSteps;
+        pendingTimestamp = System.currentTimeMillis();
+
+        long wait = lastSentAt + interval - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            handler.removeCallbacks(sendPending);
+            send(appContext);
+        }
+        else {
+            handler.removeCallbacks(sendPending);
+            handler.postDelayed(sendPending, wait);
+        }
+    }
+
+    private static void send(@NonNull Context context) {
+        pending = false;
+        lastSentAt = SystemClock.elapsedRealtime();
+
+        Intent intent = new Intent(ACTION_STEPS_CHANGED);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_TODAY_STEPS, pendingToday);
+        intent.putExtra(EXTRA_TOTAL_STEPS, pendingTotal);
+        intent.putExtra(EXTRA_TIMESTAMP, pendingTimestamp);
+        context.sendBroadcast(intent);
+    }
+
+    //endregion
+}
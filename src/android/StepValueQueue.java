@@ -0,0 +1,99 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import java.util.Calendar;
+
+/**
+ * Sensor values waiting to be counted. The values of a batch are coalesced into the last one, as
+ * far as that keeps the time of their steps: StepTimeAttribution spreads the steps of a value over
+ * the time since the previous one, so a coalesced value must not span more than the hour it is in.
+ *
+ * The first value of an hour (wall clock time of its event) is kept on its own, its steps were taken
+ * between the previous event and it. The values after it in the same hour coalesce into one. A batch
+ * walked 07:00-07:10 after a last value at 23:30 becomes the first event (its few steps are spread
+ * over the night) and the value at 07:10 (the rest, all in 07:00-08:00).
+ *
+ * Not thread-safe, the owner synchronizes.
+ */
+final class StepValueQueue {
+
+    //region Constants
+
+    /** When full, new values coalesce into the last one even across hours. */
+    static final int CAPACITY = 8;
+
+    //endregion
+
+    //region Variables
+
+    private final float[] values = new float[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    private int size;
+    //Whether the last value is the first one of its hour, the next one isn't coalesced into it
+    private boolean lastStartsHour;
+
+    //The hour of the last added event, in the elapsed realtime base (nanoseconds)
+    private long hourStartNanos = Long.MAX_VALUE;
+    private long hourEndNanos = Long.MIN_VALUE;
+    private final Calendar calendar = Calendar.getInstance();
+
+    //endregion
+
+    //region Methods
+
+    /**
+     * @param timestamp SensorEvent.timestamp of the value
+     * @param nowMillis current wall clock time
+     * @param elapsedRealtimeNanos current elapsed realtime, to convert the timestamp
+     * @return true if the value was coalesced into the previous one
+     */
+    boolean add(float value, long timestamp, long nowMillis, long elapsedRealtimeNanos) {
+        boolean newHour = timestamp < hourStartNanos || timestamp >= hourEndNanos;
+        if (newHour) {
+            long timeMillis = StepTimeAttribution.toWallClock(timestamp, nowMillis, elapsedRealtimeNanos);
+            calendar.setTimeInMillis(timeMillis);
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+            hourStartNanos = timestamp - (timeMillis - calendar.getTimeInMillis()) * 1000000L;
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+            hourEndNanos = timestamp + (calendar.getTimeInMillis() - timeMillis) * 1000000L;
+        }
+
+        boolean coalesce = size == CAPACITY || (size > 0 && !newHour && !lastStartsHour);
+        if (!coalesce)
+            size++;
+        values[size - 1] = value;
+        timestamps[size - 1] = timestamp;
+        lastStartsHour = newHour && !coalesce;
+        return coalesce;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the values out and empties the queue, the hour of the last event is kept.
+     * @return the number of values copied
+     */
+    int drainTo(float[] valuesOut, long[] timestampsOut) {
+        int count = size;
+        System.arraycopy(values, 0, valuesOut, 0, count);
+        System.arraycopy(timestamps, 0, timestampsOut, 0, count);
+        size = 0;
+        lastStartsHour = false;
+        return count;
+    }
+
+    /**
+     * Drops the values and forgets the hour, e.g. when the sensor is registered again.
+     */
+    void clear() {
+        size = 0;
+        lastStartsHour = false;
+        hourStartNanos = Long.MAX_VALUE;
+        hourEndNanos = Long.MIN_VALUE;
+    }
+
+    //endregion
+}
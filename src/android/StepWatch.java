@@ -0,0 +1,105 @@
+package com.mctechnologies.cordovapluginstepcounter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONObject;
+
+/**
+ * A watchSteps() subscription of the web app, answered through a kept callback. Updates are skipped
+ * until today's count moved by at least minDelta steps, and delivered at most once per minIntervalMs;
+ * an update held back by the interval is delivered when the interval is over (trailing edge).
+ *
+ * Used on the main thread of the app process only.
+ */
+final class StepWatch {
+
+    //region Variables
+
+    final String id;
+    final long minIntervalMs;
+    private final int minDelta;
+    private final CallbackContext callbackContext;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int lastSteps = -1;
+    private long lastSentAt;
+    private boolean pending;
+    private int pendingToday;
+    private int pendingTotal;
+    private long pendingTimestamp;
+
+    private final Runnable sendPending = new Runnable() {
+        @Override
+        public void run() {
+            if (pending)
+                send();
+        }
+    };
+
+    //endregion
+
+    StepWatch(@NonNull String id, long minIntervalMs, int minDelta, @NonNull CallbackContext callbackContext) {
+        this.id = id;
+        this.minIntervalMs = Math.max(0, minIntervalMs);
+        this.minDelta = Math.max(0, minDelta);
+        this.callbackContext = callbackContext;
+    }
+
+    //region Methods
+
+    void onSteps(int todaySteps, int totalSteps, long timestamp) {
+        //A new day starts at 0, that is always worth an update...
+        if (lastSteps >= 0 && todaySteps >= lastSteps && todaySteps - lastSteps < minDelta)
+            return;
+
+        pending = true;
+        pendingToday = todaySteps;
+        pendingTotal = totalSteps;
+        pendingTimestamp = timestamp;
+
+        handler.removeCallbacks(sendPending);
+        long wait = lastSentAt + minIntervalMs - SystemClock.elapsedRealtime();
+        if (lastSteps < 0 || wait <= 0)
+            send();
+        else
+            handler.postDelayed(sendPending, wait);
+    }
+
+    /**
+     * Ends the subscription, the JavaScript callback is released.
+     */
+    void close() {
+        handler.removeCallbacks(sendPending);
+        pending = false;
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(false);
+        callbackContext.sendPluginResult(result);
+    }
+
+    private void send() {
+        pending = false;
+        lastSteps = pendingToday;
+        lastSentAt = SystemClock.elapsedRealtime();
+
+        try {
+            JSONObject update = new JSONObject();
+            update.put("todaySteps", pendingToday);
+            update.put("totalSteps", pendingTotal);
+            update.put("timestamp", pendingTimestamp);
+
+            PluginResult result = new PluginResult(PluginResult.Status.OK, update);
+            result.setKeepCallback(true);
+            callbackContext.sendPluginResult(result);
+        }
+        catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    //endregion
+}
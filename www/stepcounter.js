@@ -23,13 +23,32 @@
 */
 
 module.exports = {
-  //ACTION_CONFIGURE       : "configure",
+  ACTION_CONFIGURE: "configure",
   ACTION_START: "start",
   ACTION_STOP: "stop",
   ACTION_GET_STEPS: "get_step_count",
   ACTION_TODAY_GET_STEPS: "get_today_step_count",
   ACTION_CAN_COUNT_STEPS: "can_count_steps",
   ACTION_GET_HISTORY: "get_history",
+  ACTION_GET_HISTORY_RANGE: "get_history_range",
+  ACTION_WATCH_STEPS: "watch_steps",
+  ACTION_CLEAR_WATCH: "clear_watch",
+
+  _lastWatchId: 0,
+
+  // options: { flushIntervalMs: 60000, flushStepThreshold: 250, maxReportLatencyMs: 0,
+  //            liveStepDetection: false, recordSensorTrace: false, notificationIntervalMs: 5000,
+  //            hourlyRetentionDays: 31, dailyRetentionDays: 366, weeklyRetentionWeeks: 104,
+  //            logLevel: "INFO", logSampleRate: 1 }
+  configure: function (options, successCallback, errorCallback) {
+    cordova.exec(
+      successCallback,
+      errorCallback,
+      "CordovaStepCounter",
+      "configure",
+      [options || {}]
+    );
+  },
 
   start: function (offset, successCallback, errorCallback) {
     offset = parseInt(offset) || 0;
@@ -52,23 +71,25 @@ module.exports = {
     );
   },
 
-  getTodayStepCount: function (successCallback, errorCallback) {
+  // options: { flushTimeoutMs: 0 }, when set the steps the sensor still holds back (see
+  // maxReportLatencyMs) are pulled in first, waiting at most flushTimeoutMs (up to 5000) for them
+  getTodayStepCount: function (successCallback, errorCallback, options) {
     cordova.exec(
       successCallback,
       errorCallback,
       "CordovaStepCounter",
       "get_today_step_count",
-      []
+      [options || {}]
     );
   },
 
-  getStepCount: function (successCallback, errorCallback) {
+  getStepCount: function (successCallback, errorCallback, options) {
     cordova.exec(
       successCallback,
       errorCallback,
       "CordovaStepCounter",
       "get_step_count",
-      []
+      [options || {}]
     );
   },
 
@@ -97,6 +118,107 @@ module.exports = {
     );
   },
 
+  // from/to: Date or milliseconds (to is exclusive), granularity: "hour", "day", "week" or "month"
+  getHistoryRange: function (from, to, granularity, successCallback, errorCallback) {
+    cordova.exec(
+      function (result) {
+        var parsedResult = JSON.parse(result);
+        successCallback(parsedResult);
+      },
+      errorCallback,
+      "CordovaStepCounter",
+      "get_history_range",
+      [+from, +to, granularity || "day"]
+    );
+  },
+
+  // period: "day", "week" (ISO), "month" or "year", date: Date or milliseconds inside the period
+  // (default now). Answers { period: "week", label: "2024-W05", steps: 12345 }
+  getSummary: function (period, successCallback, errorCallback, date) {
+    cordova.exec(
+      function (result) {
+        successCallback(JSON.parse(result));
+      },
+      errorCallback,
+      "CordovaStepCounter",
+      "get_summary",
+      [period || "day", date != null ? +date : -1]
+    );
+  },
+
+  // Steps per minute of the last minutes (default 60, at most 1440) up to date (default now).
+  // Answers { start: <ms of the first minute>, steps: [per minute, oldest first], activeMinutes: n,
+  // cadence: average steps per active minute, peakCadence: most steps in a minute }
+  getMinutes: function (minutes, successCallback, errorCallback, date) {
+    cordova.exec(
+      function (result) {
+        successCallback(JSON.parse(result));
+      },
+      errorCallback,
+      "CordovaStepCounter",
+      "get_minutes",
+      [minutes || 60, date != null ? +date : -1]
+    );
+  },
+
+  // cursor: the cursor of the previous result, 0 (or omitted) for everything
+  getChangesSince: function (cursor, successCallback, errorCallback) {
+    cordova.exec(
+      function (result) {
+        successCallback(JSON.parse(result));
+      },
+      errorCallback,
+      "CordovaStepCounter",
+      "get_changes_since",
+      [cursor || 0]
+    );
+  },
+
+  // options: { minIntervalMs: 1000, minDelta: 1 }, returns the id to pass to clearWatch()
+  watchSteps: function (successCallback, errorCallback, options) {
+    var watchId = String(++this._lastWatchId);
+    cordova.exec(
+      successCallback,
+      errorCallback,
+      "CordovaStepCounter",
+      "watch_steps",
+      [watchId, options || {}]
+    );
+    return watchId;
+  },
+
+  clearWatch: function (watchId, successCallback, errorCallback) {
+    cordova.exec(
+      successCallback,
+      errorCallback,
+      "CordovaStepCounter",
+      "clear_watch",
+      [String(watchId)]
+    );
+  },
+
+  getMetrics: function (successCallback, errorCallback) {
+    cordova.exec(
+      function (result) {
+        successCallback(JSON.parse(result));
+      },
+      errorCallback,
+      "CordovaStepCounter",
+      "get_metrics",
+      []
+    );
+  },
+
+  resetMetrics: function (successCallback, errorCallback) {
+    cordova.exec(
+      successCallback,
+      errorCallback,
+      "CordovaStepCounter",
+      "reset_metrics",
+      []
+    );
+  },
+
   getLogs: function (successCallback, errorCallback) {
     cordova.exec(
       function (result) {